@@ -1,6 +1,7 @@
 package com.icognos;
 
 import com.icognos.deviceManager.ChannelData;
+import com.icognos.deviceManager.SampleBlock;
 
 public interface IenzoHandler {
 
@@ -41,10 +42,27 @@ public interface IenzoHandler {
     /*!
      * Signal that is emitted whenever a new EEG data is received.
      *
-     * \param data The new received sample data
+     * It is only called by SampleBlock.dispatchSamples, for the handlers that
+     * process one sample at a time from newEEGBlock.
+     *
+     * \param data The new received sample data. It is reused for the next
+     * samples, so it has to be copied with ChannelData.copy to be kept after
+     * the call.
      */
     void newEEGData(ChannelData data);
 
+    /*!
+     * Signal that is emitted once per EEG frame with all its samples,
+     * including the ones repeated to fill a packet loss before it.
+     *
+     * \param block The samples of the frame, stored by channel. It is reused
+     * for the next frames, so to be kept after the call it has to be retained
+     * with SampleBlock.retain, and released when done, or copied with
+     * SampleBlock.copy. Call block.dispatchSamples(this) to receive them one
+     * by one in newEEGData.
+     */
+    void newEEGBlock(SampleBlock block);
+
     /*!
      * Signal that is emitted whenever a new Impedance data is received.
      *
@@ -29,8 +29,10 @@ import com.icognos.bluetooth.BluetoothManager;
 import com.icognos.deviceManager.ChannelData;
 import com.icognos.deviceManager.DennisRegisters;
 import com.icognos.deviceManager.DeviceManager;
+import com.icognos.deviceManager.DeviceProfile;
 import com.icognos.deviceManager.StarStimProtocol;
 import com.icognos.deviceManager.DeviceManager.OpenErrorTypes;
+import com.icognos.deviceManager.SampleBlock;
 import com.icognos.plotmanager.PlotManager;
 import com.icognos.util.ILoggerOutput;
 import com.icognos.util.Logger;
@@ -261,10 +263,7 @@ public class MainClass extends Activity implements IScanDiscoveryFinishedHandler
 		}
 		
 		logger.info("Configure Android to run at 125 SPS", Logger.LOG_FILE_ON);
-	    Byte[] sampleRate = new Byte[1];
-		//sampleRate[0] = (byte) DennisRegisters.EEG_STREAMING_RATE_125SPS;
-		sampleRate[0] = 4;
-		_device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) DennisRegisters.EEG_STREAMING_RATE_ADDR, sampleRate, (byte) 1);
+		new DeviceProfile().setStreamingRate(DennisRegisters.EEG_STREAMING_RATE_125SPS).apply(_device);
 		
 ////////////////////////////////		
 		if(true) return;
@@ -443,116 +442,10 @@ public class MainClass extends Activity implements IScanDiscoveryFinishedHandler
 	    logger.info( "Manager._initEEGRegisters all:" + all, Logger.VISUAL_CONSOLE_ON | Logger.LOG_FILE_ON);
 	    if (!_device.isAStimulationDevice())
 	    {
-			Byte[] REG = new Byte[1];
-			Byte[] REGRead = new Byte[1];
-	        //CONFIG
-
-	        //Is old HW
-	        if (_device.getFirmwareVersion()<593)
-	            REG[0] = (byte) 0xA6;
-	        else{
-	            if( _device.is1000SPS() == 1) REG[0] = (byte) 0x85;//ALERT 1000 SPS
-	            else REG[0] = (byte) 0x86;
-	        }
-
-	        // Register 0x01
-//	        logger.info("Writing register EEG_REG(" + 0x01 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x01, REG, (byte) 1);
-
-//	        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x01, REGRead, (byte) 1);
-//	        logger.info( "Reading register EEG_REG(" + 0x01 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-	        
-	        // Register 0x02
-	        REG[0] = 0x10;
-//	        logger.info("Writing register EEG_REG(" + 0x02 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x02, REG, (byte) 1);
-
-//	        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x02, REGRead, (byte) 1);
-//	        logger.info( "Reading register EEG_REG(" + 0x02 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-
-	        // Register 0x03
-	        REG[0] = (byte) 0xCC;
-//	        logger.info("Writing register EEG_REG(" + 0x03 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x03, REG, (byte) 1);
-
-//	        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x03, REGRead, (byte) 1);
-//	        logger.info( "Reading register EEG_REG(" + 0x03 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-
-	        if (all)
-	        {
-	            // LOFF
-	            REG[0] = 0x00;
-//		        logger.info("Writing register EEG_REG(" + 0x04 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-		        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x04, REG, (byte) 1);
-
-//		        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x04, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x04 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-
-	            // CHANNEL
-	            REG[0] = 0x00;
-//		        logger.info("Writing register EEG_REG(" + 0x05 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-		        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x05, REG, (byte) 1);
-
-//		        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x05, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x05 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-
-	            // REST OF THE REGISTERS
-		        Byte[] values = {0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 
-	            				 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};  // There are 13 values
-
-//		        logger.info("Writing register EEG_REG(" + 0x0D + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-		        _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x0D, values, (byte) 13);
-
-//	            for (int i=0;i<13;i++)
-//	            {
-//			        _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) (0x0D+i), REGRead, (byte) 1);
-//			        logger.info( "Reading register EEG_REG(" + 0x0D + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-//	                
-//	            }
-
-
-	            //EEG_CH_INFO_ADDR	           
-	            int shift = 1;
-	            int aux = 0;
-	            for (int i = 0;i < _numOfChannels; i++)
-	                	aux = aux | (shift <<i);
-	            aux = ~ aux;
-	            
-	            // Byte0
-	            REG[0] = (byte) (aux & 0x000000FF);
-////////////////////////////////////////////	            
-	            //REG[0] = (byte) 0xFE;
-////////////////////////////////////////////	            
-//		        logger.info("Writing register EEG_REG(" + 0x40 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	            _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x40, REG, (byte) 1);
-
-//	            _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x40, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x40 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-		        
-		        // Byte 1
-	            REG[0] = (byte) ((aux & 0x0000FF00) >> 8);
-//		        logger.info("Writing register EEG_REG(" + 0x41 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	            _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x41, REG, (byte) 1);
-
-//	            _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x41, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x41 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-	            
-		        // Byte 2
-	            REG[0] = (byte) ((aux & 0x00FF0000) >> 16);
-//		        logger.info("Writing register EEG_REG(" + 0x42 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	            _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x42, REG, (byte) 1);
-
-//	            _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x42, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x42 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-	            
-		        // Byte 3
-	            REG[0] = (byte) ((aux & 0xFF000000) >> 24);            
-//		        logger.info("Writing register EEG_REG(" + 0x43 + ")=" + String.format("0x%02X",REG[0]), Logger.LOG_FILE_ON);
-	            _device.writeRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x43, REG, (byte) 1);
-
-//	            _device.readRegister(DeviceManager.StarStimRegisterFamily.EEG_REGISTERS, (byte) 0x43, REGRead, (byte) 1);
-//		        logger.info( "Reading register EEG_REG(" + 0x43 + ")="  + String.format("0x%02X Expected=0x%02X", REGRead[0], REG[0]), Logger.LOG_FILE_ON );
-	        }// End: If (all)
+	        // Only the registers that differ from the device are written
+	        DeviceProfile profile = DeviceProfile.eegHeadset(_device.getFirmwareVersion(), _device.is1000SPS(), _numOfChannels, all);
+	        if (!profile.apply(_device))
+	            logger.info( "Manager._initEEGRegisters some registers were not written", Logger.LOG_FILE_ON);
 	    }
 	    else
 	    {
@@ -705,6 +598,16 @@ public class MainClass extends Activity implements IScanDiscoveryFinishedHandler
 		
         
 		
+	}
+
+	@Override
+	public void newEEGBlock(SampleBlock block) {
+		// Only the first channel is plotted
+		int[] eegData = block.channel(0);
+		if( eegData == null ) return;
+		
+		for (int j = 0; j < block.numSamples(); j++)
+			plotManager.addSample(eegData[j]);
 	}
 
 	@Override
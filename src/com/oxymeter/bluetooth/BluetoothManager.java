@@ -20,7 +20,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.SystemClock;
 
 import com.icognos.IScanDiscoveryFinishedHandler;
 import com.icognos.deviceManager.DeviceManager;
@@ -46,6 +45,9 @@ public class BluetoothManager implements INICBluetooth{
 	private OutputStream mmOutStream  = null;
 	private boolean      _isConnected = false;
 	
+	// Scratch buffer backing the boxed readRFCOMM, reused between calls
+	private byte[]       _boxedReadBuffer = null;
+	
 	// Handle raised when ScanDiscovery is finished
 	private IScanDiscoveryFinishedHandler scanDiscoveryFinishedHandler;
 	
@@ -507,6 +509,14 @@ public class BluetoothManager implements INICBluetooth{
     }
     
     public int writeRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes) throws IOException{
+
+		// Boxed version kept for compatibility
+		byte[] byteArray = new byte[buffer.size()];
+		for(int i = 0; i < buffer.size(); i++) byteArray[i] = buffer.get(i);			
+    	return writeRFCOMM( handle, byteArray, 0, byteArray.length );
+    }
+
+    public int writeRFCOMM( int handle, byte[] buffer, int offset, int numberBytes ) throws IOException{
     	
     	if(	!_isConnected ){
     		return 0;
@@ -518,75 +528,39 @@ public class BluetoothManager implements INICBluetooth{
     	}
     	
 		//logger.info("Writing to device ...", Logger.LOG_FILE_ON);
-		byte[] byteArray = new byte[buffer.size()];
-		for(int i = 0; i < buffer.size(); i++) byteArray[i] = buffer.get(i);			
-		mmOutStream.write( byteArray );
+		mmOutStream.write( buffer, offset, numberBytes );
     	
     	return 1;
     }
     
 
     public int readRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes, int timeout ) throws IOException{
-		int bytes  = 0;
 
-	    byte[] bufferRead = new byte[200];
-		
-		if( !_isConnected ){
-			return 0;
-		}
-		
-		
-		if( mmInStream == null ){
-    		logger.error("Input stream was not initialised!" );
-			return 0;
+		// Boxed version kept for compatibility. It goes through the bulk
+		// read below and only pays the boxing for the bytes actually read
+		if( _boxedReadBuffer == null || _boxedReadBuffer.length < numberBytes ){
+			_boxedReadBuffer = new byte[(int) numberBytes];
 		}
-				
-/*
-		// Read from the InputStream a certain number of bytes		
-		logger.info("Before Read", Logger.LOG_FILE_ON);
-		bytes = mmInStream.read(bufferRead, 0, (int) numberBytes);		
-		for(int j = 0; j < bytes; j++ ) buffer.add( bufferRead[j] ); 
-		logger.info("After Read:" + bytes + " bytes", Logger.LOG_FILE_ON);
-/**/
+		int bytes = readRFCOMM(handle, _boxedReadBuffer, 0, (int) numberBytes, timeout);
+		for( int i = 0; i < bytes; i++ ) buffer.add( _boxedReadBuffer[i] );
 
+    	return bytes;
+    }
 
-		
-		
+    public int readRFCOMM( int handle, byte[] buffer, int offset, int numberBytes, int timeout ) throws IOException{
 
-		// Time out implementation 
-		int byteCounter = 0;
-		long initTime = SystemClock.currentThreadTimeMillis();
-		
-		for( int i = 0; i < numberBytes; i++){
-			int availableBytes = mmInStream.available();
-			if( availableBytes >= 0 ){
-				//logger.info("Before Read", Logger.LOG_FILE_ON);
-				byte readByte = (byte) mmInStream.read(); 
-				//logger.info("After Read", Logger.LOG_FILE_ON);				
-				buffer.add( readByte );
-				//logger.info("Available " + i + " Bytes:" + availableBytes, Logger.LOG_FILE_ON );
-				byteCounter++;					
-			}
-			// Break conditions
-			if( byteCounter == numberBytes ) break;
-			if( SystemClock.currentThreadTimeMillis() > ( initTime + 1000 ) ) break;
-			
+		if( !_isConnected ){
+			return 0;
 		}
 
-		bytes = buffer.size();
-		String threadId = Thread.currentThread().getName() + "(" + Thread.currentThread().getId() + ")";
-		String reasonStr = "";
-		if( buffer.size() == numberBytes ){
-			reasonStr = "RequestedNumber completed. ";
-			//logger.info( reasonStr + byteCounter + " " + threadId, Logger.LOG_FILE_ON);
-		}else{
-			reasonStr = "Timeout! ";
-			logger.info( reasonStr + byteCounter + " " + threadId, Logger.LOG_FILE_ON);
+		if( mmInStream == null ){
+    		logger.error("Input stream was not initialised!" );
+			return 0;
 		}
 
-/**/			
-			
-    	return bytes;
+		// Single bulk read: blocks until at least one byte is available and
+		// returns whatever the RFCOMM socket has buffered up to numberBytes
+		return mmInStream.read(buffer, offset, numberBytes);
     }
 
 }
@@ -169,6 +169,22 @@ public interface INICBluetooth {
      * \returns 1 on success 0 on failure
      */
     public int writeRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes) throws IOException;
+
+    /*!
+     * Writes a primitive buffer to the BT device, without boxing nor
+     * allocation.
+     *
+     * \param handle id of the BT socket to be used
+     *
+     * \param buffer bytes to be written
+     *
+     * \param offset position in buffer of the first byte to be written
+     *
+     * \param numberBytes number of bytes to be written to the socket
+     *
+     * \returns 1 on success 0 on failure
+     */
+    public int writeRFCOMM( int handle, byte[] buffer, int offset, int numberBytes) throws IOException;
     
     /*!
      * Reads the incoming data from the BT device
@@ -182,5 +198,24 @@ public interface INICBluetooth {
      * \returns 1 on success 0 on failure
      */
     public int readRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes, int timeout) throws IOException;
-	
+
+    /*!
+     * Reads the incoming data from the BT device straight into a primitive
+     * buffer with a single bulk read of the underlying stream.
+     *
+     * \param handle id of the BT socket to be used
+     *
+     * \param buffer destination of the bytes read
+     *
+     * \param offset position in buffer where the first byte is stored
+     *
+     * \param numberBytes maximum number of bytes to be read from the socket
+     *
+     * \param timeout timeNecessary to abort operation
+     *
+     * \returns number of bytes read, 0 if not connected and -1 if the
+     * stream was closed by the remote side
+     */
+    public int readRFCOMM( int handle, byte[] buffer, int offset, int numberBytes, int timeout) throws IOException;
+
 }
@@ -33,6 +33,13 @@ public class ChannelData {
      * Boolean to control if current packet is repeated to compensate for packet loss
      */
     boolean _isRepeated;
+
+    /*!
+     * \property ChannelData::_gapSamples
+     *
+     * Number of samples lost right before this one while the link was down
+     */
+    int _gapSamples;
 	
     //  -- METHODS --
     // --------------
@@ -104,6 +111,55 @@ public class ChannelData {
      * It returns whether the sample is a repeated one due to packet loss
      */
     boolean isRepeated () { return _isRepeated;}
+
+    /*!
+     * It sets the number of samples lost right before this one
+     */
+    public void setGapSamples (int value) { _gapSamples = value;}
+
+    /*!
+     * It returns the number of samples lost right before this one while the
+     * link was down, 0 if the stream is continuous. The timestamp of the
+     * sample already accounts for them.
+     */
+    public int gapSamples () { return _gapSamples;}
+
+    /*!
+     * It resets the sample so the object can be reused, as if it had just
+     * been constructed.
+     */
+    public void clear () {
+    	for(int i = 0; i < 32; i++) _data[i] = 0;
+    	_channelInfo = 0;
+    	_timeStamp = 0;
+    	_isRepeated = false;
+    	_gapSamples = 0;
+    }
+
+    /*!
+     * It copies the content of another sample into this one, without
+     * allocating.
+     *
+     * \param other sample to be copied
+     */
+    public void copyFrom (ChannelData other) {
+    	System.arraycopy(other._data, 0, _data, 0, 32);
+    	_channelInfo = other._channelInfo;
+    	_timeStamp = other._timeStamp;
+    	_isRepeated = other._isRepeated;
+    	_gapSamples = other._gapSamples;
+    }
+
+    /*!
+     * It returns a copy of the sample that the caller owns. The samples given
+     * to the listeners are reused for the next frame, so a listener that
+     * keeps one after the call has to keep a copy.
+     */
+    public ChannelData copy () {
+    	ChannelData channelData = new ChannelData();
+    	channelData.copyFrom(this);
+    	return channelData;
+    }
     
     
     
@@ -0,0 +1,114 @@
+package com.icognos.deviceManager;
+
+import java.util.HashMap;
+
+/*!
+ * Facts learnt about each device the application has opened, indexed by its
+ * address. DeviceManager uses them to reconnect without repeating what it
+ * already knows: the pairing checks are skipped, the parser starts with the
+ * right length field width, and the firmware version is available before the
+ * device reports it again.
+ *
+ * The entries are refreshed each time the device reports its firmware, so a
+ * firmware update is picked up on the next connection.
+ */
+public class DeviceCapabilityCache {
+
+	/*!
+	 * What is known about a device.
+	 */
+	public static class Entry {
+		/*!
+		 * \property Entry::firmwareVersion
+		 *
+		 * Last firmware version reported, 0 if not reported yet.
+		 */
+		public int firmwareVersion;
+
+		public int is1000SPS;
+
+		/*!
+		 * \property Entry::isLength2Bytes
+		 *
+		 * Width of the length field of the frames.
+		 */
+		public boolean isLength2Bytes;
+
+		public boolean isStimulationDevice;
+
+		/*!
+		 * \property Entry::lastProfile
+		 *
+		 * Registers of the DeviceProfiles applied to the device, the last
+		 * value of each, null if none was applied.
+		 */
+		public DeviceProfile lastProfile;
+
+		/*!
+		 * \property Entry::lastConnected
+		 *
+		 * System.currentTimeMillis of the last successful open.
+		 */
+		public long lastConnected;
+	}
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property DeviceCapabilityCache::_entries
+	 *
+	 * Entries indexed by device address.
+	 */
+	private HashMap<String, Entry> _entries;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor
+	 */
+	public DeviceCapabilityCache(){
+		_entries = new HashMap<String, Entry>();
+	}
+
+	/*!
+	 * Returns the entry of a device, or null if it has never been opened.
+	 */
+	public synchronized Entry get(String address){
+		if (address == null) return null;
+		return _entries.get(address);
+	}
+
+	/*!
+	 * Returns the entry of a device, creating it if needed.
+	 */
+	public synchronized Entry getOrCreate(String address){
+		Entry entry = _entries.get(address);
+		if (entry == null)
+		{
+			entry = new Entry();
+			_entries.put(address, entry);
+		}
+		return entry;
+	}
+
+	/*!
+	 * Whether the firmware of the device has been reported at least once.
+	 */
+	public synchronized boolean isKnown(String address){
+		Entry entry = get(address);
+		return entry != null && entry.firmwareVersion > 0;
+	}
+
+	/*!
+	 * Forgets a device, for instance after it has been unpaired.
+	 */
+	public synchronized void remove(String address){
+		_entries.remove(address);
+	}
+
+	public synchronized void clear(){
+		_entries.clear();
+	}
+}
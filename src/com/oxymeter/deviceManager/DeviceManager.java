@@ -5,13 +5,21 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.app.Activity;
-import android.os.SystemClock;
 
 import com.icognos.IenzoHandler;
 import com.icognos.IScanDiscoveryFinishedHandler;
 import com.icognos.bluetooth.BluetoothManager;
+import com.icognos.bluetooth.INICBluetooth;
+import com.icognos.transport.CaptureWriter;
+import com.icognos.transport.LoopbackTransport;
+import com.icognos.transport.TransportFactory;
 import com.icognos.util.Logger;
 import com.icognos.util.Reference;
 
@@ -33,6 +41,8 @@ public class DeviceManager implements Runnable {
 	//public static final int MAX_LENGTH_RX_BUFFER = 150;
 	public static final int  MAX_LENGTH_RX_BUFFER = 200;
 	private static final int MAXNODATACOUNTER     = 200;
+	public static final int  REQUEST_TIMEOUT_MS   = 2000;
+	public static final int  PIPELINE_DEPTH       = 4;
 	
 	// Version constanst
 	public static final int FWVERSION_SDCARD = 1200;
@@ -141,9 +151,10 @@ public class DeviceManager implements Runnable {
 	/*
 	 * ! \property DeviceManager::_rxBuffer
 	 * 
-	 * Buffer that stores the received bytes from rfcomm device.
+	 * Buffer that stores the received bytes from rfcomm device. It is
+	 * allocated once and reused by every call to _processData.
 	 */
-	private ArrayList<Byte> _rxBuffer;
+	private byte[] _rxBuffer;
 
 	/*
 	 * ! \property DeviceManager::_isDevicePresent
@@ -161,6 +172,21 @@ public class DeviceManager implements Runnable {
 	 */
 	private boolean _ackReceived;
 
+	/*
+	 * ! \property DeviceManager::_ackCount
+	 * 
+	 * Number of command toggles received. The polling thread hands them out
+	 * to the requests in flight.
+	 */
+	private int _ackCount;
+
+	/*
+	 * ! \property DeviceManager::_ackCountServiced
+	 * 
+	 * Value of _ackCount the last time the requests in flight were updated.
+	 */
+	private int _ackCountServiced;
+
 	/*
 	 * ! \property DeviceManager::_eegRegisters
 	 * 
@@ -184,6 +210,81 @@ public class DeviceManager implements Runnable {
 	 */
 	private StarStimRegister[] _accRegisters;
 
+	/*
+	 * ! \property DeviceManager::_registerCache
+	 * 
+	 * Host side copy of the configuration registers, so that reads of known
+	 * registers do not go over the air.
+	 */
+	private RegisterShadowCache _registerCache;
+
+	/*
+	 * ! \property DeviceManager::_capabilityCache
+	 * 
+	 * What is known about the devices opened before, to reconnect faster.
+	 */
+	private DeviceCapabilityCache _capabilityCache;
+
+	/*
+	 * ! \property DeviceManager::_frameSink
+	 * 
+	 * Gives the frames parsed by _processData to _processFrame.
+	 */
+	private IFrameSink _frameSink;
+
+	/*
+	 * ! \property DeviceManager::_reconnectEngine
+	 * 
+	 * Opens the device again when the link is lost.
+	 */
+	private ReconnectEngine _reconnectEngine;
+
+	/*
+	 * ! \property DeviceManager::_linkBudget
+	 * 
+	 * Chooses the EEG encoding from the quality of the link, when enabled.
+	 */
+	private LinkBudgetController _linkBudget;
+
+	/*
+	 * ! \property DeviceManager::_capture
+	 * 
+	 * Capture of the bytes received from the device, null if none is running.
+	 */
+	private CaptureWriter _capture;
+
+	/*
+	 * ! \property DeviceManager::_writtenProfile
+	 * 
+	 * EEG and accelerometer registers written since the device was opened,
+	 * written again after a reconnection.
+	 */
+	private DeviceProfile _writtenProfile;
+
+	/*
+	 * ! \property DeviceManager::_isResumingStream
+	 * 
+	 * The link was lost while streaming. The next EEG frame goes on with the
+	 * timeline after the samples lost.
+	 */
+	private volatile boolean _isResumingStream;
+
+	/*
+	 * ! \property DeviceManager::_isRestoringLink
+	 * 
+	 * A reconnection is in progress. The EEG frames received meanwhile are
+	 * dropped, as the firmware version, and so the width of their stamp, is
+	 * not known yet.
+	 */
+	private volatile boolean _isRestoringLink;
+
+	/*
+	 * ! \property DeviceManager::_lastEEGFrameTime
+	 * 
+	 * System.currentTimeMillis of the last EEG frame received.
+	 */
+	private long _lastEEGFrameTime;
+
 	/*
 	 * ! \property DeviceManager::_threadResult
 	 * 
@@ -198,29 +299,30 @@ public class DeviceManager implements Runnable {
 	 * This is a boolean to control the polling loop. When set to false the
 	 * operation on the poolling loop is terminated.
 	 */
-	private boolean _terminatePollThread;
+	private volatile boolean _terminatePollThread;
 
 	/*
-	 * ! \property DeviceManager::_terminatePollThread
+	 * ! \property DeviceManager::_isRunningPollThread
 	 * 
-	 * This is a boolean to control the polling loop. When set to false the
-	 * operation on the poolling loop is terminated.
+	 * Informs whether the polling loop is running.
 	 */
-	private boolean _isRunningPollThread;
+	private volatile boolean _isRunningPollThread;
 	
 	/*
-	 * ! \property DeviceManager::_isPausedPollThread
+	 * ! \property DeviceManager::_commandQueue
 	 * 
-	 *  Informs whether Poll thread is paused
-	 */	
-	boolean _isPausedPollThread;
-	
+	 * Requests waiting to be sent by the polling thread. The polling thread
+	 * owns the device while it runs, so every request goes through here.
+	 */
+	private ConcurrentLinkedQueue<DeviceRequest> _commandQueue;
+
 	/*
-	 * ! \property DeviceManager::_pausePollThread
+	 * ! \property DeviceManager::_inFlightRequests
 	 * 
-	 *  Request thread to be paused
-	 */	
-	boolean _pausePollThread;
+	 * Requests sent by the polling thread that wait for the reply of the
+	 * device, in the order they were sent. Only used by the polling thread.
+	 */
+	private LinkedList<DeviceRequest> _inFlightRequests;
 	
 	/*
 	 * ! \property DeviceManager::_deviceStatus
@@ -344,11 +446,12 @@ public class DeviceManager implements Runnable {
 	private long _timeRequestFirstStimSample;
 
 	/*
-	 * ! \property DeviceManager::_currentTimestamp
+	 * ! \property DeviceManager::_timestampEngine
 	 * 
-	 * It keeps the currentTimestamp to be set to the received EEG samples.
+	 * It keeps the position of the EEG stream, from which the received EEG
+	 * samples get their timestamps.
 	 */
-	private long _currentTimestamp;
+	private TimestampEngine _timestampEngine;
 
 	/*
 	 * ! \property DeviceManager::_currentStimTimestamp
@@ -367,11 +470,44 @@ public class DeviceManager implements Runnable {
 	private int _currentEEGStamp;
 
 	/*
-	 * ! \property DeviceManager::_lastEEGData
+	 * ! \property DeviceManager::EEG_BLOCK_POOL_SIZE
+	 * 
+	 * Blocks of EEG samples kept for the frames, enough for the ones in the
+	 * ingest pipeline, the ones held by the sample ring and some more held by
+	 * the handler.
+	 */
+	private static final int EEG_BLOCK_POOL_SIZE = IngestPipeline.DEFAULT_CAPACITY + SampleBlockRing.DEFAULT_CAPACITY + 16;
+
+	/*
+	 * ! \property DeviceManager::_eegBlockPool
+	 * 
+	 * Blocks where the samples of each EEG frame, repeated ones included, are
+	 * decoded and given to the handler at once.
+	 */
+	private SampleBlockPool _eegBlockPool;
+
+	/*
+	 * ! \property DeviceManager::_eegDecoder
+	 * 
+	 * It decompresses and scales the EEG samples of each frame.
+	 */
+	private EEGDecoder _eegDecoder;
+
+	/*
+	 * ! \property DeviceManager::_ingest
+	 * 
+	 * Stages the EEG frames go through after being parsed: decoding,
+	 * timestamping and dispatching to the handler.
+	 */
+	private IngestPipeline _ingest;
+
+	/*
+	 * ! \property DeviceManager::_sampleRing
 	 * 
-	 * It keeps the last processed EEG sample.
+	 * Ring where the EEG blocks are published, after the handler, for the
+	 * consumers that read them on their own threads.
 	 */
-	private ChannelData _lastEEGData;
+	private SampleBlockRing _sampleRing;
 
 	/*
 	 * ! \property DeviceManager::_lastEEGDataReceived
@@ -424,10 +560,18 @@ public class DeviceManager implements Runnable {
 
 	/*
 	 * ! \property This boolean tells if the application is working on demo
-	 * mode.
+	 * mode. In demo mode openDevice talks to a StarStimSimulator through a
+	 * LoopbackTransport instead of the device.
 	 */
 	private boolean _isDemoMode;
 
+	/*
+	 * ! \property DeviceManager::_simulator
+	 * 
+	 * Simulated device used in demo mode, null until the first demo open.
+	 */
+	private StarStimSimulator _simulator;
+
 	/*
 	 * ! \property DeviceManager::_firmwareVersion
 	 * 
@@ -505,33 +649,51 @@ public class DeviceManager implements Runnable {
 		_firmwareVersion = 0;
 		_is1000SPS = 0;
 		_samplesPerBeacon = 1;
+		_eegBlockPool = new SampleBlockPool(EEG_BLOCK_POOL_SIZE);
 		_isaStimulationDevice = false;
 		_lookForStarStimFailed = false;
 		_isSampleRateEEG = false;
 
 
 		// Initialise thread variables
-		_isPausedPollThread = false;
-		_pausePollThread = false;		
 		_isRunningPollThread = false;
 		_terminatePollThread = false; 
+		_commandQueue = new ConcurrentLinkedQueue<DeviceRequest>();
+		_inFlightRequests = new LinkedList<DeviceRequest>();
 		// ------------------------------
 
 		_device = new RFCOMMDevice(activity, scanDiscoveryFinishedHandler);
 		_protocol = new StarStimProtocol( StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION );
-		_btManager = BluetoothManager.getInstance(activity, scanDiscoveryFinishedHandler);		
+		// Without Activity there is no Bluetooth, only the transports given
+		// through openDevice
+		_btManager = (activity != null) ? BluetoothManager.getInstance(activity, scanDiscoveryFinishedHandler) : null;
 		_enzoHandler = enzoHandler;
 		_activity      = activity;
 		_scanDiscoveryFinishedHandler = scanDiscoveryFinishedHandler;
 
 		// Initialise ArrayLists
-		_rxBuffer = new ArrayList<Byte>();
+		_rxBuffer = new byte[MAX_LENGTH_RX_BUFFER];
 		_eegRegisters  = new StarStimRegister[DeviceManager.EEG_NUM_REGS];
 		for(int i = 0; i < DeviceManager.EEG_NUM_REGS; i ++) _eegRegisters[i] = new StarStimRegister();
 		_stimRegisters = new StarStimRegister[DeviceManager.STM_NUM_REGS];
 		for(int i = 0; i < DeviceManager.STM_NUM_REGS; i ++) _stimRegisters[i] = new StarStimRegister();
 		_accRegisters  = new StarStimRegister[DeviceManager.ACCEL_NUM_REGS];
 		for(int i = 0; i < DeviceManager.ACCEL_NUM_REGS; i ++) _accRegisters[i] = new StarStimRegister();
+		_registerCache = new RegisterShadowCache();
+		_capabilityCache = new DeviceCapabilityCache();
+		_reconnectEngine = new ReconnectEngine(this);
+		_linkBudget = new LinkBudgetController(this);
+		_eegDecoder = new EEGDecoder();
+		_sampleRing = new SampleBlockRing(SampleBlockRing.DEFAULT_CAPACITY);
+		_ingest = new IngestPipeline(_eegDecoder, _enzoHandler, _sampleRing, IngestPipeline.DEFAULT_CAPACITY);
+		_frameSink = new IFrameSink() {
+			public void newFrame(StarStimData data) {
+				_processFrame(data);
+			}
+		};
+		_writtenProfile = new DeviceProfile();
+		_isResumingStream = false;
+		_isRestoringLink = false;
 
 		// _protocol.reset();
 		_isDevicePresent = false;
@@ -545,6 +707,7 @@ public class DeviceManager implements Runnable {
 		_countPacketsInPacket = 0;
 
 		_drifftClock = new DrifftLocalClockCalculator();
+		_timestampEngine = new TimestampEngine();
 
 		
 
@@ -572,6 +735,64 @@ public class DeviceManager implements Runnable {
 	 * is turned off or it is out of battery or it is out of range.
 	 */	
 	public OpenErrorTypes openDevice(String macAddress, boolean forcePairing) {
+		if (_isDemoMode)
+			return openDevice(macAddress, forcePairing, _startDemoDevice());
+		return openDevice(macAddress, forcePairing, TransportFactory.createForAddress(macAddress));
+	}
+
+	/*
+	 * ! Sets whether the next openDevice talks to a simulated device. The
+	 * simulator can be configured through getSimulator before opening.
+	 */
+	public void setDemoMode(boolean value) {
+		_isDemoMode = value;
+	}
+
+	/*
+	 * ! Indicates whether the device manager works on demo mode.
+	 */
+	public boolean isDemoMode() {
+		return _isDemoMode;
+	}
+
+	/*
+	 * ! Returns the simulated device of the demo mode, creating it if needed.
+	 */
+	public StarStimSimulator getSimulator() {
+		if (_simulator == null)
+			_simulator = new StarStimSimulator();
+		return _simulator;
+	}
+
+	/*
+	 * ! Starts the simulator on a new loopback pipe.
+	 * 
+	 * \return Host side of the pipe, to be opened as transport.
+	 */
+	private INICBluetooth _startDemoDevice() {
+		StarStimSimulator simulator = getSimulator();
+		simulator.stop();
+		LoopbackTransport loopback = new LoopbackTransport();
+		simulator.start(loopback.getDeviceInputStream(), loopback.getDeviceOutputStream());
+		return loopback;
+	}
+
+	/*
+	 * ! It performs the required operations to open and initialize the
+	 * hardware through the given transport.
+	 * 
+	 * \param address Address of the device for the transport. A Bluetooth mac
+	 * address, or "tcp://host:port", "file:///path", "loopback://name".
+	 * 
+	 * \param forcePairing see openDevice(String, boolean). Ignored by the
+	 * transports that are not Bluetooth.
+	 * 
+	 * \param transport INICBluetooth implementation used to reach the device.
+	 * Null selects the Bluetooth transport.
+	 * 
+	 * \return see openDevice(String, boolean)
+	 */	
+	public OpenErrorTypes openDevice(String address, boolean forcePairing, INICBluetooth transport) {
 
 		Calendar cal = Calendar.getInstance();
 		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
@@ -580,10 +801,24 @@ public class DeviceManager implements Runnable {
 //			return true;
 //		}
 
-		logger.info("Opening device ... " + macAddress , Logger.LOG_FILE_ON);
+		logger.info("Opening device ... " + address , Logger.LOG_FILE_ON);
+		_reconnectEngine.cancel();
+		_isResumingStream = false;
+		_isRestoringLink = false;
+		_writtenProfile = new DeviceProfile();
 		
+		_device.setTransport(transport);
+		boolean isBluetooth = _device.isBluetoothTransport();
+		String macAddress = isBluetooth ? address : TransportFactory.stripScheme(address);
+
+		// A device opened before is paired, there is no need to look for it
+		DeviceCapabilityCache.Entry known = forcePairing ? null : _capabilityCache.get(address);
+		boolean isKnown = (known != null && known.firmwareVersion > 0);
+		if (isKnown)
+			logger.info("DeviceManager::openDevice reconnecting to known device, firmware " + known.firmwareVersion, Logger.LOG_FILE_ON);
+
 		// We want to avoid pairing a device that is not visible
-		if ( !_isDevicePaired(macAddress)
+		if ( isBluetooth && !isKnown && !_isDevicePaired(macAddress)
 				&& (forcePairing || _isDeviceNotPaired(macAddress))) {
 			logger.info("DeviceManager::openDevice --> We do pair device", Logger.LOG_FILE_ON);
 			int result = _btManager.pairDevice(macAddress, null);
@@ -592,7 +827,7 @@ public class DeviceManager implements Runnable {
 			return OpenErrorTypes.ERROR_PAIRING_ON_PROGRESS;
 		}
 
-		if (_isDevicePaired(macAddress) || _isDeviceRemembered(macAddress)) {
+		if (!isBluetooth || isKnown || _isDevicePaired(macAddress) || _isDeviceRemembered(macAddress)) {
 			logger.info("_device.open started " + sdf.format(cal.getTime()), Logger.LOG_FILE_ON);
 			
 			RFCOMMDevice.errType errType = RFCOMMDevice.errType.ERR_DEVICE_NOT_OPENED;				
@@ -609,20 +844,40 @@ public class DeviceManager implements Runnable {
 
 				 _protocol.reset();
 				_drifftClock.reset(1000.0F);		
+				// Otherwise the width of the length field is detected again
+				_protocol.setLength2Bytes(isKnown && known.isLength2Bytes);
+				if (isKnown)
+				{
+					_firmwareVersion = known.firmwareVersion;
+					_is1000SPS       = known.is1000SPS;
+					_protocol.setFirmwareVersion(_firmwareVersion);
+					_isaStimulationDevice = known.isStimulationDevice;
+				}
+				_macAddress = address;
 				if ( _lookForStarStim() ){
 
 
-					_macAddress = macAddress;
 					_isOpen = true;
+					_capabilityCache.getOrCreate(address).lastConnected = System.currentTimeMillis();
 
 					if( ENABLE_POLLTHREAD ) _startPollThread();
-					logger.info("We do the _device.open-->is open (doFirmwareVersionBatteryRequest)", Logger.LOG_FILE_ON);
-					doFirmwareVersionBatteryRequest();
-					logger.info("We do doFirmwareVersionBatteryRequest", Logger.LOG_FILE_ON);
+					if (isKnown)
+					{
+						// The reply refreshes the cached values, no need to wait for it
+						logger.info("We do the _device.open-->is open (firmware version battery request queued)", Logger.LOG_FILE_ON);
+						_submitRequest(new DeviceRequest(StarStimProtocol.FIRMWARE_VERSION_BATTERY_FRAME));
+					}
+					else
+					{
+						logger.info("We do the _device.open-->is open (doFirmwareVersionBatteryRequest)", Logger.LOG_FILE_ON);
+						doFirmwareVersionBatteryRequest();
+						logger.info("We do doFirmwareVersionBatteryRequest", Logger.LOG_FILE_ON);
+					}
 					// _doBatteryMeasurement();
 					// qDebug()<<"We do a Battery request";
 					return OpenErrorTypes.ERROR_NO_ERROR;
 				} else {
+					_macAddress = "";
 					logger.info("ERROR _lookForStarStim() failed", Logger.LOG_FILE_ON);
 					try {
 						_device.close();
@@ -655,9 +910,13 @@ public class DeviceManager implements Runnable {
 	 */
 	public boolean closeDevice(boolean isSDCardRecording) {
 
+		_reconnectEngine.cancel();
+		_isResumingStream = false;
+		_isRestoringLink = false;
 		_macAddress = "";
 		
 		logger.info("Closing device ...", Logger.LOG_FILE_ON);
+		_registerCache.invalidateAll();
 		
 		if (isSDCardRecording) // I don't want to stop anything else
 			return true;
@@ -675,14 +934,14 @@ public class DeviceManager implements Runnable {
 					logger.info("Stopping _poll thread", Logger.LOG_FILE_ON);
 					_stopPollThread();					
 				}
-				ArrayList<Byte> command = StarStimProtocol.buildStopBeaconRequest();
-				if( _device.write(command, command.size() ) < 0 ){
+				byte[] command = StarStimProtocol.STOP_BEACON_FRAME;
+				if( _device.write(command, 0, command.length ) < 0 ){
 					return false;
 				}
 				
 	
-				 ArrayList<Byte> txBuffer = StarStimProtocol.buildStopBeaconRequest();			 
-			     if (_device.write(txBuffer, txBuffer.size()) < 0)
+				 byte[] txBuffer = StarStimProtocol.STOP_BEACON_FRAME;
+			     if (_device.write(txBuffer, 0, txBuffer.length) < 0)
 			     {
 			    	 return false;
 				 }
@@ -692,6 +951,10 @@ public class DeviceManager implements Runnable {
 			 // Close device
 		     logger.info("Calling to close BT socket ", Logger.LOG_FILE_ON);
 			 errType = _device.close();
+			 // The frames already parsed reach the handler
+			 _ingest.stop();
+			 if (_isDemoMode && _simulator != null)
+				 _simulator.stop();
 		} catch (IOException e) {
 			e.printStackTrace();					
 			logger.info( Logger.stack2string(e) , Logger.LOG_FILE_ON);
@@ -715,7 +978,7 @@ public class DeviceManager implements Runnable {
 	public boolean removePairedDevice(String macAddress) {
 		logger.info("DeviceManager::removePairedDevice" + macAddress, Logger.LOG_FILE_ON);
 
-		if (_isDevicePaired(macAddress) || _isDeviceRemembered(macAddress)) {
+		if (_btManager != null && (_isDevicePaired(macAddress) || _isDeviceRemembered(macAddress))) {
 			int result = _btManager.removeDevice(macAddress);
 			if (result == 1)
 				return true;
@@ -760,26 +1023,12 @@ public class DeviceManager implements Runnable {
 	 * false otherwise.
 	 */
 	public boolean startStreaming (){
-	    if (_isDemoMode)
-	    {
-	        //return _demoModeStartStreaming();
-	    }
-
-	    ArrayList<Byte> txBuffer = StarStimProtocol.buildStartEEGFrame();	    
+	    byte[] txBuffer = StarStimProtocol.START_EEG_FRAME;
 
 	    _waitingFirstEEGSample = true;
 	    _timeRequestFirstEEGSample = System.currentTimeMillis();
 	    
-	    if( ENABLE_POLLTHREAD ){
-		    //logger.info("_pausePollThread call", Logger.LOG_FILE_ON);
-		    _pausePollThread();
-	    }
-	    boolean result = _sendRequest(txBuffer);
-	    if( ENABLE_POLLTHREAD ){
-		    //logger.info("_resumePollThread call", Logger.LOG_FILE_ON);
-		    _resumePollThread();	    	
-	    }
-	    return result;
+	    return _sendAndWait(txBuffer);
 	    /* THIS WAS THE PREVIOUS IMPLEMENATATION
 		_stopPollThread();	     
 	    if (!_sendRequest(txBuffer))
@@ -837,14 +1086,12 @@ public class DeviceManager implements Runnable {
 
 	    // Create Frame to stopEEG
 	    logger.info("Sending Stop Polling EEG ...", Logger.LOG_FILE_ON);
-	    ArrayList<Byte> txBuffer = StarStimProtocol.buildStopEEGFrame();
+	    byte[] txBuffer = StarStimProtocol.STOP_EEG_FRAME;
 
 	    boolean result = false;
 	    if( !isClosing ){
-	    	if( ENABLE_POLLTHREAD ) _pausePollThread();
 		    _isOnlineStimulationRunning = false;	    
-		    result = _sendRequest(txBuffer);
-		    if( ENABLE_POLLTHREAD ) _resumePollThread();	    	
+		    result = _sendAndWait(txBuffer);
 	    }else{
 	    	if( ENABLE_POLLTHREAD ) _stopPollThread();
 		    _isOnlineStimulationRunning = false;	    
@@ -957,9 +1204,36 @@ public class DeviceManager implements Runnable {
 	 * \return True if the register has been read, false otherwise.
 	 */
 	 public boolean readRegister (StarStimRegisterFamily family, Byte address, Byte[] reg, Byte length){
-	    if (_isDemoMode)
-	        return false;
+		 DeviceRequest request = readRegisterAsync(family, address, length);
+		 if (!_waitRequest(request))
+		 {
+			 logger.info("DeviceManager::readRegister failed because the acknowledgment was not received"
+					 , Logger.LOG_FILE_ON);
+			 return false;
+		 }
+		 byte[] values = request.values();
+		 for (int i=0;i<length;i++)
+		 {
+			 reg[i] = values[i];
+		 }
+		 return true;
+	 }
 
+	/*
+	 * ! It reads a configuration register without waiting for the reply.
+	 * Several requests are sent to the device without waiting for the previous
+	 * ones, so a sequence of reads and writes costs about a single round trip.
+	 * 
+	 * \param family Identification of the family of registers to be read.
+	 * 
+	 * \param address Address of the register within the family.
+	 * 
+	 * \param length Number of consecutive register to be read
+	 * 
+	 * \return The request. Its result tells whether the registers have been
+	 * read, and DeviceRequest::values returns their values.
+	 */
+	 public DeviceRequest readRegisterAsync (StarStimRegisterFamily family, byte address, byte length){
 	    ArrayList<Byte> txBuffer;
 	    StarStimRegister[] ptrRegister;
 	    switch (family)
@@ -978,81 +1252,23 @@ public class DeviceManager implements Runnable {
 	        break;
 	    default:		
 	    	logger.info( "invalid address", Logger.LOG_FILE_ON );
-        return false;
-    }
+	    	return DeviceRequest.failed();
+	    }
 
-///////////////////////////////////
-//String str = "";
-//for( Byte b: txBuffer){
-//str += b + " ";
-//}
-//logger.info("Value: " +  str, Logger.LOG_FILE_ON);
-///////////////////////////////////	 
-		    
-		    if (txBuffer.size() <= 0)
-		    {		
-		        logger.info ( "error building request", Logger.LOG_FILE_ON );
-		        return false;
-		    }
-		    
-		    if( ENABLE_POLLTHREAD ){
-			    //logger.info("Pausing polling thread ...", Logger.LOG_FILE_ON);
-			    _pausePollThread();		    	
-		    }
-		    
-		    if (!_sendRequest(txBuffer))
-		    {
-		    	if( ENABLE_POLLTHREAD ) _resumePollThread();
-		        logger.info( "error sending request", Logger.LOG_FILE_ON );
-		        return false;
-		    }
-		    // wait for response
-		    int retries = 0;
-		    while (!ptrRegister[address].updated() && (retries++ < 30))
-		    {
-		        //logger.info("DeviceManager::readRegister " + retries, Logger.LOG_FILE_ON  );
-		        if (_processData(MAX_LENGTH_RX_BUFFER) < 0)
-		        {	
-		        	if( ENABLE_POLLTHREAD ) _resumePollThread();
-		            return false;
-		        }
-		    }
-		    if( ENABLE_POLLTHREAD ) _resumePollThread();
-		    
-/*
-		    if (!_sendRequest(txBuffer))
-		    {
-		    	_resumePollThread();
-		        logger.info( "error sending request", Logger.LOG_FILE_ON );
-		        return false;
-		    }
-		    // wait for response
-		    int retries = 0;
-		    while (!ptrRegister[address].updated() && (retries++ < 30))
-		    {
-		        //logger.info("DeviceManager::readRegister " + retries, Logger.LOG_FILE_ON  );
-		        if (_processData(MAX_LENGTH_RX_BUFFER) < 0)
-		        {	
-		            _resumePollThread();
-		            return false;
-		        }
-		    }
-		    _resumePollThread();
-/**/		    
-		    
-		    
-		    if (!ptrRegister[address].updated())
-		    {
-		    	logger.info("DeviceManager::readRegister failed because the acknowledgment was not received " + retries
-		    					, Logger.LOG_FILE_ON);
-		        return false;
-		    }
-		    for (int i=0;i<length;i++)
-		    {
-		        reg[i] = (byte) (ptrRegister[address+i].value() & 0xFF);
-		    }
-
-		    return true;
+	    if (txBuffer.size() <= 0)
+	    {		
+	        logger.info ( "error building request", Logger.LOG_FILE_ON );
+	        return DeviceRequest.failed();
+	    }
+
+	    byte[] cached = _registerCache.get(family, address & 0xFF, length & 0xFF);
+	    if (cached != null)
+	    	return DeviceRequest.completed(cached);
+
+	    // The polling thread sends it and completes it on the register update
+	    DeviceRequest request = new DeviceRequest(txBuffer, ptrRegister, address & 0xFF, length & 0xFF);
+	    request.shadow(_registerCache, family, address & 0xFF, null);
+	    return _submitRequest(request);
 	 }
 
 	/*
@@ -1086,11 +1302,25 @@ public class DeviceManager implements Runnable {
 	 * \return True if the register has been written, false otherwise.
 	 */
 	public boolean writeRegister (StarStimRegisterFamily family, byte address, Byte[] value, byte length){
-	    if (_isDemoMode)
-	    {
-	        return false;
-	    }
+	    return _waitRequest(writeRegisterAsync(family, address, value, length));
+	}
 
+	/*
+	 * ! It writes a set of configuration register with consecutive addresses
+	 * without waiting for the acknowledge. See DeviceManager::readRegisterAsync.
+	 * 
+	 * \param family Identification of the family of registers to be writen.
+	 * 
+	 * \param address Address of the register within the family.
+	 * 
+	 * \param value Vector with the values to be written.
+	 * 
+	 * \param length Length of the value vector.
+	 * 
+	 * \return The request. Its result tells whether the registers have been
+	 * written.
+	 */
+	public DeviceRequest writeRegisterAsync (StarStimRegisterFamily family, byte address, Byte[] value, byte length){
 	    ArrayList<Byte> txBuffer;
 	    switch (family)
 	    {
@@ -1108,12 +1338,12 @@ public class DeviceManager implements Runnable {
 	        break;
 	    default:
 	        logger.info( "invalid address", Logger.LOG_FILE_ON);
-	        return false;
+	        return DeviceRequest.failed();
 	    }
 	    
 	   	    
 	    if (txBuffer.size() <= 0){
-	        return false;
+	        return DeviceRequest.failed();
 	    }
 
 ///////////////////////////////////
@@ -1125,135 +1355,380 @@ public class DeviceManager implements Runnable {
 ///////////////////////////////////	     
 
 	    
-	    if( ENABLE_POLLTHREAD ){
-		    //logger.info("_pausePollThread call", Logger.LOG_FILE_ON);
-		    _pausePollThread();
-	    }
-	    boolean result = _sendRequest(txBuffer);
-	    if( ENABLE_POLLTHREAD ){
-		    //logger.info("_resumePollThread call", Logger.LOG_FILE_ON);
-		    _resumePollThread();	    	
+	    // Write-through, the cache is updated once the device acknowledges it
+	    byte[] written = new byte[length & 0xFF];
+	    for (int i = 0; i < written.length; i++)
+	    	written[i] = value[i];
+	    // Written again after a reconnection, except the stimulation and SD
+	    // card registers as writing them starts actions
+	    if (family == StarStimRegisterFamily.EEG_REGISTERS || family == StarStimRegisterFamily.ACCELEROMETER_REGISTERS)
+	    {
+	    	for (int i = 0; i < written.length; i++)
+	    		_writtenProfile.set(family, (address & 0xFF) + i, written[i]);
 	    }
-	    return result;    
+	    DeviceRequest request = new DeviceRequest(txBuffer);
+	    request.shadow(_registerCache, family, address & 0xFF, written);
+	    return _submitRequest(request);
 	}
 
 	/*
-	 * ! This method sets the stimulation mode. Depending on the selected mode
-	 * the signal that is set in the stimulation electrodes is built by the
-	 * device or it is sent online by the API. In that case the signal shall be
-	 * provided in advance through the DeviceManager::setStimulationSignal
-	 * method.
-	 * 
-	 * \param mode Stimulation mode
+	 * ! Host side copy of the configuration registers. Use it to set how long
+	 * each family is trusted or to look at the hit and miss counters.
 	 */
-	// void setStimulationMode (StimulationMode mode);
+	public RegisterShadowCache getRegisterCache(){
+		return _registerCache;
+	}
 
 	/*
-	 * ! This method provides the file that has the signals that will be sent to
-	 * the device when the stimulation mode is configured to be online.
-	 * 
-	 * \param fileName Name of the file that contents the signals that will be
-	 * sent to the device in order to perform the online stimulation. The file
-	 * shall have tab-separated values where the columns have the values for
-	 * every channel. The channels that are not sent shall have the asterisk
-	 * ('*') character instead of the sample value.
+	 * ! What is known about the devices opened before.
 	 */
-	// void setStimulationSignal (QString fileName);
+	public DeviceCapabilityCache getCapabilityCache(){
+		return _capabilityCache;
+	}
 
 	/*
-	 * ! This method sets the number of recording channels that the device has.
-	 * 
-	 * \param channels Integer that indicates the number of channels.
+	 * ! Registers of the DeviceProfiles applied to the open device, to be
+	 * applied again after a reconnection. Null if none.
 	 */
-	public void setNumOfChannels(int value){
-		_numOfChannels = value;
+	public DeviceProfile getLastProfile(){
+		DeviceCapabilityCache.Entry entry = _capabilityCache.get(_macAddress);
+		return (entry != null) ? entry.lastProfile : null;
 	}
 
 	/*
-	 * ! This method gets the number of recording channels that the device has.
-	 * 
-	 * \param Number of channels.
+	 * ! Called by DeviceProfile::apply to remember the profile of the device.
+	 * It is merged into the profiles applied before, so applying a profile
+	 * with a few registers does not forget the rest.
 	 */
-	public int getNumOfChannels(){
-		return _numOfChannels;
+	void profileApplied(DeviceProfile profile){
+		if (_macAddress.length() == 0 || profile == _writtenProfile) return;
+		DeviceCapabilityCache.Entry entry = _capabilityCache.getOrCreate(_macAddress);
+		if (entry.lastProfile == null) entry.lastProfile = new DeviceProfile();
+		entry.lastProfile.merge(profile);
 	}
 
 	/*
-	 * ! This method provides the Bluetooth mac address of the device.
-	 * 
-	 * \return Pointer to the vector that contains the Bluetooth mac address of
-	 * the device. macAddress[0] is the byte on the right from the mac address
-	 * label on the device.
+	 * ! Engine that opens the device again when the link is lost. Use it to
+	 * disable the automatic reconnection or to look at the time to recover.
 	 */
-	public String getMacAddress (){
-		return _macAddress;
+	public ReconnectEngine getReconnectEngine(){
+		return _reconnectEngine;
 	}
 
 	/*
-	 * ! This static method performs a scan of the neigborhood for on-line
-	 * enzo2G/StarStim devices. The result of the scannig can be obtained from
-	 * the DeviceManager::getNumberOfNotPairedDevices() and
-	 * DeviceManager::getPairedDeviceInfo() methods.
-	 * 
-	 * \return True if the scanning has been performed successfully, false
-	 * otherwise
+	 * ! Controller of the EEG encoding. Enable it to let it pick the
+	 * compression and samples per beacon the link can carry.
 	 */
-	public static boolean scanBT(Activity activity, IScanDiscoveryFinishedHandler _scanDiscoveryFinished) {
-		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, _scanDiscoveryFinished);
-		Logger logger = Logger.getInstance();
-
-		Calendar cal = Calendar.getInstance();
-		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-
-		int result = 0;
-		logger.info("DeviceManager::scanBT starts " + sdf.format(cal.getTime()), Logger.LOG_FILE_ON);
-		result = _wrapper.scanNeighborhood();
-		
-/////////////////////////////////////////////////////////
-//		SystemClock.sleep(1000);
-//		while( (_wrapper.isScanOngoing() == true) );
-/////////////////////////////////////////////////////////
-		
-		logger.info("DeviceManager::scanBT finishes " + sdf.format(cal.getTime()), Logger.LOG_FILE_ON);
-		return (result > 0);
+	public LinkBudgetController getLinkBudgetController(){
+		return _linkBudget;
 	}
 
 	/*
-	 * ! This static method provides the number of enzo3G/StarStim devices
-	 * that are already paired with local Bluetooth stack.
-	 * 
-	 * \return Number of already paired devices on the system.
+	 * ! Stages of the EEG frames after the parser. Use it to move the
+	 * decoding and the calls to the handler to other threads, or to look at
+	 * the throughput and queue depth of each stage.
 	 */
-	public static int getNumberOfPairedDevices(Activity activity, IScanDiscoveryFinishedHandler scanDiscoveryFinished) {
-		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, scanDiscoveryFinished);
-
-
-		int ret = 0;
-
-		int nPairedDevices = _wrapper.getNumPairedDevices();
-		for (int i = 0; i < nPairedDevices; i++) {
-			Reference<String> deviceName = new Reference<String>("");
-			Reference<String> macAddress = new Reference<String>("");
-			if (_wrapper.getInfoPairedDevice(i, deviceName, macAddress) > 0) {
-				if (deviceName.get().contains(DEVICE_NAME)) {
-					ret++;
-				}
-
-			}
-
-		}
+	public IngestPipeline getIngestPipeline(){
+		return _ingest;
+	}
 
-		return ret;
+	/*
+	 * ! Ring of the EEG blocks, to attach consumers that run at their own pace
+	 * besides the handler: recording, network outlets, analytics...
+	 */
+	public SampleBlockRing getSampleRing(){
+		return _sampleRing;
 	}
 
 	/*
-	 * ! This static method provides the number of enzo3G/StarStim devices
-	 * that are remembered by local Bluetooth stack.
+	 * ! It starts recording the bytes received from the device, with the time
+	 * they were received, into the segments prefix-0000.cap, prefix-0001.cap...
+	 * The capture survives reconnections and can be replayed with the
+	 * "capture://prefix" address.
 	 * 
-	 * \return Number of already paired devices on the system.
+	 * \param prefix Path of the segments, without the index and extension.
+	 * 
+	 * \param segmentLength Length of each segment, in bytes.
+	 * 
+	 * \param maxSegments Segments kept, the older ones are deleted.
+	 * 
+	 * \return True if the capture started.
 	 */
-	public static int getNumberOfRememberedDevices(Activity activity, IScanDiscoveryFinishedHandler scanDiscoveryFinished) {
-		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, scanDiscoveryFinished);
+	public synchronized boolean startCapture(String prefix, int segmentLength, int maxSegments){
+		stopCapture();
+		try {
+			_capture = new CaptureWriter(prefix, segmentLength, maxSegments);
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+			return false;
+		}
+		_device.setCapture(_capture);
+		logger.info("DeviceManager::startCapture " + prefix, Logger.LOG_FILE_ON);
+		return true;
+	}
+
+	public boolean startCapture(String prefix){
+		return startCapture(prefix, CaptureWriter.DEFAULT_SEGMENT_LENGTH, CaptureWriter.DEFAULT_MAX_SEGMENTS);
+	}
+
+	/*
+	 * ! It stops the capture started with startCapture, if any.
+	 */
+	public synchronized void stopCapture(){
+		if (_capture == null) return;
+		_device.setCapture(null);
+		_capture.close();
+		_capture = null;
+	}
+
+	/*
+	 * ! Capture running, null if none.
+	 */
+	public synchronized CaptureWriter getCapture(){
+		return _capture;
+	}
+
+	/*
+	 * ! Called by the ReconnectEngine to open again the device whose link
+	 * was lost. The socket is opened with the same transport, the beacon is
+	 * started, the EEG and accelerometer registers written since the device
+	 * was opened are written again and the streaming is resumed.
+	 * 
+	 * \param resumeStreaming whether the EEG streaming has to be started
+	 * again
+	 * 
+	 * \return True if the device is open again.
+	 */
+	boolean reconnect(boolean resumeStreaming){
+		String address = _macAddress;
+		if (!_isOpen || address.length() == 0)
+			return false;
+		logger.info("DeviceManager::reconnect " + address, Logger.LOG_FILE_ON);
+		_isResumingStream = resumeStreaming;
+		_isRestoringLink = true;
+
+		// The polling thread has already finished, as it reported the loss
+		_joinPollThread();
+		RFCOMMDevice.errType errType = RFCOMMDevice.errType.ERR_DEVICE_NOT_OPENED;
+		try {
+			_device.close();
+			errType = _device.open(_device.isBluetoothTransport() ? address : TransportFactory.stripScheme(address));
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+		}
+		if (errType != RFCOMMDevice.errType.ERR_NO_ERROR)
+		{
+			_isRestoringLink = false;
+			return false;
+		}
+		// The application may have cancelled the recovery or closed the
+		// device while the socket was being opened
+		if (_reconnectEngine.isCancelled() || !_isOpen)
+		{
+			logger.info("DeviceManager::reconnect cancelled", Logger.LOG_FILE_ON);
+			_abortReconnect(false);
+			return false;
+		}
+
+		// The parser starts again. The width of the stamps is known once the
+		// device reports its firmware, as on the first open
+		boolean isLength2Bytes = _protocol.isLength2Bytes();
+		_protocol.reset();
+		_protocol.setLength2Bytes(isLength2Bytes);
+		if (!_lookForStarStim())
+		{
+			logger.info("DeviceManager::reconnect _lookForStarStim() failed", Logger.LOG_FILE_ON);
+			_abortReconnect(false);
+			return false;
+		}
+		_capabilityCache.getOrCreate(address).lastConnected = System.currentTimeMillis();
+		if( ENABLE_POLLTHREAD ) _startPollThread();
+
+		if (!_sendAndWait(StarStimProtocol.FIRMWARE_VERSION_BATTERY_FRAME))
+		{
+			logger.info("DeviceManager::reconnect firmware version not received", Logger.LOG_FILE_ON);
+			_abortReconnect(ENABLE_POLLTHREAD);
+			return false;
+		}
+		// The firmware reply sets the multiple sample mode of the parser
+		// from the 1000 SPS flag, so the written mode is set again
+		_restoreParserSettings();
+		_isRestoringLink = false;
+		if (!_writtenProfile.apply(this))
+			logger.info("DeviceManager::reconnect registers not restored", Logger.LOG_FILE_ON);
+
+		// The timeline goes on from the last sample, see _resumeGapSamples
+		if (resumeStreaming)
+		{
+			if (!_sendAndWait(StarStimProtocol.START_EEG_FRAME))
+			{
+				logger.info("DeviceManager::reconnect EEG streaming not started", Logger.LOG_FILE_ON);
+				_abortReconnect(ENABLE_POLLTHREAD);
+				return false;
+			}
+		}
+		if( _enzoHandler != null)
+			_enzoHandler.stopBlinking();
+		return true;
+	}
+
+	/*
+	 * ! Closes the device opened by a failed reconnect, so that the next
+	 * attempt starts from a closed socket.
+	 * 
+	 * \param stopPollThread whether the polling thread was started
+	 */
+	private void _abortReconnect(boolean stopPollThread){
+		_isRestoringLink = false;
+		if (stopPollThread) _stopPollThread();
+		try {
+			_device.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+		}
+	}
+
+	/*
+	 * ! Sets again in the parser the multiple sample mode and the
+	 * compression written to the device, which the reset of the parser and
+	 * the firmware reply do not keep.
+	 */
+	private void _restoreParserSettings(){
+		int multipleSample = _writtenProfile.get(StarStimRegisterFamily.EEG_REGISTERS,
+				DennisRegisters.EEG_MULTISAMPLE_MODE_ADDR);
+		if (multipleSample != DeviceProfile.NOT_SET)
+			_protocol.multipleSample(multipleSample);
+		int compression = _writtenProfile.get(StarStimRegisterFamily.EEG_REGISTERS,
+				DennisRegisters.EEG_COMPRESSION_TYPE_ADDR);
+		if (compression == DeviceProfile.NOT_SET)
+			return;
+		for (StarStimProtocol.EEGCompressionType type : StarStimProtocol.EEGCompressionType.values())
+		{
+			if (type.getNumVal() == compression)
+				_protocol.eegCompressionType(type);
+		}
+	}
+
+	/*
+	 * ! This method sets the stimulation mode. Depending on the selected mode
+	 * the signal that is set in the stimulation electrodes is built by the
+	 * device or it is sent online by the API. In that case the signal shall be
+	 * provided in advance through the DeviceManager::setStimulationSignal
+	 * method.
+	 * 
+	 * \param mode Stimulation mode
+	 */
+	// void setStimulationMode (StimulationMode mode);
+
+	/*
+	 * ! This method provides the file that has the signals that will be sent to
+	 * the device when the stimulation mode is configured to be online.
+	 * 
+	 * \param fileName Name of the file that contents the signals that will be
+	 * sent to the device in order to perform the online stimulation. The file
+	 * shall have tab-separated values where the columns have the values for
+	 * every channel. The channels that are not sent shall have the asterisk
+	 * ('*') character instead of the sample value.
+	 */
+	// void setStimulationSignal (QString fileName);
+
+	/*
+	 * ! This method sets the number of recording channels that the device has.
+	 * 
+	 * \param channels Integer that indicates the number of channels.
+	 */
+	public void setNumOfChannels(int value){
+		_numOfChannels = value;
+	}
+
+	/*
+	 * ! This method gets the number of recording channels that the device has.
+	 * 
+	 * \param Number of channels.
+	 */
+	public int getNumOfChannels(){
+		return _numOfChannels;
+	}
+
+	/*
+	 * ! This method provides the Bluetooth mac address of the device.
+	 * 
+	 * \return Pointer to the vector that contains the Bluetooth mac address of
+	 * the device. macAddress[0] is the byte on the right from the mac address
+	 * label on the device.
+	 */
+	public String getMacAddress (){
+		return _macAddress;
+	}
+
+	/*
+	 * ! This static method performs a scan of the neigborhood for on-line
+	 * enzo2G/StarStim devices. The result of the scannig can be obtained from
+	 * the DeviceManager::getNumberOfNotPairedDevices() and
+	 * DeviceManager::getPairedDeviceInfo() methods.
+	 * 
+	 * \return True if the scanning has been performed successfully, false
+	 * otherwise
+	 */
+	public static boolean scanBT(Activity activity, IScanDiscoveryFinishedHandler _scanDiscoveryFinished) {
+		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, _scanDiscoveryFinished);
+		Logger logger = Logger.getInstance();
+
+		Calendar cal = Calendar.getInstance();
+		SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+
+		int result = 0;
+		logger.info("DeviceManager::scanBT starts " + sdf.format(cal.getTime()), Logger.LOG_FILE_ON);
+		result = _wrapper.scanNeighborhood();
+		
+/////////////////////////////////////////////////////////
+//		SystemClock.sleep(1000);
+//		while( (_wrapper.isScanOngoing() == true) );
+/////////////////////////////////////////////////////////
+		
+		logger.info("DeviceManager::scanBT finishes " + sdf.format(cal.getTime()), Logger.LOG_FILE_ON);
+		return (result > 0);
+	}
+
+	/*
+	 * ! This static method provides the number of enzo3G/StarStim devices
+	 * that are already paired with local Bluetooth stack.
+	 * 
+	 * \return Number of already paired devices on the system.
+	 */
+	public static int getNumberOfPairedDevices(Activity activity, IScanDiscoveryFinishedHandler scanDiscoveryFinished) {
+		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, scanDiscoveryFinished);
+
+
+		int ret = 0;
+
+		int nPairedDevices = _wrapper.getNumPairedDevices();
+		for (int i = 0; i < nPairedDevices; i++) {
+			Reference<String> deviceName = new Reference<String>("");
+			Reference<String> macAddress = new Reference<String>("");
+			if (_wrapper.getInfoPairedDevice(i, deviceName, macAddress) > 0) {
+				if (deviceName.get().contains(DEVICE_NAME)) {
+					ret++;
+				}
+
+			}
+
+		}
+
+		return ret;
+	}
+
+	/*
+	 * ! This static method provides the number of enzo3G/StarStim devices
+	 * that are remembered by local Bluetooth stack.
+	 * 
+	 * \return Number of already paired devices on the system.
+	 */
+	public static int getNumberOfRememberedDevices(Activity activity, IScanDiscoveryFinishedHandler scanDiscoveryFinished) {
+		BluetoothManager _wrapper = BluetoothManager.getInstance(activity, scanDiscoveryFinished);
 		Logger logger = Logger.getInstance();
 
 
@@ -1551,15 +2026,12 @@ public class DeviceManager implements Runnable {
 	 */
 	public boolean doFirmwareVersionRequest(){
 	    //QByteArray txBuffer = StarStimProtocol::buildFirmwareVersionFrame();
-		ArrayList<Byte> txBuffer = StarStimProtocol.buildFirmwareVersionFrame();
-	    _stopPollThread();
-	    if (!_sendRequest(txBuffer))
+		byte[] txBuffer = StarStimProtocol.FIRMWARE_VERSION_FRAME;
+	    if (!_sendAndWait(txBuffer))
 	    {	
-	        logger.info( "error sending firmware version battery request" , Logger.LOG_FILE_ON);
-	        _startPollThread();
+	        logger.info( "error sending firmware version request" , Logger.LOG_FILE_ON);
 	        return false;
 	    }
-	    _startPollThread();
 	    return true;
 	}
 
@@ -1572,12 +2044,9 @@ public class DeviceManager implements Runnable {
 	 */
 	public boolean doFirmwareVersionBatteryRequest(){				
 		
-		ArrayList<Byte> txBuffer = StarStimProtocol.buildFirmwareVersionBatteryFrame();		
-		if( ENABLE_POLLTHREAD ) _pausePollThread();
+		byte[] txBuffer = StarStimProtocol.FIRMWARE_VERSION_BATTERY_FRAME;
 	    _isOnlineStimulationRunning = false;	    
-	    boolean result = _sendRequest(txBuffer);
-	    if( ENABLE_POLLTHREAD ) _resumePollThread();	
-		return result;
+		return _sendAndWait(txBuffer);
 		
 		/* THIS IS THE PREVIOUS IMPLEMENTATION
 	    _stopPollThread();
@@ -1641,6 +2110,29 @@ public class DeviceManager implements Runnable {
 	    return _sampleRateCorrector.getActualSampleRate();
 	}
 
+	/*
+	 * ! It returns the engine that timestamps the EEG samples, with its
+	 * sample rate and the correction of the clock drift.
+	 */
+	public TimestampEngine getTimestampEngine(){
+	    return _timestampEngine;
+	}
+
+	/*
+	 * ! Sample rate of the EEG stream, from the streaming rate written to the
+	 * device. When none or an unknown one was written the device streams at
+	 * its highest rate: 1000 SPS for the 1000SPS devices and 500 SPS for the
+	 * rest.
+	 */
+	private double _eegSampleRate(){
+	    int rate = _writtenProfile.get(StarStimRegisterFamily.EEG_REGISTERS, DennisRegisters.EEG_STREAMING_RATE_ADDR);
+	    if (rate == DennisRegisters.EEG_STREAMING_RATE_500SPS) return 500.0;
+	    if (rate == DennisRegisters.EEG_STREAMING_RATE_250SPS) return 250.0;
+	    if (rate == DennisRegisters.EEG_STREAMING_RATE_125SPS) return 125.0;
+	    if (rate == DennisRegisters.EEG_STREAMING_RATE_75SPS) return 75.0;
+	    return (_is1000SPS == 1) ? 1000.0 : 500.0;
+	}
+
 	public boolean isAStimulationDevice(){
 	    logger.info( "DeviceManager::_isaStimulationDevice" + _isaStimulationDevice, Logger.LOG_FILE_ON);
 	    return _isaStimulationDevice;
@@ -1649,6 +2141,8 @@ public class DeviceManager implements Runnable {
 	public void setIsStarStim(boolean value){
 	    logger.info(  "_isaStimulationDevice to " + value , Logger.LOG_FILE_ON);
 	    _isaStimulationDevice=value;
+	    if (_macAddress.length() > 0)
+	    	_capabilityCache.getOrCreate(_macAddress).isStimulationDevice = value;
 	}
 
 	/*
@@ -1766,8 +2260,8 @@ public class DeviceManager implements Runnable {
 
 		// Send StartBeacon Request
 		try{
-			ArrayList<Byte> txBuffer = StarStimProtocol.buildStartBeaconRequest();		
-			if (_device.write(txBuffer, txBuffer.size()) < 0) return false;
+			byte[] txBuffer = StarStimProtocol.START_BEACON_FRAME;
+			if (_device.write(txBuffer, 0, txBuffer.length) < 0) return false;
 		} catch (IOException e) {
 			e.printStackTrace();					
 			logger.info( Logger.stack2string(e) , Logger.LOG_FILE_ON);
@@ -1819,9 +2313,8 @@ public class DeviceManager implements Runnable {
 					 MAX_LENGTH_RX_BUFFER : nBytesToRead;
 
 			 //assert(_rxBuffer!=null);
-			 _rxBuffer.clear();
 			 try {
-				nBytesRead = _device.read(_rxBuffer, nBytesToRead);
+				nBytesRead = _device.read(_rxBuffer, 0, nBytesToRead);
 			} catch (IOException e) {
 				e.printStackTrace();
 				logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
@@ -1844,19 +2337,19 @@ public class DeviceManager implements Runnable {
 
 			 
 			 // NOTE: Keep it for debug purposes
-			 String aux = "Frame contents: ";
-			 for (int i = 0; i < nBytesRead; i++){
-
-				 if( (i + 2) < _rxBuffer.size()){
-				 //if( nBytesRead > 2 ){
-					 // Detect SOF
-					 if( _rxBuffer.get(i) == 83 && _rxBuffer.get(i+1) == 79 && _rxBuffer.get(i+2) == 70 ) aux += "| ";
-				 }
-
-				 //aux += String.format("%02X ",_rxBuffer.get(i) );
-				 aux += (_rxBuffer.get(i)&0xFF) + " ";
-
-			 }
+//			 String aux = "Frame contents: ";
+//			 for (int i = 0; i < nBytesRead; i++){
+//
+//				 if( (i + 2) < nBytesRead){
+//				 //if( nBytesRead > 2 ){
+//					 // Detect SOF
+//					 if( _rxBuffer[i] == 83 && _rxBuffer[i+1] == 79 && _rxBuffer[i+2] == 70 ) aux += "| ";
+//				 }
+//
+//				 //aux += String.format("%02X ",_rxBuffer[i] );
+//				 aux += (_rxBuffer[i]&0xFF) + " ";
+//
+//			 }
 
 // 		        //if( _waitingFirstEEGSample )
 // 		        //  if( nBytesRead != 0 )
@@ -1865,116 +2358,150 @@ public class DeviceManager implements Runnable {
 // 		        // ---------------------------------
 
 			 ret = 0;
+			 _linkBudget.bytesReceived(nBytesRead);
+
+			 // Every frame completed is given to _processFrame
+			 long parseStart = System.nanoTime();
+			 if (_protocol.parse(_rxBuffer, 0, nBytesRead, _frameSink) > 0)
+				 ret = 1;
+			 _ingest.parsed(nBytesRead, System.nanoTime() - parseStart);
 
-			 for (int i = 0; i < nBytesRead; i++)			 
+			 if ((nBytesToRead == nBytesRead) &&
+					 (nBytesRead == MAX_LENGTH_RX_BUFFER)) // last reading was the
+				 // maximum amount of
+				 // data per reading
+			 {
+				 // it might be pending data
+				 nBytesToRead = (int) _device.pendingBytesOnReading();
+			 }
+			 else
 			 {
-				 // Do not process;
-				 //if(true) continue;
+				 nBytesToRead = 0;
+			 }
+		 } // end while (nbytesToRead)
 
-				 //logger.info("Evaluating i:" + i, Logger.LOG_FILE_ON);
-				 
-				 // MAIN IF (parseByte)
-				 if (_protocol.parseByte(_rxBuffer.get(i)))
-				 {
-					 _beaconCounterBattery++;
-					 _beaconCounterStayAlive++;
-					 _beaconCounterOnlineStimulation++;
-					 StarStimData data = _protocol.getStarStimData();
-
-					 //DEBUG drift clock
-					 int deviceStatus = data.deviceStatus();
-					 if ( ((deviceStatus & 0x02)!= 0x00) && !_isSampleRateEEG)
-					 {
-						 _isSampleRateEEG = true;
+		 //logger.info("_processData() end");
+
+		 return (ret);		 		 
+	 }
+
+	/*
+	 * ! It reacts to a frame received from the device: EEG streaming, read
+	 * configuration, acknowledgements.
+	 * 
+	 * \param data Content of the frame, only valid during the call.
+	 */
+	 private void _processFrame (StarStimData data){
+		 _beaconCounterBattery++;
+		 _beaconCounterStayAlive++;
+		 _beaconCounterOnlineStimulation++;
+
+		 //DEBUG drift clock
+		 int deviceStatus = data.deviceStatus();
+		 if ( ((deviceStatus & 0x02)!= 0x00) && !_isSampleRateEEG)
+		 {
+			 _isSampleRateEEG = true;
 /*						 
-						 if (is1000SPS())
-						 {
-							 _drifftClock.reset(1000.0);
-							 qDebug() << "reset to 1000";
-						 }
-						 else
-						 {
-							 _drifftClock.reset(500.0);
-							 qDebug() << "reset to 500";
-						 }
+			 if (is1000SPS())
+			 {
+				 _drifftClock.reset(1000.0);
+				 qDebug() << "reset to 1000";
+			 }
+			 else
+			 {
+				 _drifftClock.reset(500.0);
+				 qDebug() << "reset to 500";
+			 }
 /**/						 
-					 }
-					 else if (_isSampleRateEEG && (deviceStatus & 0x02) == 0)
-					 {
-						 _isSampleRateEEG = false;
-						 //_drifftClock.reset(1000.0);
-						 logger.info( "reset to 1000", Logger.LOG_FILE_ON );
-					 }
-
-					 if (!_isSampleRateEEG && _firmwareVersion >= 593)
-					 {
-						 _drifftClock.newSample();
-					 }
-
-					 //
-
-					 if (data.isStimDataPresent())
-					 {
-						 if (!_firstStimSampleReceived)
-						 {
-							 _firstStimSampleReceived = true;
-
-							 long timeFirstSample = Calendar.getInstance().getTimeInMillis();
-							 long latency = timeFirstSample - _timeRequestFirstStimSample;
-							 // we assume a symetric radio link
-							 _currentStimTimestamp = timeFirstSample - (latency / 2);
-							 _currentStimTimestamp -=1;
-						 }
-
-						 _currentStimTimestamp++;
-
-						 _lastStimData = data.stimulationData();
-						 _lastStimData.setTimestamp(_currentStimTimestamp);
-
-						 //emit newStimulationData(_lastStimData);
-					 } // END: data->isStimDataPresent
-
-					 // data->isEEGDataPresent()
-					 if (data.isEEGDataPresent())
-				     //if (false)
-					 {
-						 
-
-						 
-						 
-						 // with EEG the beacon rate is half the regular one
-						 _beaconCounterStayAlive++;
-						 int diff = 1;
-						 if (_waitingFirstEEGSample)
-						 {
+		 }
+		 else if (_isSampleRateEEG && (deviceStatus & 0x02) == 0)
+		 {
+			 _isSampleRateEEG = false;
+			 //_drifftClock.reset(1000.0);
+			 logger.info( "reset to 1000", Logger.LOG_FILE_ON );
+		 }
+
+		 if (!_isSampleRateEEG && _firmwareVersion >= 593)
+		 {
+			 _drifftClock.newSample();
+		 }
+
+		 //
+
+		 if (data.isStimDataPresent())
+		 {
+			 if (!_firstStimSampleReceived)
+			 {
+				 _firstStimSampleReceived = true;
+
+				 long timeFirstSample = System.currentTimeMillis();
+				 long latency = timeFirstSample - _timeRequestFirstStimSample;
+				 // we assume a symetric radio link
+				 _currentStimTimestamp = timeFirstSample - (latency / 2);
+				 _currentStimTimestamp -=1;
+			 }
+
+			 _currentStimTimestamp++;
+
+			 _lastStimData = data.stimulationData();
+			 _lastStimData.setTimestamp(_currentStimTimestamp);
+
+			 //emit newStimulationData(_lastStimData);
+		 } // END: data->isStimDataPresent
+
+		 // data->isEEGDataPresent()
+		 // While reconnecting they are part of the gap
+		 if (data.isEEGDataPresent() && !_isRestoringLink)
+	     //if (false)
+		 {
+			 
+
 			 
-							 _countPacketLost=0;
-
-							 _countPacketsPer30Seconds=0;
-							 _countPacketsLostPer30Seconds=0;
-
-							 _sampleRateCorrector.reset();
-							 _waitingFirstEEGSample = false;
-
-							 if (_firstStimSampleReceived)
-							 {
-								 _currentTimestamp=_currentStimTimestamp;
-							 }
-							 else
-							 {
-								 long timeFirstSample = Calendar.getInstance().getTimeInMillis();
-								 long latency = timeFirstSample - _timeRequestFirstEEGSample;
-								 // we assume a symetric radio link
-								 _currentTimestamp = timeFirstSample - (latency / 2);
-							 }
-							 _firstEEGTimeStamp=_currentTimestamp;
-							 
-							 
-						 }
-						 else // !_waitingFirstEEGSample
-						 {
-							 							
-							 diff = _diffBetweenStamps(_currentEEGStamp, data.eegStamp());
+			 
+			 // with EEG the beacon rate is half the regular one
+			 _beaconCounterStayAlive++;
+			 int diff = 1;
+			 int gapSamples = 0;
+			 if (_waitingFirstEEGSample)
+			 {
+ 
+				 _countPacketLost=0;
+
+				 _countPacketsPer30Seconds=0;
+				 _countPacketsLostPer30Seconds=0;
+
+				 _sampleRateCorrector.reset();
+				 _linkBudget.reset();
+				 _waitingFirstEEGSample = false;
+
+				 if (_firstStimSampleReceived)
+				 {
+					 _firstEEGTimeStamp=_currentStimTimestamp;
+				 }
+				 else
+				 {
+					 long timeFirstSample = System.currentTimeMillis();
+					 long latency = timeFirstSample - _timeRequestFirstEEGSample;
+					 // we assume a symetric radio link
+					 _firstEEGTimeStamp = timeFirstSample - (latency / 2);
+				 }
+				 _timestampEngine.reset(_eegSampleRate(), _firstEEGTimeStamp);
+				 
+				 
+			 }
+			 else if (_isResumingStream)
+			 {
+				 // First frame after a reconnection: the lost samples
+				 // are skipped, not repeated
+				 _isResumingStream = false;
+				 gapSamples = _resumeGapSamples(data.eegStamp(), data.eegDataArray().size());
+				 _timestampEngine.advance(gapSamples);
+				 _reconnectEngine.streamResumed(gapSamples);
+			 }
+			 else // !_waitingFirstEEGSample
+			 {
+				 							
+				 diff = _diffBetweenStamps(_currentEEGStamp, data.eegStamp());
 
 ////////////////////			
 //							 logger.info("data.eegStamp():" + data.eegStamp() + " _currentEEGStamp:" + _currentEEGStamp 
@@ -1983,294 +2510,224 @@ public class DeviceManager implements Runnable {
 //								 logger.info("PACKET LOSS " + diff, Logger.LOG_FILE_ON);								 
 //							 }
 ////////////////						
-								
+					
 /*
-							 #ifdef __PACKETLOSSREPORTFILE__
-							 packetLossReportFile.write(QString(QString::number(diff) + QString("\n")).toAscii());
-							 #endif //__PACKETLOSSREPORTFILE__
+				 #ifdef __PACKETLOSSREPORTFILE__
+				 packetLossReportFile.write(QString(QString::number(diff) + QString("\n")).toAscii());
+				 #endif //__PACKETLOSSREPORTFILE__
 /**/
-							 _countPacketsPer30Seconds+=diff;
-							 _countPacketsLostPer30Seconds+=diff-1;
-							 _countPacketLost+=diff-1;
-
-							 if (_countPacketsPer30Seconds>=15000) //We check packet loss each 15000 packets							 
-							 {
-								 logger.info ( "DeviceManager percentage of packets lost " + 
-										 		_countPacketsLostPer30Seconds + " " + _countPacketsPer30Seconds + " " + (_countPacketsLostPer30Seconds*100.0/_countPacketsPer30Seconds)
-										 		, Logger.LOG_FILE_ON);
+				 _countPacketsPer30Seconds+=diff;
+				 _countPacketsLostPer30Seconds+=diff-1;
+				 _countPacketLost+=diff-1;
 
-								 //emit newPacketLossData(_countPacketsLostPer30Seconds*100.0/_countPacketsPer30Seconds);
+				 if (_countPacketsPer30Seconds>=15000) //We check packet loss each 15000 packets							 
+				 {
+					 logger.info ( "DeviceManager percentage of packets lost " + 
+							 		_countPacketsLostPer30Seconds + " " + _countPacketsPer30Seconds + " " + (_countPacketsLostPer30Seconds*100.0/_countPacketsPer30Seconds)
+							 		, Logger.LOG_FILE_ON);
+					 logger.info ( "DeviceManager rx ring high water mark " + _device.rxHighWaterMark() +
+							 		" overflows " + _device.rxOverflowCount() + " (" + _device.rxOverflowBytes() + " bytes)"
+							 		, Logger.LOG_FILE_ON);
+					 logger.info ( "DeviceManager parser errors " + _protocol.getErrorStatistics(), Logger.LOG_FILE_ON);
+					 logger.info ( "DeviceManager EEG " + _eegBlockPool.getStatistics(), Logger.LOG_FILE_ON);
+					 logger.info ( "DeviceManager ingest " + _ingest.getStatistics(), Logger.LOG_FILE_ON);
+					 logger.info ( "DeviceManager timestamps " + _timestampEngine.getStatistics(), Logger.LOG_FILE_ON);
+					 if (_sampleRing.hasConsumers())
+						 logger.info ( "DeviceManager sample ring " + _sampleRing.getStatistics(), Logger.LOG_FILE_ON);
+
+					 //emit newPacketLossData(_countPacketsLostPer30Seconds*100.0/_countPacketsPer30Seconds);
 //								 if( _enzoHandler != null){
 //									 _enzoHandler.newPacketLossData(_countPacketsLostPer30Seconds*100.0/_countPacketsPer30Seconds);
 //								 }
-								 
+					 
 
-								 _countPacketsPer30Seconds=0;
-								 _countPacketsLostPer30Seconds=0;
-							 }
+					 _countPacketsPer30Seconds=0;
+					 _countPacketsLostPer30Seconds=0;
+				 }
 /*							 
-							 else{
-								 logger.info("test", Logger.ONLY_ANDROID_CONSOLE);
-							 }
+				 else{
+					 logger.info("test", Logger.ONLY_ANDROID_CONSOLE);
+				 }
 /**/							 
 	 
-						 } // END _waitingFirstEEGSample
-
-
-						 // Transform data from the instrument to meaningful information
-						 // ------------------------------------------------------------
-						 _currentEEGStamp = data.eegStamp();
-
-						 
-						 int[]  dataEEGRef = new int[32];
-
-						 //////////////////////////////
-						 int[] compressed = new int[32];
-						 int[] decompressed = new int[32];
-						 //////////////////////////////
-						 for(int j = 0; j < data.eegDataArray().size(); j++){
-							 int[] dataEEG = data.eegDataArray().get(j).data();
-
-							 for (int k = 0; k < 32; k++)
-							 {
-								 ///////////////////////////////////
-								 compressed[k] = dataEEG[k];								 								 
-								 ///////////////////////////////////
-								 if (dataEEG[k] >=0x800000)
-								 {
-									 dataEEG[k] = dataEEG[k] - 0x1000000;
-								 }
-
-								 // Store first sample
-								 if( (eegCompressionType() != StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION) && (j == 0) ){
-									 dataEEGRef[k] = dataEEG[k];
-								 }
-								 // First EEG sample is not compressed
-								 if( (eegCompressionType() != StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION)  && j != 0){
-									 if (dataEEG[k] >=0x8000 && eegCompressionType() == StarStimProtocol.EEGCompressionType.EEG_16BIT_COMPRESSION)
-									 {
-										 dataEEG[k] = dataEEG[k] - 0x10000;
-									 }
-
-									 if (dataEEG[k] >=0x800 && eegCompressionType() == StarStimProtocol.EEGCompressionType.EEG_12BIT_COMPRESSION)
-									 {
-										 dataEEG[k] = dataEEG[k] - 0x1000;
-									 }
-
-									 // Uncompression operation
-									 dataEEG[k] = dataEEG[k] + dataEEGRef[k];
-								 }
-
-								 ///////////////////////////////////
-								 decompressed[k] = dataEEG[k];
-								 ///////////////////////////////////
-
-								 dataEEG[k] = (int) ((dataEEG[k] * 2.4 * 1000000000) / 8388607.0 / 6.0);
-							 }
-
-							 //////////////////////////////////////////////
-							 String str = "  com dataEEG" + j + " ";
-							 for( int k = 0; k < 8; k++){
-								 str += String.format(" [%d]=0x%02X ", k , compressed[k]);
-							 }
-							 //logger.info ( str, Logger.LOG_FILE_ON );
-
-							 str = "decom dataEEG" + j + " ";
-							 for( int k = 0; k < 8; k++){
-								 str += String.format(" [%d]=0x%02X ", k , decompressed[k]);
-							 }
-							 //logger.info ( str , Logger.LOG_FILE_ON );
-
-							 
-
-							 //////////////////////////////////////////////
-
-						 }
-
-
-						 while(--diff > 0)
-						 {
-							 //If FW version is lower than 593, we need the sample rate corrector
-							 int correct=0;
-							 if (_firmwareVersion<593)
-							 {
-								 correct = _sampleRateCorrector.newSample();
+			 } // END _waitingFirstEEGSample
+
+
+			 // Transform data from the instrument to meaningful information
+			 // ------------------------------------------------------------
+			 _currentEEGStamp = data.eegStamp();
+			 _lastEEGFrameTime = System.currentTimeMillis();
+			 _linkBudget.eegFrameReceived(data.eegDataArray().size(),
+					 (_firmwareVersion >= 800) ? Math.max(diff - 1, 0) : Math.max(diff - 1, 0) * ((is1000SPS() == 1) ? 2 : _samplesPerBeacon));
+
+			 
+			 SampleBlock block = _eegBlockPool.acquire(data.eegChInfo());
+			 block.setGapSamples(gapSamples);
+
+			 // Samples that fill the lost frames, set by the decode stage
+			 int repeatedSamples = 0;
+			 while(--diff > 0)
+			 {
+				 //If FW version is lower than 593, we need the sample rate corrector
+				 int correct=0;
+				 if (_firmwareVersion<593)
+				 {
+					 correct = _sampleRateCorrector.newSample();
 /*								 
-								 #ifdef __ERP_PROTOCOL_OXFORD__
-								 correct = 0; // no sample rate correction in real time
-								 #endif
+					 #ifdef __ERP_PROTOCOL_OXFORD__
+					 correct = 0; // no sample rate correction in real time
+					 #endif
 /**/								 
-							 }
-							 else
-							 {
-								 _drifftClock.newSample();
-							 }
-
-							 while (correct-- >= 0) // 0 no correction, > 0 last sample repetitio, < 0 remove sample
-							 {
-
-								 // If 1000SPS (MultipleSample Mode) => 2 samples per lost beacon
-								 //		                            int iterations = (is1000SPS() == 1) ? 2 : 1;
-								 int iterations = (is1000SPS() == 1) ? 2 : _samplesPerBeacon;
-								 for( int j = 0; j < iterations; j++){
-
-//									 _currentTimestamp += (is1000SPS() == 1)?1:2;
-									 _currentTimestamp += 8;  // This should be when using 125SPS
-									 _lastEEGData.setTimestamp(_currentTimestamp);
-									 _lastEEGData.setRepeated(true);
-									 //emit newEEGData(_lastEEGData);
-									 if( this._enzoHandler != null )
-										 _enzoHandler.newEEGData( _lastEEGData );
-								 }
-
-							 }
-						 }
-						 //If FW version is lower than 593, we need the sample rate corrector
-						 int correct = 0;
-						 if (_firmwareVersion<593)
-						 {
-							 correct = _sampleRateCorrector.newSample();
+				 }
+				 else
+				 {
+					 _drifftClock.newSample();
+				 }
+
+				 while (correct-- >= 0) // 0 no correction, > 0 last sample repetitio, < 0 remove sample
+				 {
+
+					 // If 1000SPS (MultipleSample Mode) => 2 samples per lost beacon
+					 //		                            int iterations = (is1000SPS() == 1) ? 2 : 1;
+					 int iterations = (is1000SPS() == 1) ? 2 : _samplesPerBeacon;
+					 repeatedSamples += iterations;
+
+				 }
+			 }
+			 //If FW version is lower than 593, we need the sample rate corrector
+			 int correct = 0;
+			 if (_firmwareVersion<593)
+			 {
+				 correct = _sampleRateCorrector.newSample();
 /*							 
-							 #ifdef __ERP_PROTOCOL_OXFORD__
-							 correct = 0; // no sample rate correction in real time
-							 #endif
+				 #ifdef __ERP_PROTOCOL_OXFORD__
+				 correct = 0; // no sample rate correction in real time
+				 #endif
 /**/							 
-						 }
-						 else
-						 {
-							 // TODO: THIS SHOULD BE CALLED FOR EVERY SAMPLE
-							 //for( j = 0 ; j < data->eegDataArray().count(); j ++)
-							 _drifftClock.newSample();
-						 }
-
-						 while (correct-- >= 0) // 0 no correction, > 0 last sample repetition, < 0 remove sample
-						 {
-
-							 for( int j = 0 ; j < data.eegDataArray().size(); j ++){
-
-								 //_currentTimestamp += is1000SPS() == 1?1:2;
-								 _currentTimestamp += 8;  // This should be when using 125SPS
-								 data.eegDataArray().get(j).setTimestamp(_currentTimestamp);
-								 _lastEEGData = data.eegDataArray().get(j);
-								 _lastEEGData.setRepeated(false);
-								 //emit newEEGData(_lastEEGData);
-								 if( this._enzoHandler != null ){
-//									 _enzoHandler.newEEGData( new ChannelData() );
-									 _enzoHandler.newEEGData( _lastEEGData );
-//									 if( _lastEEGData == null ) logger.info("Last eeg data NULL", Logger.LOG_FILE_ON);
-//									 else logger.info("Last eeg data NOT NULL", Logger.LOG_FILE_ON);
-								 }
-									 
-
-							 }
-						 }
-					 } // END: data->isEEGDataPresent()
-
-					 if (data.isStimImpedancePresent())
-					 {
-						 //emit newImpedanceData(data->stimImpedanceData(), _currentTimestamp);
-					 }
-					 if (data.isEEGConfigPresent())
-					 {
-						 int numReg = data.eegNumRegs();
-						 int starAdd = data.eegStartAddress();
-						 char[] reg = data.eegReg();						 
-						 for (int j = 0; j < numReg; j++)
-						 {
-							 _eegRegisters[starAdd + j].setValue(reg[starAdd + j]);
-						 }
-					 } // END: data->isEEGConfigPresent()
-
-					 if (data.isStimConfigPresent())
-					 {
-						 int numReg = (int) data.stimNumRegs();
-						 int starAdd = data.stimStartAddress();
-						 char[] reg = data.stimReg();
-						 for (int j = 0; j < numReg; j++)
-						 {
-							 _stimRegisters[starAdd + j].setValue(reg[starAdd + j]);
-						 }
-						 
-						 
-					 } // END: data->isStimConfigPresent()
-
-					 if (data.isBatteryPresent())
-					 {
-						 logger.info("Is battery present " + data.battery(), Logger.LOG_FILE_ON );
-						 logger.info( "Is battery present " + String.format("0x%08X", data.battery() ), Logger.LOG_FILE_ON );
-						 logger.info( "Is battery present " + _calcStOfCharge(data.battery()), Logger.LOG_FILE_ON );
-						 //emit reportBatteryLevel(_calcStOfCharge(data->battery()));
-						 if( _enzoHandler != null )
-							 _enzoHandler.reportBatteryLevel( _calcStOfCharge(data.battery()) );						 						 						
-					 } // END: data->isBatteryPresent()
-
-					 if (data.isFirmwareVersionPresent())
-					 {
-						 _firmwareVersion = data.firmwareVersion();
-						 _is1000SPS       = data.get1000SPS();
-						 _protocol.setFirmwareVersion(_firmwareVersion);
-						 logger.info( "Firmware version is " + _firmwareVersion, Logger.LOG_FILE_ON);
-						 //emit reportFirmwareVersion(data->firmwareVersion(), data->get1000SPS());
-						 if( _enzoHandler != null )
-							 _enzoHandler.reportFirmwareVersion( data.firmwareVersion(), data.get1000SPS() );
-					 } // END: data->isFirmwareVersionPresent()
-
-					 if (data.isAccelerometerPresent())
-					 {
-						 //		                    int * acclData= data->accelerometer();
-
-						 //		                    ChannelData aux;
-						 //		                    aux.setTimestamp(_currentTimestamp);
-						 //		                    aux.setChannelInfo(14);
-						 //		                    aux.setData(1,acclData[0]);
-						 //		                    aux.setData(2,acclData[1]);
-						 //		                    aux.setData(3,acclData[2]);
-
-						 logger.info("RECEIVED ACCEL", Logger.LOG_FILE_ON);
-						 _lastAccelerometerData=data.accelerometer();
-
-						 _lastAccelerometerData.setChannelInfo(7);
-						 _lastAccelerometerData.setTimestamp(_currentTimestamp);
-
-						 //logger.info( _lastAccelerometerData.timestamp() + "" );
-						 //emit newAccelerometerData(_lastAccelerometerData);
-					 } // END: data->isAccelerometerPresent()
-
-					 if (data.isCommandToggled())
-					 {
-						 _ackReceived = true;
-					 } // END: data->isCommandToggled()
-
-					 if (_deviceStatus != data.deviceStatus() )
-					 {
-						 _deviceStatus = data.deviceStatus();
-						 if( _enzoHandler != null)
-			               	 _enzoHandler.newDeviceStatus(_deviceStatus);
-						 //emit newDeviceStatus(_deviceStatus);
-					 }
-					 _isDevicePresent = true;
-					 ret = 1;
-				 } // END MAIN IF (parseByte)
-
-			 }// End for loop _rxBuffer[nBytesRead]
+			 }
+			 else
+			 {
+				 // TODO: THIS SHOULD BE CALLED FOR EVERY SAMPLE
+				 //for( j = 0 ; j < data->eegDataArray().count(); j ++)
+				 _drifftClock.newSample();
+			 }
 
-			 if ((nBytesToRead == nBytesRead) &&
-					 (nBytesRead == MAX_LENGTH_RX_BUFFER)) // last reading was the
-				 // maximum amount of
-				 // data per reading
+			 // The raw samples of the frame go through the ingest stages
+			 block.addSamples(repeatedSamples, true);
+			 int eegSamples = data.eegDataArray().size();
+			 for( int j = 0 ; j < eegSamples; j ++)
+				 block.addSample(data.eegDataArray().get(j).data(), 0, false);
+
+			 IngestPipeline.Job job = _ingest.claim();
+			 job.block = block;
+			 job.repeatedSamples = repeatedSamples;
+			 job.correction = correct;
+			 job.compressionType = eegCompressionType();
+			 job.timestampOrigin = _timestampEngine.origin();
+			 job.timestamp = _timestampEngine.position();
+			 job.timestampStep = _timestampEngine.period();
+			 // 0 no correction, > 0 frame repetition, < 0 remove frame
+			 int outputSamples = repeatedSamples + ((correct >= 0) ? eegSamples * (correct + 1) : 0);
+			 _timestampEngine.advance(outputSamples);
+			 _timestampEngine.frameReceived(System.nanoTime());
+			 //emit newEEGData(sample);
+			 _ingest.publish();
+		 } // END: data->isEEGDataPresent()
+
+		 if (data.isStimImpedancePresent())
+		 {
+			 //emit newImpedanceData(data->stimImpedanceData(), _currentTimestamp);
+		 }
+		 if (data.isEEGConfigPresent())
+		 {
+			 int numReg = data.eegNumRegs();
+			 int starAdd = data.eegStartAddress();
+			 char[] reg = data.eegReg();						 
+			 for (int j = 0; j < numReg; j++)
 			 {
-				 // it might be pending data
-				 nBytesToRead = (int) _device.pendingBytesOnReading();
+				 _eegRegisters[starAdd + j].setValue(reg[starAdd + j]);
 			 }
-			 else
+			 _eegDecoder.setRegisters(starAdd, numReg, reg);
+		 } // END: data->isEEGConfigPresent()
+
+		 if (data.isStimConfigPresent())
+		 {
+			 int numReg = (int) data.stimNumRegs();
+			 int starAdd = data.stimStartAddress();
+			 char[] reg = data.stimReg();
+			 for (int j = 0; j < numReg; j++)
 			 {
-				 nBytesToRead = 0;
+				 _stimRegisters[starAdd + j].setValue(reg[starAdd + j]);
 			 }
-		 } // end while (nbytesToRead)
+			 
+			 
+		 } // END: data->isStimConfigPresent()
 
-		 //logger.info("_processData() end");
+		 if (data.isBatteryPresent())
+		 {
+			 logger.info("Is battery present " + data.battery(), Logger.LOG_FILE_ON );
+			 logger.info( "Is battery present " + String.format("0x%08X", data.battery() ), Logger.LOG_FILE_ON );
+			 logger.info( "Is battery present " + _calcStOfCharge(data.battery()), Logger.LOG_FILE_ON );
+			 //emit reportBatteryLevel(_calcStOfCharge(data->battery()));
+			 if( _enzoHandler != null )
+				 _enzoHandler.reportBatteryLevel( _calcStOfCharge(data.battery()) );						 						 						
+		 } // END: data->isBatteryPresent()
+
+		 if (data.isFirmwareVersionPresent())
+		 {
+			 _firmwareVersion = data.firmwareVersion();
+			 _is1000SPS       = data.get1000SPS();
+			 _protocol.setFirmwareVersion(_firmwareVersion);
+			 logger.info( "Firmware version is " + _firmwareVersion, Logger.LOG_FILE_ON);
+			 if (_macAddress.length() > 0)
+			 {
+				 DeviceCapabilityCache.Entry entry = _capabilityCache.getOrCreate(_macAddress);
+				 entry.firmwareVersion = _firmwareVersion;
+				 entry.is1000SPS       = _is1000SPS;
+				 entry.isLength2Bytes  = _protocol.isLength2Bytes();
+			 }
+			 //emit reportFirmwareVersion(data->firmwareVersion(), data->get1000SPS());
+			 if( _enzoHandler != null )
+				 _enzoHandler.reportFirmwareVersion( data.firmwareVersion(), data.get1000SPS() );
+		 } // END: data->isFirmwareVersionPresent()
 
-		 return (ret);		 		 
+		 if (data.isAccelerometerPresent())
+		 {
+			 //		                    int * acclData= data->accelerometer();
+
+			 //		                    ChannelData aux;
+			 //		                    aux.setTimestamp(_currentTimestamp);
+			 //		                    aux.setChannelInfo(14);
+			 //		                    aux.setData(1,acclData[0]);
+			 //		                    aux.setData(2,acclData[1]);
+			 //		                    aux.setData(3,acclData[2]);
+
+			 logger.info("RECEIVED ACCEL", Logger.LOG_FILE_ON);
+			 _lastAccelerometerData=data.accelerometer();
+
+			 _lastAccelerometerData.setChannelInfo(7);
+			 _lastAccelerometerData.setTimestamp(_timestampEngine.timestamp());
+
+			 //logger.info( _lastAccelerometerData.timestamp() + "" );
+			 //emit newAccelerometerData(_lastAccelerometerData);
+		 } // END: data->isAccelerometerPresent()
+
+		 if (data.isCommandToggled())
+		 {
+			 _ackReceived = true;
+			 _ackCount++;
+		 } // END: data->isCommandToggled()
+
+		 if (_deviceStatus != data.deviceStatus() )
+		 {
+			 _deviceStatus = data.deviceStatus();
+			 // The device may have changed its configuration
+			 _registerCache.invalidateAll();
+			 if( _enzoHandler != null)
+               	 _enzoHandler.newDeviceStatus(_deviceStatus);
+			 //emit newDeviceStatus(_deviceStatus);
+		 }
+		 _isDevicePresent = true;
 	 }
 
 	/*
@@ -2281,10 +2738,10 @@ public class DeviceManager implements Runnable {
 	 * \return True if the request has been sent and the acknowledge has been
 	 * received, false otherwise
 	 */
-	 private boolean _sendRequest (ArrayList<Byte> request){
+	 private boolean _sendRequest (byte[] request){
 	    _ackReceived = false;
 	    try {
-			if (_device.write( request, request.size()) < 0) return false;
+			if (_device.write( request, 0, request.length) < 0) return false;
 		} catch (IOException e) {
 			e.printStackTrace();
 			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
@@ -2337,21 +2794,12 @@ public class DeviceManager implements Runnable {
 	    logger.info( "DeviceManager::_poll", Logger.LOG_FILE_ON );
 	    int processDataResult;
 	    int noDataCounter = 0;
+	    _ackCountServiced = _ackCount;
 
 	    while(_terminatePollThread)
 	    {
-	    	if( _pausePollThread ){
-	    		//logger.info("Polling thread is paused " + _isPausedPollThread, Logger.LOG_FILE_ON);
-	    		_isPausedPollThread = true;
-	    		try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					//logger.info("Sleep from _poll was interrupted. Was that controlled situation?", Logger.LOG_FILE_ON);
-				}
-	    		continue;
-	    	}else{
-	    		_isPausedPollThread = false;
-	    	}
+	    	// Send the queued requests between frames
+	    	_serviceCommandQueue();
 	    	
 	    	
 	    	/*
@@ -2388,6 +2836,8 @@ public class DeviceManager implements Runnable {
 	            {
 	                logger.info( "----------------------->Here", Logger.LOG_FILE_ON );
 	                //emit stopBlinking();
+	                if( _enzoHandler != null)
+	                	_enzoHandler.stopBlinking();
 	            }
 
 	            noDataCounter = 0;
@@ -2398,11 +2848,20 @@ public class DeviceManager implements Runnable {
 	                logger.info( "DeviceManager::_poll noDataCounter" + noDataCounter, Logger.LOG_FILE_ON );
 
 	            if (noDataCounter==20)
+	            {
 	                //emit startBlinking();
+	                if( _enzoHandler != null)
+	                	_enzoHandler.startBlinking();
+	            }
 
 	            if ((processDataResult < 0) || (++noDataCounter > /*0xfffff*/MAXNODATACOUNTER))
 	            {
+	                // Whether the stream has to be resumed after reconnecting
+	                boolean wasStreaming = _isStreaming || _isResumingStream ||
+	                		(_deviceStatus != 255 && (_deviceStatus & StatusByteBits.EEG_BIT.getVal()) != 0);
+	                _isResumingStream = wasStreaming;
 	                _deviceStatus = 255; // unknown value
+	                _registerCache.invalidateAll();
 	                try {
 						_device.close();
 					} catch (IOException e) {
@@ -2416,12 +2875,22 @@ public class DeviceManager implements Runnable {
 	                	 _enzoHandler.newDeviceStatus(_deviceStatus);
 	                //emit newDeviceStatus(_deviceStatus);
 	
+	                _failPendingRequests();
+	                // The end of a replayed recording is not recovered
+	                if (_isOpen && _terminatePollThread && !_device.isReplayTransport()
+	                		&& _reconnectEngine.linkLost(wasStreaming))
+	                {
+	                	// Blinks until the ReconnectEngine brings the device back
+	                	if (noDataCounter < 20 && _enzoHandler != null)
+	                		_enzoHandler.startBlinking();
+	                }
 	                return -1;
 	            }
 	        }
 	    } // End :  while(_isPollThreadRunning)
 
 	    logger.info( "_poll: reading loop finished", Logger.LOG_FILE_ON ); 
+	    _failPendingRequests();
 
 	    
 	    return 0;
@@ -2455,59 +2924,17 @@ public class DeviceManager implements Runnable {
 		String threadId = Thread.currentThread().getName() + "(" + Thread.currentThread().getId() + ")";
 		logger.info("About to launch _startPollThread " + _isRunningPollThread + " by "+ threadId, Logger.LOG_FILE_ON);
 		
+		if (_isPollThreadRunning())
+			return;
 
-		// Wait whenever a thread was already started
-		try{
-			long initTime = SystemClock.currentThreadTimeMillis();
-			//while( (_threadResult.getState() == Thread.State.RUNNABLE) || (isRunning == true) ){
-			while( (_isRunningPollThread == true) ){
-				logger.info("Waiting to start _poll thread" 
-								+ SystemClock.currentThreadTimeMillis() + " " + initTime , Logger.LOG_FILE_ON);
-
-				Thread.sleep(100);			
-				if( SystemClock.currentThreadTimeMillis() > (initTime+1000) ) throw new InterruptedException();
-			}						
-		}catch(InterruptedException e){
-			e.printStackTrace();
-			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
-		}
-		
-
-		// Start new thread
-		if( _threadResult.getState() != Thread.State.RUNNABLE || (_isRunningPollThread == false))
-		{
-			   logger.info( "DeviceManager._startPollThread...", Logger.LOG_FILE_ON );
-			   _terminatePollThread = true;
-			   _threadResult = new Thread(this);
-			   _threadResult.setName("Polling Thread");
-			   _threadResult.start();			   
-		}		
-
-		
-
-		
-
-		
-		// Wait until thread is running
-		try{
-			long initTime = SystemClock.currentThreadTimeMillis();
+		// A thread that is still stopping has to finish first
+		_joinPollThread();
 
-			//while( (_threadResult.getState() != Thread.State.RUNNABLE) || (isRunning != true) ){
-			while( (_isRunningPollThread == false) ){
-				logger.info("Waiting to get _poll thread started " 
-								+ SystemClock.currentThreadTimeMillis() + " " + initTime , Logger.LOG_FILE_ON);
-
-				Thread.sleep(100);			
-				if( SystemClock.currentThreadTimeMillis() > (initTime+1000) ) throw new InterruptedException();
-			}						
-		}catch(InterruptedException e){
-			e.printStackTrace();
-			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
-		}
-		
-		// Thread is not paused
-		_pausePollThread = false;		
-		logger.info("Setting _pausePollThread to " + _pausePollThread, Logger.LOG_FILE_ON);
+		logger.info( "DeviceManager._startPollThread...", Logger.LOG_FILE_ON );
+		_terminatePollThread = true;
+		_threadResult = new Thread(this);
+		_threadResult.setName("Polling Thread");
+		_threadResult.start();
 	}
 	 
 	/*
@@ -2518,79 +2945,222 @@ public class DeviceManager implements Runnable {
 		
 		logger.info("Stopping Polling thread ...", Logger.LOG_FILE_ON);
 		
-		if( _threadResult.getState() == Thread.State.RUNNABLE || _isRunningPollThread == true )
-	    {
-	        _terminatePollThread = false;
-	        //_threadResult.result();
-	        logger.info("Setting _isPollThreadRunning to false", Logger.LOG_FILE_ON);
-	    }
-		
-		
-		// Wait thread to stop
-		try{
-			long initTime = SystemClock.currentThreadTimeMillis();
-			while( _isRunningPollThread == true ){
-				logger.info("Waiting to stop _poll thread " 
-						+ SystemClock.currentThreadTimeMillis() + " " + initTime + "(" + _isRunningPollThread + "/" + _terminatePollThread + ")", Logger.LOG_FILE_ON);
-
-				Thread.sleep(100);			
-				if( SystemClock.currentThreadTimeMillis() > (initTime+1000) ) throw new InterruptedException();
-			}						
-		}catch(InterruptedException e){
-			e.printStackTrace();
-			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+		_terminatePollThread = false;
+		if (Thread.currentThread() != _threadResult)
+		{
+			// Do not wait for the read timeout
+			_device.wakeUpReader();
+			_joinPollThread();
 		}
 		
 		logger.info("Thread ended! isRunning:" + _isRunningPollThread, Logger.LOG_FILE_ON);
-		
-		
-		// Thread is not paused
-		_isPausedPollThread = false;
-		logger.info("Setting _isPausedPollThread to " + _isPausedPollThread, Logger.LOG_FILE_ON);
 	}
 
 	/*!
-	 * Pauses the polling thread
+	 * Waits for the polling thread to finish
 	 */
-	private void _pausePollThread(){
-		_pausePollThread = true;		
-		//logger.info("Setting _pausePollThread to " + _pausePollThread, Logger.LOG_FILE_ON);
-
+	private void _joinPollThread(){
+		if (_threadResult == null || Thread.currentThread() == _threadResult)
+			return;
 		try {
-		
-			// While loop waiting for thread to be paused
-			long initTime = SystemClock.currentThreadTimeMillis();	
-			while(_isPausedPollThread == false ){
-				//logger.info("_pausePollThread:" + _pausePollThread + " Waiting thread to be resumed ...", Logger.LOG_FILE_ON);
-				if( SystemClock.currentThreadTimeMillis() > (initTime+1000) )throw new InterruptedException();
-			}
-		
+			_threadResult.join(1000);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
 		}
+		if (_threadResult.isAlive())
+			logger.info("Polling thread did not finish in time", Logger.LOG_FILE_ON);
 	}
-	
+
 	/*!
-	 * Pauses the polling thread
+	 * Whether the polling thread runs and attends the command queue
 	 */
-	private void _resumePollThread(){
-		_pausePollThread = false;
-		//logger.info("Setting _pausePollThread to " + _pausePollThread, Logger.LOG_FILE_ON);
-		
-		// This causes the thread to abort sleep
-		_threadResult.interrupt();
-		
+	private boolean _isPollThreadRunning(){
+		return _terminatePollThread && _threadResult != null && _threadResult.isAlive();
+	}
+
+	/*!
+	 * Submits a request to the device. While the polling thread runs the
+	 * request is queued and sent by the polling thread between frames.
+	 * Otherwise, or when called from the polling thread, it is sent right
+	 * away.
+	 * 
+	 * \return The request, to wait for its completion.
+	 */
+	private DeviceRequest _submitRequest(DeviceRequest request){
+		if (!_isPollThreadRunning() || Thread.currentThread() == _threadResult)
+		{
+			request.complete(_executeRequest(request));
+			return request;
+		}
+
+		_commandQueue.add(request);
+		_device.wakeUpReader();
+
+		// The polling thread may have stopped before taking it
+		if (!_isPollThreadRunning() && _commandQueue.remove(request))
+			request.complete(_executeRequest(request));
+		return request;
+	}
+
+	/*!
+	 * Waits for a submitted request.
+	 * 
+	 * \return True if the device replied to the request.
+	 */
+	private boolean _waitRequest(DeviceRequest request){
 		try {
-			long initTime = SystemClock.currentThreadTimeMillis();		
-			while(_isPausedPollThread == true ){
-				//logger.info("_pausePollThread:" + _pausePollThread + " Waiting thread to be resumed ...", Logger.LOG_FILE_ON);
-				if( SystemClock.currentThreadTimeMillis() > (initTime+1000) ) throw new InterruptedException();
-			}
+			// The polling thread times the request out, this is a safety net
+			return request.get(2 * REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
-			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException e) {
+			logger.info("Request was not attended by the polling thread", Logger.LOG_FILE_ON);
 		}
+		request.cancel(false);
+		return false;
+	}
+
+	/*!
+	 * Waits for requests returned by DeviceManager::readRegisterAsync and
+	 * DeviceManager::writeRegisterAsync.
+	 * 
+	 * \return True if the device replied to all of them.
+	 */
+	public boolean waitRequests(ArrayList<DeviceRequest> requests){
+		boolean result = true;
+		for (DeviceRequest request : requests)
+			result &= _waitRequest(request);
+		return result;
+	}
+
+	/*!
+	 * Sends a request and waits for the acknowledge.
+	 * 
+	 * \return True if the acknowledge has been received.
+	 */
+	private boolean _sendAndWait(byte[] request){
+		return _waitRequest(_submitRequest(new DeviceRequest(request)));
+	}
+
+	/*!
+	 * Sends a request from the calling thread, processing the incoming data
+	 * until the device replies. Only used while nobody else reads the device.
+	 * 
+	 * \return True if the device replied.
+	 */
+	private boolean _executeRequest(DeviceRequest request){
+		request.sent(REQUEST_TIMEOUT_MS);
+		if (!_sendRequest(request.frame()))
+		{
+			logger.info( "error sending request", Logger.LOG_FILE_ON );
+			return false;
+		}
+		request.acked();
+		// wait for response
+		int retries = 0;
+		while (!request.isReplied() && (retries++ < 30))
+		{
+			if (_processData(MAX_LENGTH_RX_BUFFER) < 0)
+				return false;
+		}
+		return request.isReplied();
+	}
+
+	/*!
+	 * Polling thread side of the command queue. It completes the requests in
+	 * flight once replied or timed out, and then sends queued requests until
+	 * PIPELINE_DEPTH are in flight.
+	 * 
+	 * The device acknowledges the requests in order by toggling one status
+	 * bit. Two toggles between the frames received would cancel out, so a
+	 * request is only sent once the previous one has been acknowledged: at
+	 * most one request waits for its toggle, the others in flight wait for
+	 * their reply. A read of registers that are being read already waits
+	 * until the previous read completes, as both replies would update the same
+	 * registers.
+	 */
+	private void _serviceCommandQueue(){
+		int acks = _ackCount - _ackCountServiced;
+		_ackCountServiced = _ackCount;
+		for (DeviceRequest request : _inFlightRequests)
+		{
+			if (acks == 0) break;
+			if (!request.isAcked())
+			{
+				request.acked();
+				acks--;
+			}
+		}
+
+		Iterator<DeviceRequest> it = _inFlightRequests.iterator();
+		while (it.hasNext())
+		{
+			DeviceRequest request = it.next();
+			if (request.isReplied())
+			{
+				request.complete(true);
+				it.remove();
+			}
+			else if (request.isTimedOut())
+			{
+				logger.info( "Request failed because the acknowledgment was not received. Is device disconnected?", Logger.LOG_FILE_ON );
+				request.complete(false);
+				it.remove();
+				// Toggles counted from now on belong to the next requests
+				if (!request.isAcked()) _ackCountServiced = _ackCount;
+			}
+			// A cancelled request stays until acknowledged to keep the
+			// toggles in step
+		}
+
+		while (_inFlightRequests.size() < PIPELINE_DEPTH)
+		{
+			// One toggle period per request
+			for (DeviceRequest inFlight : _inFlightRequests)
+			{
+				if (!inFlight.isAcked()) return;
+			}
+			DeviceRequest request = _commandQueue.peek();
+			if (request == null) return;
+			if (request.isDone())
+			{
+				_commandQueue.poll(); // cancelled
+				continue;
+			}
+			for (DeviceRequest inFlight : _inFlightRequests)
+			{
+				if (request.overlaps(inFlight)) return;
+			}
+			_commandQueue.poll();
+
+			request.sent(REQUEST_TIMEOUT_MS);
+			try {
+				if (_device.write(request.frame(), 0, request.frame().length) < 0)
+				{
+					request.complete(false);
+					continue;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+				request.complete(false);
+				continue;
+			}
+			_inFlightRequests.add(request);
+		}
+	}
+
+	/*!
+	 * Fails the requests in flight and the queued ones when the polling thread
+	 * stops.
+	 */
+	private void _failPendingRequests(){
+		DeviceRequest request;
+		while ((request = _inFlightRequests.poll()) != null)
+			request.complete(false);
+		while ((request = _commandQueue.poll()) != null)
+			request.complete(false);
 	}
 	
 	
@@ -2611,12 +3181,8 @@ public class DeviceManager implements Runnable {
 	 */
 	private boolean _doBatteryMeasurement (){
 	    logger.info( "DeviceManager::_doBatteryMeasurement", Logger.LOG_FILE_ON );
-	    ArrayList<Byte> txBuffer = StarStimProtocol.buildReadBatteryRequest();
-	    if (!_sendRequest(txBuffer))
-	    {
-	        logger.info( "error sending battery measurement request", Logger.LOG_FILE_ON);
-	        return false;
-	    }
+	    // Queued, the reply is processed as any other frame
+	    _commandQueue.add(new DeviceRequest(StarStimProtocol.READ_BATTERY_FRAME));
 	    return true;
 	}
 
@@ -2626,12 +3192,7 @@ public class DeviceManager implements Runnable {
 	 */
 	private boolean _doNullRequest (){
 	    logger.info("DeviceManager::_doNullRequest", Logger.LOG_FILE_ON);
-		ArrayList<Byte> txBuffer = StarStimProtocol.buildNullRequest();
-	    if (!_sendRequest(txBuffer))
-	    {
-	        logger.info( "error sending _doNullRequest", Logger.LOG_FILE_ON );
-	        return false;
-	    }
+	    _commandQueue.add(new DeviceRequest(StarStimProtocol.NULL_REQUEST_FRAME));
 	    return true;
 	}
 
@@ -2674,6 +3235,35 @@ public class DeviceManager implements Runnable {
 	    return (int)stateOfCharge;
 	}
 
+	/*
+	 * ! It calculates the number of samples lost while the link was down,
+	 * from the first EEG frame received after a reconnection.
+	 * 
+	 * \param eegStamp Stamp of the frame.
+	 * 
+	 * \param samplesInFrame Samples carried by the frame.
+	 * 
+	 * \return Samples between the last one received before the loss and the
+	 * first one of the frame.
+	 */
+	private int _resumeGapSamples (int eegStamp, int samplesInFrame){
+		long elapsedMillis = System.currentTimeMillis() - _lastEEGFrameTime;
+
+		// The stamp of newer firmwares counts samples, unless the device
+		// restarted in the meantime. No device goes above 1000 SPS.
+		if (_firmwareVersion >= 800)
+		{
+			long stampGap = (long) eegStamp - _currentEEGStamp - _samplesPerBeacon;
+			if (stampGap >= 0 && stampGap <= elapsedMillis + 1000)
+				return (int) stampGap;
+		}
+
+		// Otherwise estimated from the time elapsed, at the sample rate of
+		// the timestamps
+		long gap = (long) (elapsedMillis * _timestampEngine.sampleRate() / 1000) - samplesInFrame;
+		return (gap > 0) ? (int) Math.min(gap, Integer.MAX_VALUE) : 0;
+	}
+
 	/*
 	 * ! It calculates the number of samples between two stamps. The stamps are
 	 * defined as cyclic counters from 0 to 255.
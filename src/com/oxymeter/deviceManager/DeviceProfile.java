@@ -0,0 +1,304 @@
+package com.icognos.deviceManager;
+
+import java.util.ArrayList;
+
+import com.icognos.deviceManager.DeviceManager.StarStimRegisterFamily;
+import com.icognos.util.Logger;
+
+/*!
+ * Desired state of the configuration registers of a device.
+ *
+ * Applying a profile writes only the registers whose value differs from the
+ * state of the device. That state is taken from the RegisterShadowCache of the
+ * DeviceManager; registers not in the cache are read back first, in as few
+ * frames as possible. The registers to be written are grouped in runs of
+ * consecutive addresses, one write frame each. Unchanged registers of the
+ * profile between two changed ones are written again when that is cheaper
+ * than a new frame.
+ */
+public class DeviceProfile {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property DeviceProfile::MAX_RUN_LENGTH
+	 *
+	 * Maximum number of registers read or written by a single frame.
+	 */
+	public static final int MAX_RUN_LENGTH = 64;
+
+	/*!
+	 * \property DeviceProfile::MAX_GAP
+	 *
+	 * Maximum number of unchanged registers written again to join two runs.
+	 * A write frame carries about 11 bytes besides the values.
+	 */
+	public static final int MAX_GAP = 8;
+
+	/*!
+	 * \property DeviceProfile::NOT_SET
+	 *
+	 * Value of the registers that are not part of the profile.
+	 */
+	public static final int NOT_SET = -1;
+
+	/*!
+	 * \property DeviceProfile::_desired
+	 *
+	 * Desired register values, indexed by family ordinal and address.
+	 */
+	private int[][] _desired;
+
+	/*!
+	 * \property DeviceProfile::_framesRead
+	 *
+	 * Read frames sent by the last apply.
+	 */
+	private int _framesRead;
+
+	/*!
+	 * \property DeviceProfile::_framesWritten
+	 *
+	 * Write frames sent by the last apply.
+	 */
+	private int _framesWritten;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The profile is empty.
+	 */
+	public DeviceProfile(){
+		StarStimRegisterFamily[] families = StarStimRegisterFamily.values();
+		_desired = new int[families.length][];
+		for (int i = 0; i < families.length; i++)
+		{
+			_desired[i] = new int[RegisterShadowCache.familySize(families[i])];
+			for (int j = 0; j < _desired[i].length; j++) _desired[i][j] = NOT_SET;
+		}
+	}
+
+	/*!
+	 * Configuration of the EEG registers done when a headset is opened.
+	 *
+	 * \param firmwareVersion firmware version reported by the device
+	 *
+	 * \param is1000SPS whether the device samples at 1000 SPS
+	 *
+	 * \param numChannels number of channels of the headset
+	 *
+	 * \param all false to configure only CONFIG_1..CONFIG_3
+	 */
+	public static DeviceProfile eegHeadset(int firmwareVersion, int is1000SPS, int numChannels, boolean all){
+		DeviceProfile profile = new DeviceProfile();
+		StarStimRegisterFamily eeg = StarStimRegisterFamily.EEG_REGISTERS;
+
+		int config1;
+		if (firmwareVersion < 593)   // Is old HW
+			config1 = 0xA6;
+		else if (is1000SPS == 1)
+			config1 = 0x85;
+		else
+			config1 = 0x86;
+		profile.set(eeg, DennisRegisters.EEG_REGS_CONFIG_1_ADDR, config1);
+		profile.set(eeg, DennisRegisters.EEG_REGS_CONFIG_2_ADDR, 0x10);
+		profile.set(eeg, DennisRegisters.EEG_REGS_CONFIG_3_ADDR, 0xCC);
+
+		if (all)
+		{
+			profile.set(eeg, DennisRegisters.EEG_REGS_LOFF_ADDR, 0x00);
+			profile.set(eeg, DennisRegisters.EEG_REGS_CH_1_SET_ADDR, 0x00);
+			// RLD_SENS_P up to WCT_2
+			for (int address = DennisRegisters.EEG_REGS_RLD_SENS_P_ADDR; address <= DennisRegisters.EEG_REGS_WCT_2_ADDR; address++)
+				profile.set(eeg, address, 0x00);
+			profile.setChannelMask(numChannels);
+		}
+		return profile;
+	}
+
+	/*!
+	 * Sets the desired value of a register.
+	 *
+	 * \return This profile, to chain calls.
+	 */
+	public DeviceProfile set(StarStimRegisterFamily family, int address, int value){
+		_desired[family.ordinal()][address] = value & 0xFF;
+		return this;
+	}
+
+	/*!
+	 * Removes a register from the profile.
+	 */
+	public DeviceProfile clear(StarStimRegisterFamily family, int address){
+		_desired[family.ordinal()][address] = NOT_SET;
+		return this;
+	}
+
+	/*!
+	 * Sets the registers of another profile, which win over the ones of this
+	 * profile. The rest are kept.
+	 *
+	 * \return This profile, to chain calls.
+	 */
+	public DeviceProfile merge(DeviceProfile other){
+		for (int f = 0; f < _desired.length; f++)
+		{
+			for (int address = 0; address < _desired[f].length; address++)
+			{
+				if (other._desired[f][address] != NOT_SET) _desired[f][address] = other._desired[f][address];
+			}
+		}
+		return this;
+	}
+
+	/*!
+	 * Desired value of a register, or NOT_SET.
+	 */
+	public int get(StarStimRegisterFamily family, int address){
+		return _desired[family.ordinal()][address];
+	}
+
+	/*!
+	 * Enables the first numChannels channels in EEG_CH_INFO, where a '0' bit
+	 * means an active channel.
+	 */
+	public DeviceProfile setChannelMask(int numChannels){
+		int mask = 0;
+		for (int i = 0; i < numChannels; i++) mask |= (1 << i);
+		mask = ~mask;
+		for (int i = 0; i < 4; i++)
+			set(StarStimRegisterFamily.EEG_REGISTERS, DennisRegisters.EEG_CH_INFO_ADDR + i, (mask >> (8 * i)) & 0xFF);
+		return this;
+	}
+
+	/*!
+	 * Sets the streaming rate, one of DennisRegisters.EEG_STREAMING_RATE_*.
+	 */
+	public DeviceProfile setStreamingRate(int rate){
+		return set(StarStimRegisterFamily.EEG_REGISTERS, DennisRegisters.EEG_STREAMING_RATE_ADDR, rate);
+	}
+
+	/*!
+	 * Brings the device to this profile, writing only what differs.
+	 *
+	 * \return True if all the frames have been acknowledged.
+	 */
+	public boolean apply(DeviceManager device){
+		_framesRead = 0;
+		_framesWritten = 0;
+		RegisterShadowCache cache = device.getRegisterCache();
+		StarStimRegisterFamily[] families = StarStimRegisterFamily.values();
+		boolean result = true;
+
+		// Current state: the cache, or read back the registers not in it
+		int[][] current = new int[families.length][];
+		ArrayList<DeviceRequest> reads = new ArrayList<DeviceRequest>();
+		ArrayList<int[]> readRuns = new ArrayList<int[]>();
+		for (int f = 0; f < families.length; f++)
+		{
+			current[f] = new int[_desired[f].length];
+			boolean isReadable = cache.getMaxAge(families[f]) > 0;
+			for (int address = 0; address < _desired[f].length; address++)
+			{
+				current[f][address] = (_desired[f][address] == NOT_SET) ? NOT_SET : cache.peek(families[f], address);
+			}
+			if (!isReadable) continue;
+
+			int address = 0;
+			while ((address = _nextRun(f, address, current[f], false)) < _desired[f].length)
+			{
+				int length = _runLength(f, address, current[f], false);
+				reads.add(device.readRegisterAsync(families[f], (byte) address, (byte) length));
+				readRuns.add(new int[] { f, address, length });
+				address += length;
+			}
+		}
+		_framesRead = reads.size();
+		device.waitRequests(reads);
+		for (int i = 0; i < reads.size(); i++)
+		{
+			int[] run = readRuns.get(i);
+			byte[] values = reads.get(i).values();
+			if (values == null) continue; // unknown, it is written
+			for (int j = 0; j < run[2]; j++)
+				current[run[0]][run[1] + j] = values[j] & 0xFF;
+		}
+
+		// Write the differences
+		ArrayList<DeviceRequest> writes = new ArrayList<DeviceRequest>();
+		for (int f = 0; f < families.length; f++)
+		{
+			int address = 0;
+			while ((address = _nextRun(f, address, current[f], true)) < _desired[f].length)
+			{
+				int length = _runLength(f, address, current[f], true);
+				Byte[] values = new Byte[length];
+				for (int j = 0; j < length; j++) values[j] = (byte) _desired[f][address + j];
+				writes.add(device.writeRegisterAsync(families[f], (byte) address, values, (byte) length));
+				address += length;
+			}
+		}
+		_framesWritten = writes.size();
+		result &= device.waitRequests(writes);
+		if (result) device.profileApplied(this);
+
+		logger.info("DeviceProfile::apply read " + _framesRead + " frames, wrote " + _framesWritten + " frames", Logger.LOG_FILE_ON);
+		return result;
+	}
+
+	/*!
+	 * Read frames sent by the last apply.
+	 */
+	public int getFramesRead(){
+		return _framesRead;
+	}
+
+	/*!
+	 * Write frames sent by the last apply.
+	 */
+	public int getFramesWritten(){
+		return _framesWritten;
+	}
+
+	/*!
+	 * Whether a register is part of a run: unknown for reads, different from
+	 * the desired value for writes.
+	 */
+	private boolean _isPending(int f, int address, int[] current, boolean isWrite){
+		if (_desired[f][address] == NOT_SET) return false;
+		if (!isWrite) return current[address] == NOT_SET;
+		return current[address] != _desired[f][address];
+	}
+
+	/*!
+	 * First address from the given one that starts a run, or the size of the
+	 * family if none.
+	 */
+	private int _nextRun(int f, int address, int[] current, boolean isWrite){
+		while (address < _desired[f].length && !_isPending(f, address, current, isWrite)) address++;
+		return address;
+	}
+
+	/*!
+	 * Length of the run that starts at address. It goes on through registers
+	 * of the profile that are not pending if a pending one follows within
+	 * MAX_GAP registers.
+	 */
+	private int _runLength(int f, int address, int[] current, boolean isWrite){
+		int end = address + 1;   // exclusive, last pending register + 1
+		int next = end;
+		while (next < _desired[f].length && next - address < MAX_RUN_LENGTH && _desired[f][next] != NOT_SET)
+		{
+			if (_isPending(f, next, current, isWrite))
+				end = next + 1;
+			else if (next - end >= MAX_GAP)
+				break;
+			next++;
+		}
+		return end - address;
+	}
+}
@@ -0,0 +1,326 @@
+package com.icognos.deviceManager;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.icognos.deviceManager.DeviceManager.StarStimRegisterFamily;
+
+/*!
+ * A request frame submitted to the device through the command queue of
+ * DeviceManager. The polling thread sends it between frames and completes it
+ * when the device replies: the command toggle for plain requests, plus the
+ * update of the first register for register reads.
+ *
+ * The device toggles the command bit once per request and in order, so the
+ * polling thread hands out the toggles to the requests in flight in the order
+ * they were sent.
+ *
+ * The result is true if the device replied, false if the request timed out,
+ * could not be sent or was cancelled. Register reads keep the values read in
+ * values().
+ *
+ * Register reads and writes may update a RegisterShadowCache when completed:
+ * with the values read or written on success, invalidating the written
+ * registers otherwise, as the device may or may not have applied them.
+ */
+public class DeviceRequest implements Future<Boolean> {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property DeviceRequest::_frame
+	 *
+	 * Request frame, as built by StarStimProtocol. It may be one of the
+	 * shared constant frames, so it is never modified.
+	 */
+	private byte[] _frame;
+
+	/*!
+	 * \property DeviceRequest::_registers
+	 *
+	 * Register family read by the request, null for requests that are
+	 * completed by the command toggle.
+	 */
+	private StarStimRegister[] _registers;
+
+	/*!
+	 * \property DeviceRequest::_address
+	 *
+	 * First register read by the request.
+	 */
+	private int _address;
+
+	/*!
+	 * \property DeviceRequest::_length
+	 *
+	 * Number of consecutive registers read by the request.
+	 */
+	private int _length;
+
+	/*!
+	 * \property DeviceRequest::_values
+	 *
+	 * Values of the registers read, available once completed.
+	 */
+	private volatile byte[] _values;
+
+	/*!
+	 * \property DeviceRequest::_isAcked
+	 *
+	 * Whether the command toggle of this request has been received. Only used
+	 * by the thread that sends the request.
+	 */
+	private boolean _isAcked;
+
+	/*!
+	 * \property DeviceRequest::_cache
+	 *
+	 * Cache updated on completion, null if none.
+	 */
+	private RegisterShadowCache _cache;
+
+	private StarStimRegisterFamily _family;
+
+	/*!
+	 * \property DeviceRequest::_written
+	 *
+	 * Values written by a register write, null for reads.
+	 */
+	private byte[] _written;
+
+	/*!
+	 * \property DeviceRequest::_version
+	 *
+	 * Version of the cache when the request was submitted.
+	 */
+	private long _version;
+
+	/*!
+	 * \property DeviceRequest::_deadline
+	 *
+	 * System.nanoTime after which the request has timed out. Only used by the
+	 * thread that sends the request.
+	 */
+	private long _deadline;
+
+	/*!
+	 * \property DeviceRequest::_done
+	 *
+	 * Released once the request is completed.
+	 */
+	private CountDownLatch _done;
+
+	private volatile boolean _result;
+	private volatile boolean _isCancelled;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Request completed by the command toggle.
+	 */
+	public DeviceRequest(ArrayList<Byte> frame){
+		this(_toArray(frame), null, 0, 0);
+	}
+
+	/*!
+	 * Request completed by the command toggle, from a primitive frame such as
+	 * the constant frames of StarStimProtocol. The frame is not copied.
+	 */
+	public DeviceRequest(byte[] frame){
+		this(frame, null, 0, 0);
+	}
+
+	/*!
+	 * Register read, completed when the first register is updated.
+	 *
+	 * \param registers register family the reply is stored in
+	 *
+	 * \param address first register read
+	 *
+	 * \param length number of consecutive registers read
+	 */
+	public DeviceRequest(ArrayList<Byte> frame, StarStimRegister[] registers, int address, int length){
+		this(_toArray(frame), registers, address, length);
+	}
+
+	/*!
+	 * Register read from a primitive frame. See the other constructor.
+	 */
+	public DeviceRequest(byte[] frame, StarStimRegister[] registers, int address, int length){
+		_frame = frame;
+		_registers = registers;
+		_address = address;
+		_length = length;
+		_isAcked = false;
+		_done = new CountDownLatch(1);
+	}
+
+	/*!
+	 * Request that has already failed, for requests that could not be built.
+	 */
+	static DeviceRequest failed(){
+		DeviceRequest request = new DeviceRequest((byte[]) null);
+		request.complete(false);
+		return request;
+	}
+
+	/*!
+	 * Register read that has already been answered, from the cache.
+	 */
+	static DeviceRequest completed(byte[] values){
+		DeviceRequest request = new DeviceRequest((byte[]) null);
+		request._values = values;
+		request.complete(true);
+		return request;
+	}
+
+	/*!
+	 * Sets the cache to be updated on completion.
+	 *
+	 * \param address first register read or written
+	 *
+	 * \param written values written, null for reads
+	 */
+	void shadow(RegisterShadowCache cache, StarStimRegisterFamily family, int address, byte[] written){
+		_cache = cache;
+		_family = family;
+		_address = address;
+		_written = written;
+		_version = cache.nextVersion();
+		if (written != null) cache.writePending(family, address, written.length);
+	}
+
+	/*!
+	 * Request frame to be written to the device.
+	 */
+	byte[] frame(){
+		return _frame;
+	}
+
+	private static byte[] _toArray(ArrayList<Byte> frame){
+		if (frame == null) return null;
+		byte[] array = new byte[frame.size()];
+		for (int i = 0; i < array.length; i++) array[i] = frame.get(i);
+		return array;
+	}
+
+	/*!
+	 * Whether the request waits for a register reply rather than the toggle.
+	 */
+	boolean isRegisterRead(){
+		return _registers != null;
+	}
+
+	/*!
+	 * Called just before the frame is written. Forgets any stale reply and
+	 * arms the timeout.
+	 */
+	void sent(long timeoutMillis){
+		if (_registers != null && _registers[_address].updated()) _registers[_address].value();
+		_deadline = System.nanoTime() + timeoutMillis * 1000000L;
+	}
+
+	/*!
+	 * The command toggle of this request has been received.
+	 */
+	void acked(){
+		_isAcked = true;
+	}
+
+	boolean isAcked(){
+		return _isAcked;
+	}
+
+	/*!
+	 * Whether the device has replied to the request.
+	 */
+	boolean isReplied(){
+		if (!_isAcked) return false;
+		return (_registers == null) || _registers[_address].updated();
+	}
+
+	/*!
+	 * Whether both requests read the same registers, so their replies could
+	 * not be told apart.
+	 */
+	boolean overlaps(DeviceRequest other){
+		if (_registers == null || _registers != other._registers) return false;
+		return (_address < other._address + other._length) && (other._address < _address + _length);
+	}
+
+	/*!
+	 * Whether the device did not reply in time.
+	 */
+	boolean isTimedOut(){
+		return System.nanoTime() - _deadline > 0;
+	}
+
+	/*!
+	 * Completes the request and releases the threads waiting for it. Only
+	 * the first completion counts.
+	 *
+	 * \return False if the request was already completed.
+	 */
+	synchronized boolean complete(boolean result){
+		if (_done.getCount() == 0) return false;
+		if (result && _registers != null)
+		{
+			byte[] values = new byte[_length];
+			for (int i = 0; i < _length; i++)
+				values[i] = (byte) (_registers[_address + i].value() & 0xFF);
+			_values = values;
+		}
+		if (_cache != null)
+		{
+			if (_written != null)
+			{
+				_cache.writeDone(_family, _address, _written.length);
+				if (result) _cache.store(_family, _address, _written, _version);
+				else _cache.invalidate(_family, _address, _written.length);
+			}
+			else if (result)
+			{
+				_cache.store(_family, _address, _values, _version);
+			}
+		}
+		_result = result;
+		_done.countDown();
+		return true;
+	}
+
+	/*!
+	 * Values of the registers read, null unless the read succeeded.
+	 */
+	public byte[] values(){
+		return _values;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning){
+		if (!complete(false)) return false;
+		_isCancelled = true;
+		return true;
+	}
+
+	public boolean isCancelled(){
+		return _isCancelled;
+	}
+
+	public boolean isDone(){
+		return _done.getCount() == 0;
+	}
+
+	public Boolean get() throws InterruptedException {
+		_done.await();
+		return _result;
+	}
+
+	public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!_done.await(timeout, unit)) throw new TimeoutException();
+		return _result;
+	}
+}
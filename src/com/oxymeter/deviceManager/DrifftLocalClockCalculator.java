@@ -84,7 +84,8 @@ public class DrifftLocalClockCalculator {
 	 }
     
     void newSample (){
-        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        // The host clock is only read for the first sample and each
+        // calculation, from the monotonic clock
         if (_isFirstSample)
         {
             _isFirstSample = false;
@@ -95,7 +96,7 @@ public class DrifftLocalClockCalculator {
             //_timeFirstSample = QDateTime::currentMSecsSinceEpoch();
     		
 
-    		_timeFirstSample = calendar.getTimeInMillis() ;
+    		_timeFirstSample = System.nanoTime() / 1000000.0;
             
             
         }
@@ -114,7 +115,7 @@ public class DrifftLocalClockCalculator {
 //                    (QDateTime::currentMSecsSinceEpoch() - _timeFirstSample)));
         	
         	int diff = ((int)((_counterSamples * (1000/ _sampleRate) ) -
-        				(calendar.getTimeInMillis() - _timeFirstSample)));        	
+        				(System.nanoTime() / 1000000.0 - _timeFirstSample)));        	
             //qDebug() << "diff = " << diff;
             if (diff < 0 || ((double)_maxDiff - 10) >= diff)                        
             {
@@ -0,0 +1,150 @@
+package com.icognos.deviceManager;
+
+/*!
+ * Turns the raw EEG samples of a frame into nanovolts.
+ *
+ * The samples arrive as 24 bit two's complement values of the ADC or, when
+ * the compression is enabled, as a first full sample followed by 16 or 12 bit
+ * differences with it. The decoder sign extends them, adds the reference back
+ * and scales them with the gain of each channel.
+ *
+ * The gain comes from the PGA bits [6:4] of the CH_n_SET registers. The
+ * register map only holds the eight registers of the first ADC, so they set
+ * the gain of channels 0 to 7; the rest of the channels keep DEFAULT_GAIN.
+ */
+public class EEGDecoder {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property EEGDecoder::VREF_NV
+	 *
+	 * Reference voltage of the ADC, in nanovolts.
+	 */
+	public static final double VREF_NV = 2.4 * 1000000000;
+
+	/*!
+	 * \property EEGDecoder::FULL_SCALE
+	 *
+	 * Largest positive value of a 24 bit sample.
+	 */
+	public static final double FULL_SCALE = 8388607.0;
+
+	/*!
+	 * \property EEGDecoder::DEFAULT_GAIN
+	 *
+	 * Gain of the channels until their CH_n_SET register is known. It is the
+	 * one of the register reset value.
+	 */
+	public static final int DEFAULT_GAIN = 6;
+
+	/*!
+	 * \property EEGDecoder::PGA_GAINS
+	 *
+	 * Gain of each value of the PGA bits of CH_n_SET. The value 7 is reserved.
+	 */
+	private static final int[] PGA_GAINS = { 6, 1, 2, 3, 4, 8, 12, DEFAULT_GAIN };
+
+	/*!
+	 * \property EEGDecoder::_gain
+	 *
+	 * Gain of each channel.
+	 */
+	private int[] _gain;
+
+	/*!
+	 * \property EEGDecoder::_scale
+	 *
+	 * Nanovolts per count of each channel, computed from _gain. The gains are
+	 * set from the thread that parses the frames while another one may be
+	 * decoding, so the array is replaced instead of modified.
+	 */
+	private volatile double[] _scale;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. All the channels have DEFAULT_GAIN.
+	 */
+	public EEGDecoder(){
+		_gain = new int[32];
+		_scale = new double[32];
+		for (int k = 0; k < 32; k++) setGain(k, DEFAULT_GAIN);
+	}
+
+	/*!
+	 * Sets the gain of a channel.
+	 */
+	public void setGain(int channel, int gain){
+		if (channel < 0 || channel >= 32 || gain <= 0) return;
+		_gain[channel] = gain;
+		double[] scale = _scale.clone();
+		scale[channel] = VREF_NV / FULL_SCALE / gain;
+		_scale = scale;
+	}
+
+	public int gain(int channel){
+		return _gain[channel];
+	}
+
+	/*!
+	 * Updates the gains from a range of EEG registers. The registers that are
+	 * not CH_n_SET are ignored.
+	 *
+	 * \param startAddress Address of the first register.
+	 *
+	 * \param numRegs Number of registers.
+	 *
+	 * \param reg Values of the registers, indexed by address.
+	 */
+	public void setRegisters(int startAddress, int numRegs, char[] reg){
+		int first = DennisRegisters.EEG_REGS_CH_1_SET_ADDR;
+		int last = DennisRegisters.EEG_REGS_CH_8_SET_ADDR;
+		for (int address = Math.max(startAddress, first); address <= last && address < startAddress + numRegs; address++)
+		{
+			setGain(address - first, PGA_GAINS[(reg[address] >> 4) & 0x07]);
+		}
+	}
+
+	/*!
+	 * Decodes in place the EEG samples of a frame, stored at the end of a
+	 * block. Each channel is decoded along its column.
+	 *
+	 * \param block Block with the samples of the frame, as received, from
+	 * the given one on. The samples before it are left untouched.
+	 *
+	 * \param from First sample of the frame in the block.
+	 *
+	 * \param compressionType Compression of the frame. The first sample is
+	 * never compressed.
+	 */
+	public void decode(SampleBlock block, int from, StarStimProtocol.EEGCompressionType compressionType){
+		int nSamples = block.numSamples();
+		if (nSamples <= from) return;
+
+		double[] scale = _scale;
+		if (compressionType == StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION)
+		{
+			for (int i = 0; i < block.numChannels(); i++)
+			{
+				int[] column = block.column(i);
+				double k = scale[block.channelAt(i)];
+				for (int j = from; j < nSamples; j++) column[j] = (int) (((column[j] << 8) >> 8) * k);
+			}
+			return;
+		}
+
+		// 16 or 12 bit differences with the first sample
+		int shift = (compressionType == StarStimProtocol.EEGCompressionType.EEG_16BIT_COMPRESSION) ? 16 : 20;
+		for (int i = 0; i < block.numChannels(); i++)
+		{
+			int[] column = block.column(i);
+			double k = scale[block.channelAt(i)];
+			int reference = (column[from] << 8) >> 8;
+			column[from] = (int) (reference * k);
+			for (int j = from + 1; j < nSamples; j++) column[j] = (int) ((((column[j] << shift) >> shift) + reference) * k);
+		}
+	}
+}
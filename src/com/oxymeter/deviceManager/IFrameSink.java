@@ -0,0 +1,15 @@
+package com.icognos.deviceManager;
+
+/*!
+ * Receives the frames completed by StarStimProtocol::parse.
+ */
+public interface IFrameSink {
+
+    /*!
+     * Called for each frame completed.
+     *
+     * \param data Content of the frame. It is reused by the parser, so it is
+     * only valid during the call.
+     */
+    void newFrame(StarStimData data);
+}
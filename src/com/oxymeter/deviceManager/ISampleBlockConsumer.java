@@ -0,0 +1,16 @@
+package com.icognos.deviceManager;
+
+/*!
+ * Receives the blocks of EEG samples published in a SampleBlockRing, from a
+ * thread of its own.
+ */
+public interface ISampleBlockConsumer {
+
+    /*!
+     * Called for each block, in order.
+     *
+     * \param block Samples of a frame. It is only valid during the call; use
+     * SampleBlock.retain, and release when done, to keep it.
+     */
+    void newBlock(SampleBlock block);
+}
@@ -0,0 +1,630 @@
+package com.icognos.deviceManager;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.icognos.IenzoHandler;
+import com.icognos.util.Logger;
+
+/*!
+ * Carries the EEG frames from the parser to the handler through four stages:
+ *
+ *  - parse      the polling thread parses the bytes, tracks the packet loss
+ *               and the sample rate correction, copies the raw samples of
+ *               the frame into a SampleBlock and submits it as a job.
+ *  - decode     the samples are scaled to nanovolts and the samples lost
+ *               before the frame are filled with the last one received.
+ *  - timestamp  the sample rate correction is applied and the samples get
+ *               their timestamps.
+ *  - dispatch   the block is given to IenzoHandler.newEEGBlock and then
+ *               published in the SampleBlockRing of the other consumers.
+ *
+ * The jobs live in a preallocated ring. Each stage keeps the count of jobs
+ * it has finished, and a stage only takes a job once the previous stage has
+ * finished it, so the ring is the bounded queue between every pair of
+ * stages. The parse stage waits when the ring is full.
+ *
+ * Each stage is assigned to a thread: 0 is the polling thread and the rest
+ * are workers of the pipeline. Consecutive stages on the same thread run
+ * fused, one after the other on each job. By default all of them run on the
+ * polling thread, as a single call. With other threads the handler is called
+ * from the thread of the dispatch stage.
+ */
+public class IngestPipeline {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	public static final int STAGE_PARSE     = 0;
+	public static final int STAGE_DECODE    = 1;
+	public static final int STAGE_TIMESTAMP = 2;
+	public static final int STAGE_DISPATCH  = 3;
+	public static final int NUM_STAGES      = 4;
+
+	private static final String[] STAGE_NAMES = { "parse", "decode", "timestamp", "dispatch" };
+
+	/*!
+	 * \property IngestPipeline::FUSED
+	 *
+	 * All the stages on the polling thread.
+	 */
+	public static final int[] FUSED = { 0, 0, 0, 0 };
+
+	/*!
+	 * \property IngestPipeline::DSP_THREAD
+	 *
+	 * The parse stage on the polling thread, the rest on a worker.
+	 */
+	public static final int[] DSP_THREAD = { 0, 1, 1, 1 };
+
+	/*!
+	 * \property IngestPipeline::THREAD_PER_STAGE
+	 *
+	 * Every stage on its own thread.
+	 */
+	public static final int[] THREAD_PER_STAGE = { 0, 1, 2, 3 };
+
+	/*!
+	 * \property IngestPipeline::DEFAULT_CAPACITY
+	 *
+	 * Jobs in the ring, one EEG frame each.
+	 */
+	public static final int DEFAULT_CAPACITY = 32;
+
+	/*!
+	 * \property IngestPipeline::PARK_NANOS
+	 *
+	 * Longest wait of a thread waiting for a job, or for room in the ring,
+	 * before it looks at the ring again. It is woken up as soon as there is.
+	 */
+	private static final long PARK_NANOS = 100000000L;
+
+	/*!
+	 * \property IngestPipeline::DRAIN_POLL_NANOS
+	 *
+	 * Interval at which drain looks at the ring.
+	 */
+	private static final long DRAIN_POLL_NANOS = 1000000L;
+
+	/*!
+	 * \property IngestPipeline::DRAIN_TIMEOUT_MS
+	 *
+	 * Longest wait for the jobs in the ring when the pipeline is stopped.
+	 */
+	private static final long DRAIN_TIMEOUT_MS = 1000;
+
+	/*!
+	 * EEG frame on its way through the stages.
+	 */
+	static class Job {
+		/*! Samples lost before the frame, then the raw samples of the frame. */
+		SampleBlock block;
+		/*! Samples lost before the frame, at the start of block. */
+		int repeatedSamples;
+		/*! Sample rate correction of the frame: > 0 repeated, < 0 removed. */
+		int correction;
+		StarStimProtocol.EEGCompressionType compressionType;
+		/*! Time the positions are counted from, see TimestampEngine. */
+		long timestampOrigin;
+		/*! Position of the sample before the first one of the block. */
+		long timestamp;
+		/*! Milliseconds between two samples, fixed point like the positions. */
+		long timestampStep;
+		/*! Samples given to the handler. */
+		int dispatchedSamples;
+	}
+
+	/*!
+	 * Count of jobs finished by a stage.
+	 */
+	private static class Sequence {
+		volatile long value;
+	}
+
+	/*!
+	 * Metrics of a stage. Each one is only written by the thread of its stage.
+	 */
+	private static class StageStatistics {
+		volatile long jobs;
+		volatile long samples;
+		volatile long busyNanos;
+		volatile int highWaterMark;
+	}
+
+	private final Job[] _jobs;
+	private final int _mask;
+
+	/*!
+	 * \property IngestPipeline::_finished
+	 *
+	 * Jobs finished by each stage. The ones of the parse stage are the jobs
+	 * submitted.
+	 */
+	private final Sequence[] _finished;
+	private final StageStatistics[] _statistics;
+
+	/*!
+	 * \property IngestPipeline::_threadOfStage
+	 *
+	 * Thread of each stage while the workers run.
+	 */
+	private volatile int[] _threadOfStage;
+
+	/*!
+	 * \property IngestPipeline::_requestedThreads
+	 *
+	 * Threads set by setStageThreads, applied by the parse stage before its
+	 * next job.
+	 */
+	private volatile int[] _requestedThreads;
+
+	private volatile Worker[] _workers;
+
+	/*!
+	 * \property IngestPipeline::_waitingProducer
+	 *
+	 * Polling thread waiting for room in the ring, null otherwise.
+	 */
+	private volatile Thread _waitingProducer;
+
+	/*!
+	 * \property IngestPipeline::_inlineNanos
+	 *
+	 * Time spent by the polling thread in fused stages, or waiting for room in
+	 * the ring, since the last call to parsed. It is not part of the parse
+	 * stage.
+	 */
+	private long _inlineNanos;
+
+	/*!
+	 * \property IngestPipeline::_stalls
+	 *
+	 * Times the parse stage found the ring full, and the time it waited.
+	 */
+	private volatile long _stalls;
+	private volatile long _stallNanos;
+	private volatile long _parsedBytes;
+	private long _startTime;
+
+	private EEGDecoder _decoder;
+	private IenzoHandler _handler;
+	private SampleBlockRing _ring;
+
+	/*!
+	 * \property IngestPipeline::_lastSample
+	 *
+	 * Last sample decoded, which fills the samples lost after it.
+	 */
+	private ChannelData _lastSample;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. All the stages run on the polling thread.
+	 *
+	 * \param decoder Decoder of the EEG samples.
+	 *
+	 * \param handler Handler the blocks are given to, may be null.
+	 *
+	 * \param ring Ring the blocks are published in after the handler, may be
+	 * null.
+	 *
+	 * \param capacity Jobs in the ring, rounded up to a power of two.
+	 */
+	public IngestPipeline(EEGDecoder decoder, IenzoHandler handler, SampleBlockRing ring, int capacity){
+		int length = 1;
+		while (length < capacity) length <<= 1;
+		_jobs = new Job[length];
+		for (int i = 0; i < length; i++) _jobs[i] = new Job();
+		_mask = length - 1;
+		_finished = new Sequence[NUM_STAGES];
+		_statistics = new StageStatistics[NUM_STAGES];
+		for (int s = 0; s < NUM_STAGES; s++)
+		{
+			_finished[s] = new Sequence();
+			_statistics[s] = new StageStatistics();
+		}
+		_threadOfStage = FUSED;
+		_decoder = decoder;
+		_handler = handler;
+		_ring = ring;
+		_lastSample = new ChannelData();
+		_startTime = System.nanoTime();
+	}
+
+	/*!
+	 * Assigns the stages to threads. It takes effect before the next job, once
+	 * the ones in the ring have gone through.
+	 *
+	 * \param threads Thread of each stage: 0 is the polling thread, and each
+	 * stage is on the thread of the previous one or on the next thread. See
+	 * FUSED, DSP_THREAD and THREAD_PER_STAGE.
+	 */
+	public void setStageThreads(int[] threads){
+		if (threads == null || threads.length != NUM_STAGES || threads[STAGE_PARSE] != 0)
+			throw new IllegalArgumentException("The parse stage runs on thread 0");
+		for (int s = 1; s < NUM_STAGES; s++)
+		{
+			int step = threads[s] - threads[s - 1];
+			if (step != 0 && step != 1)
+				throw new IllegalArgumentException("Stage " + STAGE_NAMES[s] + " is not on the thread of the previous stage or the next one");
+		}
+		_requestedThreads = threads.clone();
+	}
+
+	/*!
+	 * Parse stage. Returns the job to be filled for the next frame, waiting
+	 * while the ring is full. Only called from the polling thread, which
+	 * submits the job with publish.
+	 */
+	Job claim(){
+		if (_requestedThreads != null || (_workers == null && _threadOfStage[NUM_STAGES - 1] != 0))
+		{
+			// New threads, or stopped with stop and started again by the next frame
+			_updateWorkers();
+		}
+
+		long sequence = _finished[STAGE_PARSE].value;
+		Sequence last = _finished[NUM_STAGES - 1];
+		if (sequence - last.value >= _jobs.length)
+		{
+			long start = System.nanoTime();
+			_waitingProducer = Thread.currentThread();
+			while (sequence - last.value >= _jobs.length)
+			{
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+			_waitingProducer = null;
+			long waited = System.nanoTime() - start;
+			_stalls++;
+			_stallNanos += waited;
+			_inlineNanos += waited;
+		}
+		return _jobs[(int) sequence & _mask];
+	}
+
+	/*!
+	 * Parse stage. Submits the job returned by claim. The stages on the
+	 * polling thread run on it before returning.
+	 */
+	void publish(){
+		long sequence = _finished[STAGE_PARSE].value;
+		Job job = _jobs[(int) sequence & _mask];
+		StageStatistics statistics = _statistics[STAGE_PARSE];
+		statistics.jobs++;
+		statistics.samples += job.block.numSamples();
+		for (int s = 1; s < NUM_STAGES; s++)
+		{
+			int depth = (int) (sequence - _finished[s].value);
+			if (depth > _statistics[s].highWaterMark) _statistics[s].highWaterMark = depth;
+		}
+		_finished[STAGE_PARSE].value = sequence + 1;
+
+		int last = _lastStageOfThread(STAGE_PARSE);
+		if (last > STAGE_PARSE)
+		{
+			long start = System.nanoTime();
+			try {
+				_runStages(job, sequence, STAGE_PARSE + 1, last);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+				_dropJob(job, sequence, STAGE_PARSE + 1, last);
+			}
+			_inlineNanos += System.nanoTime() - start;
+		}
+		Worker[] workers = _workers;
+		if (last < NUM_STAGES - 1 && workers != null) _wakeUp(workers[_threadOfStage[last + 1] - 1].thread);
+	}
+
+	/*!
+	 * Accounts the bytes parsed by the polling thread and the time it took,
+	 * stages run inline and waits for room in the ring included.
+	 */
+	void parsed(int bytes, long nanos){
+		StageStatistics statistics = _statistics[STAGE_PARSE];
+		statistics.busyNanos += Math.max(nanos - _inlineNanos, 0);
+		_inlineNanos = 0;
+		_parsedBytes += bytes;
+	}
+
+	/*!
+	 * Waits until the jobs in the ring have gone through all the stages and
+	 * stops the workers. The next job starts them again.
+	 */
+	public synchronized void stop(){
+		if (_workers == null) return;
+		drain(DRAIN_TIMEOUT_MS);
+		_stopWorkers();
+	}
+
+	/*!
+	 * Waits until the jobs in the ring have gone through all the stages.
+	 *
+	 * \return True if the ring is empty.
+	 */
+	public boolean drain(long timeoutMillis){
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (_finished[NUM_STAGES - 1].value < _finished[STAGE_PARSE].value)
+		{
+			if (System.currentTimeMillis() > deadline) return false;
+			LockSupport.parkNanos(DRAIN_POLL_NANOS);
+		}
+		return true;
+	}
+
+	/*!
+	 * Jobs in the ring that a stage has not finished yet.
+	 */
+	public int queueDepth(int stage){
+		if (stage <= STAGE_PARSE) return 0;
+		return (int) (_finished[stage - 1].value - _finished[stage].value);
+	}
+
+	/*!
+	 * Largest queueDepth of a stage seen by the parse stage.
+	 */
+	public int queueHighWaterMark(int stage){
+		return _statistics[stage].highWaterMark;
+	}
+
+	/*!
+	 * Samples a stage processes per second of its own time, which is the
+	 * most it could take.
+	 */
+	public double throughput(int stage){
+		StageStatistics statistics = _statistics[stage];
+		long busyNanos = statistics.busyNanos;
+		if (busyNanos == 0) return 0;
+		return statistics.samples * 1e9 / busyNanos;
+	}
+
+	/*!
+	 * Fraction of the time since the pipeline was created that a stage was
+	 * busy.
+	 */
+	public double load(int stage){
+		long elapsed = System.nanoTime() - _startTime;
+		return (elapsed > 0) ? (double) _statistics[stage].busyNanos / elapsed : 0;
+	}
+
+	public long jobs(int stage){
+		return _statistics[stage].jobs;
+	}
+
+	/*!
+	 * Times the parse stage waited for room in the ring, because a later
+	 * stage could not keep up.
+	 */
+	public long stalls(){
+		return _stalls;
+	}
+
+	public int capacity(){
+		return _jobs.length;
+	}
+
+	public String getStatistics(){
+		StringBuilder builder = new StringBuilder();
+		builder.append("threads ");
+		for (int s = 0; s < NUM_STAGES; s++) builder.append((s == 0) ? "" : "/").append(_threadOfStage[s]);
+		builder.append(", parsed ").append(_parsedBytes).append(" bytes, ring full ").append(_stalls)
+				.append(" times (").append(_stallNanos / 1000000).append(" ms)");
+		for (int s = 0; s < NUM_STAGES; s++)
+		{
+			builder.append("; ").append(STAGE_NAMES[s]).append(' ').append(_statistics[s].jobs).append(" frames ")
+					.append(_statistics[s].samples).append(" samples ")
+					.append(String.format("%.0f samples/s load %.1f%%", throughput(s), 100 * load(s)));
+			if (s > STAGE_PARSE)
+				builder.append(" depth ").append(queueDepth(s)).append(" max ").append(queueHighWaterMark(s));
+		}
+		return builder.toString();
+	}
+
+	/*!
+	 * Runs a range of stages on a job and publishes that each one finished it.
+	 */
+	private void _runStages(Job job, long sequence, int first, int last){
+		for (int s = first; s <= last; s++)
+		{
+			SampleBlock block = job.block;
+			if (block == null)
+			{
+				// Dropped by an earlier stage, see _dropJob
+				_finished[s].value = sequence + 1;
+				continue;
+			}
+			long start = System.nanoTime();
+			switch (s)
+			{
+			case STAGE_DECODE:
+				_decode(job);
+				break;
+			case STAGE_TIMESTAMP:
+				_timestamp(job);
+				break;
+			default:
+				_dispatch(job);
+				break;
+			}
+			StageStatistics statistics = _statistics[s];
+			statistics.busyNanos += System.nanoTime() - start;
+			statistics.jobs++;
+			// Released by the dispatch stage, the count is the job one
+			statistics.samples += (job.block != null) ? block.numSamples() : job.dispatchedSamples;
+			_finished[s].value = sequence + 1;
+		}
+	}
+
+	private void _decode(Job job){
+		SampleBlock block = job.block;
+		int repeated = job.repeatedSamples;
+		_decoder.decode(block, repeated, job.compressionType);
+		block.fill(0, repeated, _lastSample.data());
+		if (block.numSamples() > repeated) block.getSample(block.numSamples() - 1, _lastSample);
+	}
+
+	private void _timestamp(Job job){
+		SampleBlock block = job.block;
+		int repeated = job.repeatedSamples;
+		int frameSamples = block.numSamples() - repeated;
+		// 0 no correction, > 0 frame repetition, < 0 remove frame
+		int correction = job.correction;
+		if (correction < 0) block.truncate(repeated);
+		while (correction-- > 0) block.repeatSamples(repeated, frameSamples);
+
+		long position = job.timestamp;
+		for (int j = 0; j < block.numSamples(); j++)
+		{
+			position += job.timestampStep;
+			block.setTimestamp(j, TimestampEngine.timestamp(job.timestampOrigin, position));
+		}
+	}
+
+	private void _dispatch(Job job){
+		SampleBlock block = job.block;
+		job.block = null;
+		job.dispatchedSamples = block.numSamples();
+		try {
+			if (_handler != null && block.numSamples() > 0) _handler.newEEGBlock(block);
+			if (_ring != null && block.numSamples() > 0) _ring.publish(block);
+		} finally {
+			block.release();
+		}
+	}
+
+	/*!
+	 * Drops a job a stage failed on: its block goes back to the pool and the
+	 * stages of the thread finish it, so the next jobs go on. The following
+	 * stages skip it.
+	 */
+	private void _dropJob(Job job, long sequence, int first, int last){
+		SampleBlock block = job.block;
+		job.block = null;
+		job.dispatchedSamples = 0;
+		// Already released if the dispatch stage failed
+		if (block != null) block.release();
+		for (int s = first; s <= last; s++) _finished[s].value = sequence + 1;
+	}
+
+	/*!
+	 * Last stage running on the thread of a stage.
+	 */
+	private int _lastStageOfThread(int stage){
+		int last = stage;
+		while (last + 1 < NUM_STAGES && _threadOfStage[last + 1] == _threadOfStage[stage]) last++;
+		return last;
+	}
+
+	private void _wakeUp(Thread thread){
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	private synchronized void _updateWorkers(){
+		int[] threads = _requestedThreads;
+		_requestedThreads = null;
+		if (threads != null)
+		{
+			if (_workers != null)
+			{
+				drain(DRAIN_TIMEOUT_MS);
+				_stopWorkers();
+			}
+			_threadOfStage = threads;
+			StringBuilder message = new StringBuilder("IngestPipeline threads");
+			for (int s = 0; s < NUM_STAGES; s++) message.append(' ').append(STAGE_NAMES[s]).append(' ').append(threads[s]);
+			logger.info(message.toString(), Logger.LOG_FILE_ON);
+		}
+		if (_workers == null) _startWorkers();
+	}
+
+	private void _startWorkers(){
+		int numWorkers = _threadOfStage[NUM_STAGES - 1];
+		if (numWorkers == 0) return;
+		Worker[] workers = new Worker[numWorkers];
+		int stage = STAGE_PARSE + 1;
+		while (stage < NUM_STAGES)
+		{
+			int last = _lastStageOfThread(stage);
+			if (_threadOfStage[stage] > 0)
+			{
+				Worker worker = new Worker(stage, last);
+				StringBuilder name = new StringBuilder("Ingest Thread");
+				for (int s = stage; s <= last; s++) name.append(' ').append(STAGE_NAMES[s]);
+				worker.thread = new Thread(worker, name.toString());
+				worker.thread.setDaemon(true);
+				workers[_threadOfStage[stage] - 1] = worker;
+			}
+			stage = last + 1;
+		}
+		_workers = workers;
+		for (int i = 0; i < workers.length; i++) workers[i].thread.start();
+	}
+
+	private void _stopWorkers(){
+		Worker[] workers = _workers;
+		_workers = null;
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i].isRunning = false;
+			LockSupport.unpark(workers[i].thread);
+		}
+		for (int i = 0; i < workers.length; i++)
+		{
+			try {
+				workers[i].thread.join(DRAIN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*!
+	 * Thread running a range of consecutive stages.
+	 */
+	private class Worker implements Runnable {
+		final int first;
+		final int last;
+		Thread thread;
+		volatile boolean isRunning;
+
+		Worker(int first, int last){
+			this.first = first;
+			this.last = last;
+			isRunning = true;
+		}
+
+		public void run(){
+			Sequence previous = _finished[first - 1];
+			long sequence = _finished[first].value;
+			while (isRunning)
+			{
+				if (previous.value <= sequence)
+				{
+					LockSupport.parkNanos(PARK_NANOS);
+					continue;
+				}
+				Job job = _jobs[(int) sequence & _mask];
+				try {
+					_runStages(job, sequence, first, last);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+					_dropJob(job, sequence, first, last);
+				}
+				sequence++;
+				if (last < NUM_STAGES - 1)
+				{
+					Worker[] workers = _workers;
+					if (workers != null) _wakeUp(workers[_threadOfStage[last + 1] - 1].thread);
+				}
+				else
+				{
+					_wakeUp(_waitingProducer);
+				}
+			}
+		}
+	}
+}
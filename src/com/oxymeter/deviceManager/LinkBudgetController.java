@@ -0,0 +1,500 @@
+package com.icognos.deviceManager;
+
+import com.icognos.util.Logger;
+
+/*!
+ * Chooses the EEG compression and the samples per beacon from the quality of
+ * the link, so the channels and rate requested reach the host with as few
+ * lost samples as possible.
+ *
+ * The encodings are tried as a ladder, from the one with the best fidelity
+ * and latency (raw samples, one per beacon) to the one with the fewest bytes
+ * (12 bit differences, many samples per beacon). Levels whose frames do not
+ * fit in the length field of the device are skipped. The polling thread
+ * reports the bytes and EEG frames received; every WINDOW_MS the controller
+ * measures the throughput and the sample loss of the window:
+ *
+ * - With a loss above LOSS_HIGH the link is saturated and the throughput of
+ *   the window is its capacity. The controller steps down to the best
+ *   encoding that fits in HEADROOM of that capacity.
+ *
+ * - Saturated at the cheapest level, it stays there and isSaturated turns
+ *   true. The channels are a fixed demand: the controller never changes
+ *   EEG_CH_INFO nor drops channels, it is for the application to ask for
+ *   fewer channels or a lower rate (see setDemand).
+ *
+ * - After STEP_UP_WINDOWS windows with a loss below LOSS_LOW it steps up one
+ *   level, unless that level needs more than a capacity measured before. A
+ *   step up that brings the loss back is undone and the next one waits
+ *   twice as long.
+ *
+ * The registers are written from a thread of the controller, as the
+ * DeviceManager setters wait for the reply of the device. The frames in
+ * flight while the encoding changes may be dropped by the parser, and the
+ * window they fall in is not measured.
+ *
+ * The controller is disabled by default.
+ */
+public class LinkBudgetController implements Runnable {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property LinkBudgetController::WINDOW_MS
+	 *
+	 * Length of a measurement window.
+	 */
+	public static final long WINDOW_MS = 2000;
+
+	/*!
+	 * \property LinkBudgetController::LOSS_HIGH
+	 *
+	 * Fraction of lost samples that makes the controller step down.
+	 */
+	public static final double LOSS_HIGH = 0.02;
+
+	/*!
+	 * \property LinkBudgetController::LOSS_LOW
+	 *
+	 * Fraction of lost samples below which a window counts as clean.
+	 */
+	public static final double LOSS_LOW = 0.002;
+
+	/*!
+	 * \property LinkBudgetController::HEADROOM
+	 *
+	 * Fraction of the measured capacity an encoding may use.
+	 */
+	public static final double HEADROOM = 0.8;
+
+	/*!
+	 * \property LinkBudgetController::STEP_UP_WINDOWS
+	 *
+	 * Clean windows before the first attempt to step up.
+	 */
+	public static final int STEP_UP_WINDOWS = 5;
+
+	/*!
+	 * \property LinkBudgetController::MAX_STEP_UP_WINDOWS
+	 *
+	 * Longest wait between two attempts to step up.
+	 */
+	public static final int MAX_STEP_UP_WINDOWS = 160;
+
+	/*!
+	 * \property LinkBudgetController::LEVEL_COMPRESSION
+	 *
+	 * Compression and, in LEVEL_SAMPLES_PER_BEACON, samples per beacon of
+	 * each level of the ladder, best fidelity first.
+	 */
+	private static final StarStimProtocol.EEGCompressionType[] LEVEL_COMPRESSION = {
+		StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION,
+		StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION,
+		StarStimProtocol.EEGCompressionType.EEG_16BIT_COMPRESSION,
+		StarStimProtocol.EEGCompressionType.EEG_16BIT_COMPRESSION,
+		StarStimProtocol.EEGCompressionType.EEG_12BIT_COMPRESSION,
+		StarStimProtocol.EEGCompressionType.EEG_12BIT_COMPRESSION
+	};
+	private static final int[] LEVEL_SAMPLES_PER_BEACON = { 1, 4, 4, 8, 8, 16 };
+
+	private DeviceManager _deviceManager;
+
+	private volatile boolean _isEnabled;
+
+	private int _numChannels;
+	private int _sampleRate;
+
+	// Measurement, only used by the polling thread
+	private long _windowStart;
+	private long _windowBytes;
+	private int _windowSamples;
+	private int _windowLostSamples;
+	private int _cleanWindows;
+	private int _stepUpWindows;
+	private int _probedLevel;
+
+	/*!
+	 * \property LinkBudgetController::_isWindowDiscarded
+	 *
+	 * Set when a level has been applied: the stamps of the frames in flight
+	 * do not tell the loss, so the window starts again.
+	 */
+	private volatile boolean _isWindowDiscarded;
+
+	/*!
+	 * \property LinkBudgetController::_capacity
+	 *
+	 * Bytes per second the link delivered when it was last saturated, 0 if
+	 * it has not been.
+	 */
+	private double _capacity;
+	private double _throughput;
+	private double _loss;
+
+	/*!
+	 * \property LinkBudgetController::_level
+	 *
+	 * Level the device is configured with.
+	 */
+	private int _level;
+
+	/*!
+	 * \property LinkBudgetController::_targetLevel
+	 *
+	 * Level chosen, applied by the thread of the controller.
+	 */
+	private int _targetLevel;
+
+	private Thread _thread;
+
+	private int _stepsDown;
+	private int _stepsUp;
+	private String _lastDecision;
+
+	/*!
+	 * \property LinkBudgetController::_isSaturated
+	 *
+	 * Set when the link is saturated at the cheapest level, cleared when a
+	 * window is clean.
+	 */
+	private volatile boolean _isSaturated;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The controller is disabled.
+	 */
+	public LinkBudgetController(DeviceManager deviceManager){
+		_deviceManager = deviceManager;
+		_isEnabled = false;
+		_lastDecision = "none";
+		reset();
+	}
+
+	/*!
+	 * Enables or disables the controller. When disabled the encoding is
+	 * left as it is. When enabled it starts from the encoding the device
+	 * has.
+	 */
+	public void setEnabled(boolean enabled){
+		if (enabled && !_isEnabled)
+		{
+			int level = _currentLevel();
+			synchronized (this) {
+				_level = level;
+				_targetLevel = level;
+			}
+			_isWindowDiscarded = true;
+		}
+		_isEnabled = enabled;
+	}
+
+	public boolean isEnabled(){
+		return _isEnabled;
+	}
+
+	/*!
+	 * Sets the channels and rate to be delivered. By default the channels of
+	 * DeviceManager::getNumOfChannels at 500 samples per second, 1000 on
+	 * 1000SPS devices.
+	 */
+	public synchronized void setDemand(int numChannels, int sampleRate){
+		_numChannels = numChannels;
+		_sampleRate = sampleRate;
+	}
+
+	/*!
+	 * Forgets the measurements, as when the streaming starts again. The
+	 * capacity measured is kept, the link is the same.
+	 */
+	public void reset(){
+		_windowStart = 0;
+		_windowBytes = 0;
+		_windowSamples = 0;
+		_windowLostSamples = 0;
+		_cleanWindows = 0;
+		_stepUpWindows = STEP_UP_WINDOWS;
+		_probedLevel = -1;
+		_isSaturated = false;
+	}
+
+	/*!
+	 * Called by the polling thread with the bytes read from the device.
+	 */
+	void bytesReceived(int nBytes){
+		_windowBytes += nBytes;
+	}
+
+	/*!
+	 * Called by the polling thread with each EEG frame.
+	 *
+	 * \param samples samples in the frame
+	 *
+	 * \param lostSamples samples lost right before it
+	 */
+	void eegFrameReceived(int samples, int lostSamples){
+		if (!_isEnabled) return;
+		long now = System.currentTimeMillis();
+		if (_windowStart == 0 || _isWindowDiscarded)
+		{
+			_isWindowDiscarded = false;
+			_windowStart = now;
+			_windowBytes = 0;
+			_windowSamples = 0;
+			_windowLostSamples = 0;
+			return;
+		}
+		_windowSamples += samples;
+		_windowLostSamples += lostSamples;
+
+		long elapsed = now - _windowStart;
+		if (elapsed < WINDOW_MS) return;
+
+		_throughput = _windowBytes * 1000.0 / elapsed;
+		_loss = (double) _windowLostSamples / (_windowSamples + _windowLostSamples);
+		_windowStart = now;
+		_windowBytes = 0;
+		_windowSamples = 0;
+		_windowLostSamples = 0;
+		_evaluate();
+	}
+
+	/*!
+	 * Decides the level from the last window.
+	 */
+	private void _evaluate(){
+		int level;
+		synchronized (this) {
+			// Still applying the last decision
+			if (_targetLevel != _level) return;
+			level = _level;
+		}
+
+		if (_loss > LOSS_HIGH)
+		{
+			_capacity = _throughput;
+			_cleanWindows = 0;
+			if (level == _probedLevel)
+			{
+				// The step up failed: wait longer for the next one
+				_stepUpWindows = Math.min(2 * _stepUpWindows, MAX_STEP_UP_WINDOWS);
+			}
+			_probedLevel = -1;
+			// The best cheaper level that fits, or the cheapest one
+			int next = _nextLevel(level, 1);
+			while (next >= 0 && bytesPerSecond(next) > HEADROOM * _capacity)
+			{
+				int cheaper = _nextLevel(next, 1);
+				if (cheaper < 0) break;
+				next = cheaper;
+			}
+			if (next >= 0)
+			{
+				_choose(next, "loss " + _percent(_loss) + " at " + (int) _throughput + " B/s");
+			}
+			else if (!_isSaturated)
+			{
+				// No cheaper level: the demand does not fit in the link
+				_isSaturated = true;
+				synchronized (this) {
+					_lastDecision = "saturated at " + describeLevel(level) + ", loss " + _percent(_loss)
+							+ " at " + (int) _throughput + " B/s";
+					logger.info("LinkBudgetController " + _lastDecision, Logger.LOG_FILE_ON);
+				}
+			}
+			return;
+		}
+
+		if (_loss >= LOSS_LOW)
+		{
+			_cleanWindows = 0;
+			return;
+		}
+
+		// Clean window
+		_isSaturated = false;
+		_cleanWindows++;
+		if (level == _probedLevel)
+		{
+			if (_cleanWindows >= STEP_UP_WINDOWS)
+			{
+				// The step up held
+				_probedLevel = -1;
+				_stepUpWindows = STEP_UP_WINDOWS;
+				_cleanWindows = 0;
+			}
+			return;
+		}
+		int next = _nextLevel(level, -1);
+		if (next < 0 || _cleanWindows < _stepUpWindows) return;
+		_cleanWindows = 0;
+		if (_capacity > 0 && bytesPerSecond(next) > _capacity)
+		{
+			// Needs more than the link gave when saturated; try again later
+			// in case the link got better
+			_capacity = 0;
+			return;
+		}
+		_probedLevel = next;
+		_choose(next, "clean link at " + (int) _throughput + " B/s");
+	}
+
+	private void _choose(int level, String reason){
+		synchronized (this) {
+			if (level < _level) _stepsUp++;
+			else _stepsDown++;
+			_targetLevel = level;
+			_lastDecision = describeLevel(level) + " (" + (int) bytesPerSecond(level) + " B/s), " + reason;
+			logger.info("LinkBudgetController " + _lastDecision, Logger.LOG_FILE_ON);
+			if (_thread != null && _thread.isAlive()) return;
+			_thread = new Thread(this);
+			_thread.setName("Link Budget Thread");
+			_thread.start();
+		}
+	}
+
+	/*!
+	 * Writes the level chosen to the device.
+	 */
+	@Override
+	public void run() {
+		while (true)
+		{
+			int level;
+			int current;
+			synchronized (this) {
+				level = _targetLevel;
+				current = _level;
+				if (level == current || !_isEnabled)
+				{
+					_targetLevel = _level;
+					_thread = null;
+					return;
+				}
+			}
+			StarStimProtocol.EEGCompressionType compression = LEVEL_COMPRESSION[level];
+			int samplesPerBeacon = LEVEL_SAMPLES_PER_BEACON[level];
+			// What makes the frames shorter goes first, so no frame in
+			// between is longer than both levels
+			boolean isCompressionFirst = (level > current);
+			if (isCompressionFirst && _deviceManager.eegCompressionType() != compression)
+				_deviceManager.eegCompressionType(compression);
+			if (_deviceManager.multipleSample() != 1 && samplesPerBeacon > 1)
+				_deviceManager.multipleSample(1);
+			if (_deviceManager.samplesPerBeacon() != samplesPerBeacon)
+				_deviceManager.samplesPerBeacon(samplesPerBeacon);
+			if (!isCompressionFirst && _deviceManager.eegCompressionType() != compression)
+				_deviceManager.eegCompressionType(compression);
+			_isWindowDiscarded = true;
+			synchronized (this) {
+				_level = level;
+			}
+		}
+	}
+
+	/*!
+	 * Bytes per second the device sends at a level for the demand set.
+	 */
+	public synchronized double bytesPerSecond(int level){
+		int rate = (_sampleRate > 0) ? _sampleRate : ((_deviceManager.is1000SPS() == 1) ? 1000 : 500);
+		return (double) rate / LEVEL_SAMPLES_PER_BEACON[level] * frameLength(level);
+	}
+
+	/*!
+	 * Length of the EEG frames at a level for the demand set.
+	 */
+	public synchronized int frameLength(int level){
+		int channels = (_numChannels > 0) ? _numChannels : _deviceManager.getNumOfChannels();
+		int samplesPerBeacon = LEVEL_SAMPLES_PER_BEACON[level];
+
+		int sample;
+		switch (LEVEL_COMPRESSION[level])
+		{
+		case EEG_16BIT_COMPRESSION: sample = 2 * channels; break;
+		case EEG_12BIT_COMPRESSION: sample = 3 * ((channels + 1) / 2); break;
+		default: sample = 3 * channels; break;
+		}
+		// SOF, length, status, number of samples, channel info, samples,
+		// stamp and EOF
+		return 3 + (_deviceManager._protocol.isLength2Bytes() ? 2 : 1) + 2
+				+ ((samplesPerBeacon > 1 || _deviceManager.multipleSample() == 1) ? 1 : 0) + 4
+				+ 3 * channels + (samplesPerBeacon - 1) * sample
+				+ ((_deviceManager.getFirmwareVersion() >= 800) ? 4 : 1) + 4;
+	}
+
+	/*!
+	 * Next level in a direction whose frames fit in the length field.
+	 *
+	 * \param step 1 for cheaper levels, -1 for better ones.
+	 *
+	 * \return The level, -1 if there is none.
+	 */
+	private int _nextLevel(int level, int step){
+		int maxLength = _deviceManager._protocol.isLength2Bytes() ? StarStimProtocol.MAX_FRAME_LENGTH : 0xFF;
+		for (int next = level + step; next >= 0 && next < LEVEL_COMPRESSION.length; next += step)
+		{
+			if (frameLength(next) <= maxLength) return next;
+		}
+		return -1;
+	}
+
+	/*!
+	 * Level of the encoding the device has, the best fidelity if it is not
+	 * one of the ladder.
+	 */
+	private int _currentLevel(){
+		StarStimProtocol.EEGCompressionType compression = _deviceManager.eegCompressionType();
+		int samplesPerBeacon = (_deviceManager.multipleSample() == 1) ? _deviceManager.samplesPerBeacon() : 1;
+		for (int level = 0; level < LEVEL_COMPRESSION.length; level++)
+		{
+			if (LEVEL_COMPRESSION[level] == compression && LEVEL_SAMPLES_PER_BEACON[level] == samplesPerBeacon)
+				return level;
+		}
+		return 0;
+	}
+
+	public static int numLevels(){
+		return LEVEL_COMPRESSION.length;
+	}
+
+	public static String describeLevel(int level){
+		return LEVEL_COMPRESSION[level] + ", " + LEVEL_SAMPLES_PER_BEACON[level] + " samples per beacon";
+	}
+
+	private static String _percent(double fraction){
+		return String.format("%.2f%%", 100 * fraction);
+	}
+
+	/*!
+	 * Whether the link loses samples even at the cheapest level. Only fewer
+	 * channels or a lower rate in the demand can help then.
+	 */
+	public boolean isSaturated(){
+		return _isSaturated;
+	}
+
+	/*!
+	 * Level the device is configured with, 0 being the best fidelity.
+	 */
+	public synchronized int getLevel(){
+		return _level;
+	}
+
+	/*!
+	 * Last decision taken and its reason.
+	 */
+	public synchronized String getLastDecision(){
+		return _lastDecision;
+	}
+
+	public synchronized String getStatistics(){
+		return "level " + _level + " (" + describeLevel(_level) + ") throughput " + (int) _throughput
+				+ " B/s loss " + _percent(_loss) + " capacity " + (int) _capacity + " B/s, "
+				+ _stepsDown + " steps down " + _stepsUp + " steps up" + (_isSaturated ? ", saturated" : "")
+				+ ", last: " + _lastDecision;
+	}
+}
@@ -2,6 +2,7 @@ package com.icognos.deviceManager;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 
@@ -9,6 +10,10 @@ import android.app.Activity;
 
 import com.icognos.IScanDiscoveryFinishedHandler;
 import com.icognos.bluetooth.BluetoothManager;
+import com.icognos.bluetooth.INICBluetooth;
+import com.icognos.transport.CaptureWriter;
+import com.icognos.transport.StreamTransport;
+import com.icognos.util.ByteRingBuffer;
 import com.icognos.util.Reference;
 import com.icognos.util.Logger;
 
@@ -57,9 +62,17 @@ public class RFCOMMDevice {
     private Logger logger;
     
     /*!
-     * \property AndroidBluetoothManager
+     * \property RFCOMMDevice::_transport
      *
-     * Wrapper for the API bluetooth
+     * Transport the bytes are exchanged through. By default the wrapper for
+     * the API bluetooth, but any INICBluetooth can be plugged in.
+     */    
+    private INICBluetooth _transport;
+
+    /*!
+     * \property RFCOMMDevice::_btManager
+     *
+     * Wrapper for the API bluetooth, null when there is no Activity.
      */    
     private BluetoothManager _btManager;
     
@@ -92,6 +105,91 @@ public class RFCOMMDevice {
      */
     static int _numberOfInstances;
 
+    /*!
+     * \property RFCOMMDevice::_directReadBuffer
+     *
+     * Intermediate buffer used when reading into a ByteBuffer without backing
+     * array. It is allocated once and reused.
+     */
+    private byte[] _directReadBuffer;
+
+    /*!
+     * \property RFCOMMDevice::RX_RING_CAPACITY
+     *
+     * Size in bytes of the ring between the reader thread and the consumer.
+     * It holds a couple of seconds of a 32 channel stream at 1000 SPS.
+     */
+    public static final int RX_RING_CAPACITY = 1 << 18;
+
+    /*!
+     * \property RFCOMMDevice::READER_CHUNK_LENGTH
+     *
+     * Maximum number of bytes drained from the socket on each read of the
+     * reader thread.
+     */
+    private static final int READER_CHUNK_LENGTH = 4096;
+
+    /*!
+     * \property RFCOMMDevice::_useReaderThread
+     *
+     * When true (default) a dedicated thread drains the socket into _rxRing
+     * and the read methods consume from the ring. When false the read methods
+     * access the socket directly.
+     */
+    private boolean _useReaderThread;
+
+    /*!
+     * \property RFCOMMDevice::_rxRing
+     *
+     * Single-producer/single-consumer ring filled by the reader thread.
+     */
+    private ByteRingBuffer _rxRing;
+
+    /*!
+     * \property RFCOMMDevice::_readerThread
+     *
+     * Thread draining the socket, null if it is not running. It is kept
+     * while a reader asked to stop has not finished yet.
+     */
+    private Thread _readerThread;
+
+    /*!
+     * \property RFCOMMDevice::_isReaderRunning
+     *
+     * Set to false to request the reader thread to finish.
+     */
+    private volatile boolean _isReaderRunning;
+
+    /*!
+     * \property RFCOMMDevice::_isReaderFinished
+     *
+     * True once the reader thread has left its loop, either because it was
+     * requested or because the socket failed.
+     */
+    private volatile boolean _isReaderFinished;
+
+    /*!
+     * \property RFCOMMDevice::_readerBuffer
+     *
+     * Buffer where the reader thread receives the bytes from the socket.
+     */
+    private byte[] _readerBuffer;
+
+    /*!
+     * \property RFCOMMDevice::_boxedReadBuffer
+     *
+     * Scratch buffer backing the read method with ArrayList<Byte>.
+     */
+    private byte[] _boxedReadBuffer;
+
+    /*!
+     * \property RFCOMMDevice::_capture
+     *
+     * Writer where the received bytes are recorded, null if no capture is
+     * running.
+     */
+    private volatile CaptureWriter _capture;
+
     //  -- METHODS --
     // --------------
     
@@ -105,16 +203,65 @@ public class RFCOMMDevice {
 		_handle = 0;
 		_rfcommTimeout = 100000;
 		
-		_btManager = BluetoothManager.getInstance(activity, _scanDiscoveryFinished);
+		_useReaderThread = true;
+		_rxRing = new ByteRingBuffer(RX_RING_CAPACITY);
+		_readerBuffer = new byte[READER_CHUNK_LENGTH];
+		_isReaderFinished = true;
 		
-	    if (_numberOfInstances++ == 0)
-	    {
-	        int ret = 0;
-	        ret = _btManager.iniBTSockets();
-	    }
+		// Bluetooth needs an Activity. Without it a transport must be provided
+		// through setTransport before opening
+		if (activity != null)
+		{
+			_btManager = BluetoothManager.getInstance(activity, _scanDiscoveryFinished);
+			_transport = _btManager;
+		    if (_numberOfInstances++ == 0)
+		    {
+		        int ret = 0;
+		        ret = _btManager.iniBTSockets();
+		    }
+		}
 		
 	}
 
+	/*!
+	 * Public Constructor for a device reached through the given transport
+	 */
+	public RFCOMMDevice(INICBluetooth transport){
+		this(null, null);
+		_transport = transport;
+	}
+
+	/*!
+	 * It sets the transport used by the next call to open. Null restores the
+	 * Bluetooth transport.
+	 *
+	 * \param transport INICBluetooth implementation to be used.
+	 */
+	public void setTransport (INICBluetooth transport){
+		_transport = (transport != null) ? transport : _btManager;
+	}
+
+	/*!
+	 * It returns the transport in use.
+	 */
+	public INICBluetooth getTransport (){
+		return _transport;
+	}
+
+	/*!
+	 * It returns whether the transport in use is the Bluetooth one.
+	 */
+	public boolean isBluetoothTransport (){
+		return (_transport != null) && (_transport == _btManager);
+	}
+
+	/*!
+	 * It returns whether the transport in use replays a recording.
+	 */
+	public boolean isReplayTransport (){
+		return (_transport instanceof StreamTransport) && ((StreamTransport) _transport).isReplay();
+	}
+
 	
 
 
@@ -139,7 +286,13 @@ public class RFCOMMDevice {
     	Reference<Integer> handleRef = new Reference<Integer>(0);
 
     	logger.info("Opening device ...", Logger.LOG_FILE_ON);
-		int returnValue = _btManager.openRFCOMM(macAddress, handleRef);
+		if (_transport == null)
+		{
+			_lastError = errType.ERR_DEVICE_NOT_CONNECTED;
+			logger.info("ERROR IN RFCOMMDevice::open no transport available", Logger.LOG_FILE_ON);
+			return _lastError;
+		}
+		int returnValue = _transport.openRFCOMM(macAddress, handleRef);
 		this._handle = handleRef.get();
 		if (returnValue != 1)
 		{
@@ -152,6 +305,14 @@ public class RFCOMMDevice {
 		    return _lastError;
 		}
 		
+		if (_useReaderThread && !_startReaderThread())
+		{
+		    // The previous reader would be a second producer of the ring
+		    _transport.closeRFCOMM(_handle);
+		    _lastError = errType.ERR_DEVICE_NOT_CONNECTED;
+		    logger.info("ERROR IN RFCOMMDevice::open previous reader thread still running", Logger.LOG_FILE_ON);
+		    return _lastError;
+		}
 		
 		return errType.ERR_NO_ERROR;    	    	
     }
@@ -167,7 +328,10 @@ public class RFCOMMDevice {
 		logDebugBluetooth("[RFD] Calling close device");
 		
     	logger.info("Closing device ...", Logger.LOG_FILE_ON);
-		if (_btManager.closeRFCOMM(_handle) <= 0)
+    	_isReaderRunning = false;
+		int returnValue = (_transport != null) ? _transport.closeRFCOMM(_handle) : 1;
+		_stopReaderThread();
+		if (returnValue <= 0)
 		{
 		    _lastError = errType.ERR_CLOSING_DEVICE;
 		    return _lastError;
@@ -186,9 +350,43 @@ public class RFCOMMDevice {
      * the numBytes parameter, then check the getLastError method.
      */
     public int read (ArrayList<Byte> buffer, long numBytes) throws IOException{
-        int nBytes = -1;
-        nBytes = _btManager.readRFCOMM(_handle, buffer, numBytes, _rfcommTimeout);
+        if (_boxedReadBuffer == null || _boxedReadBuffer.length < numBytes)
+            _boxedReadBuffer = new byte[(int) numBytes];
+        int nBytes = read(_boxedReadBuffer, 0, (int) numBytes);
         //logger.info ("RFCOMMDevice::read" + nBytes, Logger.LOG_FILE_ON);
+        for (int i = 0; i < nBytes; i++) buffer.add(_boxedReadBuffer[i]);
+        return nBytes;
+    }
+
+    /*!
+     * It reads from the hardware device up to an specific number of bytes
+     * into a primitive buffer. No boxing nor allocation is performed.
+     *
+     * \param buffer Buffer that receives the data from the device.
+     *
+     * \param offset Position in buffer where the first byte is stored.
+     *
+     * \param numBytes Maximum number of bytes to be read from the hardware
+     * device.
+     *
+     * \return Number of actual bytes read. A negative value means that the
+     * device could not be read, check the getLastError method.
+     */
+    public int read (byte[] buffer, int offset, int numBytes) throws IOException{
+        int nBytes = -1;
+        if (_readerThread != null)
+        {
+            // Consume what the reader thread has already drained from the socket
+            boolean isFinished = _isReaderFinished;
+            nBytes = _rxRing.read(buffer, offset, numBytes, _rfcommTimeout / 1000);
+            if (nBytes == 0 && isFinished) nBytes = -1;
+        }
+        else
+        {
+            nBytes = _transport.readRFCOMM(_handle, buffer, offset, numBytes, _rfcommTimeout);
+            CaptureWriter capture = _capture;
+            if (nBytes > 0 && capture != null) capture.append(buffer, offset, nBytes);
+        }
         if (nBytes < 0)
         {
             _lastError = errType.ERR_READING_DEVICE;
@@ -196,6 +394,33 @@ public class RFCOMMDevice {
         return nBytes;
     }
 
+    /*!
+     * It reads from the hardware device as many bytes as remaining in the
+     * provided buffer. The position of the buffer is advanced by the number of
+     * bytes read.
+     *
+     * \param buffer Buffer that receives the data from the device.
+     *
+     * \return Number of actual bytes read. A negative value means that the
+     * device could not be read, check the getLastError method.
+     */
+    public int read (ByteBuffer buffer) throws IOException{
+        int nBytes = -1;
+        if (buffer.hasArray())
+        {
+            nBytes = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (nBytes > 0) buffer.position(buffer.position() + nBytes);
+        }
+        else
+        {
+            if (_directReadBuffer == null || _directReadBuffer.length < buffer.remaining())
+                _directReadBuffer = new byte[buffer.remaining()];
+            nBytes = read(_directReadBuffer, 0, buffer.remaining());
+            if (nBytes > 0) buffer.put(_directReadBuffer, 0, nBytes);
+        }
+        return nBytes;
+    }
+
     /*!
      * It writes to the hardware device the number of bytes specified in the
      * parameters.
@@ -210,7 +435,7 @@ public class RFCOMMDevice {
     public int write (ArrayList<Byte> buffer, long numBytes) throws IOException{
     	    	
         int ret = -1;
-        ret = _btManager.writeRFCOMM(_handle, buffer, numBytes);
+        if (_transport != null) ret = _transport.writeRFCOMM(_handle, buffer, numBytes);
         //logger.info ("RFCOMMDevice::write" + nBytes, Logger.LOG_FILE_ON);
         if (ret < 0)
         {
@@ -220,6 +445,29 @@ public class RFCOMMDevice {
     	    	
     }
 
+    /*!
+     * It writes to the hardware device a span of a primitive buffer. No
+     * boxing nor allocation is performed.
+     *
+     * \param buffer Buffer where the bytes to be sent are placed.
+     *
+     * \param offset Position in buffer of the first byte to be sent.
+     *
+     * \param numBytes Number of bytes to be sent to the device.
+     *
+     * \return Number of byte written to the device.
+     */
+    public int write (byte[] buffer, int offset, int numBytes) throws IOException{
+
+        int ret = -1;
+        if (_transport != null) ret = _transport.writeRFCOMM(_handle, buffer, offset, numBytes);
+        if (ret < 0)
+        {
+            _lastError = errType.ERR_WRITING_DEVICE;
+        }
+        return ret;
+    }
+
     /*!
      * It returns the last error that might have happened when accessing the
      * hardware device.
@@ -240,13 +488,176 @@ public class RFCOMMDevice {
         _rfcommTimeout = timeout;
     }
 
+    /*!
+     * Makes a read that is waiting for data return now, so the thread
+     * blocked on it can attend other work. Only effective with the reader
+     * thread.
+     */
+    public void wakeUpReader (){
+        if (_rxRing != null) _rxRing.wakeUpConsumer();
+    }
+
     /*!
      * It returns the pending bytes in the reading buffer.
      *
      * \return Number of byte pending to be read.
      */
     public long pendingBytesOnReading (){
-        return 0;
+        if (_readerThread == null) return 0;
+        return _rxRing.size();
+    }
+
+    /*!
+     * It enables or disables the reader thread. It takes effect on the next
+     * call to open.
+     *
+     * \param value true for draining the socket from a dedicated thread.
+     */
+    public void setUseReaderThread (boolean value){
+        _useReaderThread = value;
+    }
+
+    /*!
+     * It records the bytes received from now on, with the time they were
+     * received, until it is called with null. The writer is not closed.
+     *
+     * \param capture Writer of the capture, null to stop capturing.
+     */
+    public void setCapture (CaptureWriter capture){
+        _capture = capture;
+    }
+
+    /*!
+     * It returns the maximum number of bytes that have been waiting in the
+     * reception ring since the device was opened.
+     */
+    public int rxHighWaterMark (){
+        return _rxRing.highWaterMark();
+    }
+
+    /*!
+     * It returns the number of times the reception ring was found full since
+     * the device was opened.
+     */
+    public long rxOverflowCount (){
+        return _rxRing.overflowCount();
+    }
+
+    /*!
+     * It returns the number of bytes dropped because the reception ring was
+     * full since the device was opened.
+     */
+    public long rxOverflowBytes (){
+        return _rxRing.overflowBytes();
+    }
+
+    /*!
+     * It launches the thread that drains the socket into _rxRing, once the
+     * previous one has finished.
+     *
+     * \return false if the previous reader thread is still running.
+     */
+    private boolean _startReaderThread (){
+        _isReaderRunning = false;
+        if (!_joinReaderThread()) return false;
+
+        // Neither side works on the ring now
+        _rxRing.clear();
+        _rxRing.resetStatistics();
+        _isReaderRunning = true;
+        _isReaderFinished = false;
+        _readerThread = new Thread(new Runnable() {
+            public void run() {
+                _readerLoop();
+            }
+        });
+        _readerThread.setName("RFCOMM Reader Thread");
+        _readerThread.start();
+        return true;
+    }
+
+    /*!
+     * It waits for the reader thread to finish. The socket must have been
+     * closed before so the blocking read returns.
+     */
+    private void _stopReaderThread (){
+        Thread readerThread = _readerThread;
+        if (readerThread == null) return;
+
+        _isReaderRunning = false;
+        _rxRing.wakeUpConsumer();
+        if (readerThread == Thread.currentThread()) return;
+        if (!_joinReaderThread())
+        {
+            logger.info("Reader thread did not finish, it is waited for on the next open", Logger.LOG_FILE_ON);
+            return;
+        }
+        logger.info("Reader thread stopped. High water mark " + _rxRing.highWaterMark()
+                + " bytes, overflows " + _rxRing.overflowCount() + " (" + _rxRing.overflowBytes() + " bytes)", Logger.LOG_FILE_ON);
+    }
+
+    /*!
+     * It waits for the reader thread to finish, and forgets it once it has.
+     *
+     * \return true if there is no reader thread running.
+     */
+    private boolean _joinReaderThread (){
+        Thread readerThread = _readerThread;
+        if (readerThread == null) return true;
+        try {
+            readerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (readerThread.isAlive()) return false;
+        _readerThread = null;
+        return true;
+    }
+
+    /*!
+     * Body of the reader thread. It only moves bytes from the socket to the
+     * ring, so a slow consumer never stalls the radio link.
+     */
+    private void _readerLoop (){
+        try {
+            while (_isReaderRunning)
+            {
+                int nBytes = _transport.readRFCOMM(_handle, _readerBuffer, 0, _readerBuffer.length, _rfcommTimeout);
+                if (nBytes < 0)
+                {
+                    break;
+                }
+                else if (nBytes == 0)
+                {
+                    // Transport not connected (yet), avoid spinning
+                    Thread.sleep(1);
+                    continue;
+                }
+                CaptureWriter capture = _capture;
+                if (capture != null) capture.append(_readerBuffer, 0, nBytes);
+                _rxRing.write(_readerBuffer, 0, nBytes);
+            }
+        } catch (IOException e) {
+            if (_isReaderRunning)
+            {
+                e.printStackTrace();
+                logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+            }
+        } catch (RuntimeException e) {
+            // Streams closed under a read may fail with other exceptions.
+            // The thread ends as on a link loss instead of taking down the
+            // application
+            if (_isReaderRunning)
+            {
+                e.printStackTrace();
+                logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+            }
+        } catch (InterruptedException e) {
+            // Finishing
+        } finally {
+            _isReaderFinished = true;
+            _rxRing.wakeUpConsumer();
+        }
     }
 	
 	
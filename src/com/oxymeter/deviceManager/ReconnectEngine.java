@@ -0,0 +1,340 @@
+package com.icognos.deviceManager;
+
+import com.icognos.util.Logger;
+
+/*!
+ * Brings a device back after the link is lost while it is open.
+ *
+ * DeviceManager reports the loss from the polling thread through linkLost.
+ * The engine then tries to open the device again from its own thread, waiting
+ * INITIAL_BACKOFF_MS before the first attempt and doubling the wait after each
+ * failed one, up to MAX_BACKOFF_MS. It gives up once the link has been down
+ * for longer than the maximum recovery time.
+ *
+ * The time to recover is measured from the loss of the link to the first EEG
+ * sample received after it when the device was streaming, or to the reopening
+ * of the device otherwise.
+ */
+public class ReconnectEngine implements Runnable {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property ReconnectEngine::INITIAL_BACKOFF_MS
+	 *
+	 * Wait before the first attempt.
+	 */
+	public static final long INITIAL_BACKOFF_MS = 250;
+
+	/*!
+	 * \property ReconnectEngine::MAX_BACKOFF_MS
+	 *
+	 * Maximum wait between two attempts.
+	 */
+	public static final long MAX_BACKOFF_MS = 4000;
+
+	/*!
+	 * \property ReconnectEngine::DEFAULT_MAX_RECOVERY_MS
+	 *
+	 * Time after which the engine gives up.
+	 */
+	public static final long DEFAULT_MAX_RECOVERY_MS = 60000;
+
+	private DeviceManager _deviceManager;
+
+	private volatile boolean _isEnabled;
+
+	/*!
+	 * \property ReconnectEngine::_isCancelled
+	 *
+	 * Set when the device is closed by the application, so a running
+	 * recovery does not open it again.
+	 */
+	private volatile boolean _isCancelled;
+
+	private long _maxRecoveryTime;
+
+	/*!
+	 * \property ReconnectEngine::_thread
+	 *
+	 * Thread of the current recovery, null if none.
+	 */
+	private Thread _thread;
+
+	/*!
+	 * \property ReconnectEngine::_resumeStreaming
+	 *
+	 * Whether the device was streaming when the link was lost.
+	 */
+	private boolean _resumeStreaming;
+
+	/*!
+	 * \property ReconnectEngine::_lostTime
+	 *
+	 * System.currentTimeMillis when the link was lost.
+	 */
+	private long _lostTime;
+
+	/*!
+	 * \property ReconnectEngine::_isWaitingFirstSample
+	 *
+	 * The device is being opened again, or has been, and the engine waits
+	 * for the first EEG sample to complete the recovery.
+	 */
+	private boolean _isWaitingFirstSample;
+
+	/*!
+	 * \property ReconnectEngine::_isLostAgain
+	 *
+	 * The link has been lost again while the device was being opened.
+	 */
+	private boolean _isLostAgain;
+
+	private int _recoveries;
+	private int _failures;
+	private int _attempts;
+	private long _lastTimeToRecover;
+	private long _maxTimeToRecover;
+	private long _totalTimeToRecover;
+	private int _lastGapSamples;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The engine is enabled.
+	 */
+	public ReconnectEngine(DeviceManager deviceManager){
+		_deviceManager = deviceManager;
+		_isEnabled = true;
+		_maxRecoveryTime = DEFAULT_MAX_RECOVERY_MS;
+	}
+
+	/*!
+	 * Enables or disables the automatic reconnection. When disabled a lost
+	 * link leaves the device closed.
+	 */
+	public void setEnabled(boolean enabled){
+		_isEnabled = enabled;
+	}
+
+	public boolean isEnabled(){
+		return _isEnabled;
+	}
+
+	/*!
+	 * Sets how long the engine keeps trying.
+	 */
+	public synchronized void setMaxRecoveryTime(long maxRecoveryMillis){
+		_maxRecoveryTime = maxRecoveryMillis;
+	}
+
+	public synchronized long getMaxRecoveryTime(){
+		return _maxRecoveryTime;
+	}
+
+	/*!
+	 * Whether a recovery is in progress.
+	 */
+	public synchronized boolean isReconnecting(){
+		return (_thread != null && _thread.isAlive()) || _isWaitingFirstSample;
+	}
+
+	/*!
+	 * Called by the polling thread when the link is lost.
+	 *
+	 * \param resumeStreaming whether the EEG streaming has to be started
+	 * again
+	 *
+	 * \return True if a recovery has been started.
+	 */
+	synchronized boolean linkLost(boolean resumeStreaming){
+		if (!_isEnabled) return false;
+		if (_thread != null && _thread.isAlive())
+		{
+			// The attempt in progress has to start over
+			_isLostAgain = true;
+			_resumeStreaming |= resumeStreaming;
+			return true;
+		}
+
+		// Lost again before the stream came back: still the same outage
+		if (!_isWaitingFirstSample) _lostTime = System.currentTimeMillis();
+		_isWaitingFirstSample = false;
+		_isCancelled = false;
+		_isLostAgain = false;
+		_resumeStreaming = resumeStreaming;
+
+		logger.info("ReconnectEngine::linkLost resumeStreaming " + resumeStreaming, Logger.LOG_FILE_ON);
+		_thread = new Thread(this);
+		_thread.setName("Reconnect Thread");
+		_thread.start();
+		return true;
+	}
+
+	/*!
+	 * Stops a recovery in progress. Called when the application closes the
+	 * device.
+	 */
+	public void cancel(){
+		Thread thread;
+		synchronized (this) {
+			_isCancelled = true;
+			_isWaitingFirstSample = false;
+			thread = _thread;
+		}
+		if (thread == null || thread == Thread.currentThread()) return;
+		thread.interrupt();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+		}
+	}
+
+	/*!
+	 * Whether the recovery in progress has been cancelled by the
+	 * application.
+	 */
+	boolean isCancelled(){
+		return _isCancelled;
+	}
+
+	/*!
+	 * Called by the polling thread with the first EEG sample after a
+	 * recovery.
+	 *
+	 * \param gapSamples samples lost during the outage
+	 */
+	synchronized void streamResumed(int gapSamples){
+		if (!_isWaitingFirstSample) return;
+		_isWaitingFirstSample = false;
+		_lastGapSamples = gapSamples;
+		_recovered();
+	}
+
+	@Override
+	public void run() {
+		long backoff = INITIAL_BACKOFF_MS;
+		boolean resumeStreaming;
+		long lostTime;
+		long maxRecoveryTime;
+		synchronized (this) {
+			lostTime = _lostTime;
+			maxRecoveryTime = _maxRecoveryTime;
+		}
+
+		while (!_isCancelled)
+		{
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (_isCancelled) break;
+
+			// The first sample may arrive before reconnect returns
+			synchronized (this) {
+				_attempts++;
+				_isLostAgain = false;
+				resumeStreaming = _resumeStreaming;
+				_isWaitingFirstSample = resumeStreaming;
+			}
+			logger.info("ReconnectEngine attempt after " + (System.currentTimeMillis() - lostTime) + " ms", Logger.LOG_FILE_ON);
+			boolean isReconnected = _deviceManager.reconnect(resumeStreaming);
+			synchronized (this) {
+				if (isReconnected && !_isLostAgain)
+				{
+					if (!resumeStreaming && !_isCancelled)
+						_recovered();
+					_thread = null;
+					return;
+				}
+				_isWaitingFirstSample = false;
+			}
+
+			if (System.currentTimeMillis() - lostTime >= maxRecoveryTime) break;
+			backoff = Math.min(2 * backoff, MAX_BACKOFF_MS);
+		}
+
+		synchronized (this) {
+			if (!_isCancelled)
+			{
+				_failures++;
+				logger.info("ReconnectEngine gave up after " + (System.currentTimeMillis() - lostTime) + " ms", Logger.LOG_FILE_ON);
+			}
+			_thread = null;
+		}
+	}
+
+	/*!
+	 * Accounts a completed recovery.
+	 */
+	private void _recovered(){
+		_lastTimeToRecover = System.currentTimeMillis() - _lostTime;
+		_totalTimeToRecover += _lastTimeToRecover;
+		if (_lastTimeToRecover > _maxTimeToRecover) _maxTimeToRecover = _lastTimeToRecover;
+		_recoveries++;
+		logger.info("ReconnectEngine recovered in " + _lastTimeToRecover + " ms, " + _lastGapSamples + " samples lost", Logger.LOG_FILE_ON);
+	}
+
+	public synchronized int getRecoveries(){
+		return _recoveries;
+	}
+
+	public synchronized int getFailures(){
+		return _failures;
+	}
+
+	/*!
+	 * Attempts made by all the recoveries, successful or not.
+	 */
+	public synchronized int getAttempts(){
+		return _attempts;
+	}
+
+	/*!
+	 * Time to recover of the last recovery, in milliseconds.
+	 */
+	public synchronized long getLastTimeToRecover(){
+		return _lastTimeToRecover;
+	}
+
+	public synchronized long getMaxTimeToRecover(){
+		return _maxTimeToRecover;
+	}
+
+	/*!
+	 * Mean time to recover of the recoveries so far, in milliseconds.
+	 */
+	public synchronized long getMeanTimeToRecover(){
+		return (_recoveries > 0) ? _totalTimeToRecover / _recoveries : 0;
+	}
+
+	/*!
+	 * Samples lost during the last outage of the stream.
+	 */
+	public synchronized int getLastGapSamples(){
+		return _lastGapSamples;
+	}
+
+	public synchronized void resetStatistics(){
+		_recoveries = 0;
+		_failures = 0;
+		_attempts = 0;
+		_lastTimeToRecover = 0;
+		_maxTimeToRecover = 0;
+		_totalTimeToRecover = 0;
+		_lastGapSamples = 0;
+	}
+
+	public synchronized String getStatistics(){
+		return "recoveries " + _recoveries + " failures " + _failures + " attempts " + _attempts
+				+ " time to recover last " + _lastTimeToRecover + " ms max " + _maxTimeToRecover
+				+ " ms mean " + getMeanTimeToRecover() + " ms, last gap " + _lastGapSamples + " samples";
+	}
+}
@@ -0,0 +1,285 @@
+package com.icognos.deviceManager;
+
+import com.icognos.deviceManager.DeviceManager.StarStimRegisterFamily;
+
+/*!
+ * Host side copy of the configuration registers of the device, so reads of
+ * registers whose value is known do not need a round trip.
+ *
+ * Entries are filled with the values written once the device acknowledges the
+ * write, and with the values read from the device. Each family has a maximum
+ * age after which its entries are read again from the device; a maximum age
+ * of 0 disables the cache for the family.
+ *
+ * Each entry keeps the version of the cache when the request that filled it
+ * was submitted. A reply only updates an entry if its request is newer than
+ * the last update or invalidation of that entry, so a late reply never
+ * brings back an older value. Registers with writes not acknowledged yet are
+ * not served from the cache either, as the value is still unknown.
+ */
+public class RegisterShadowCache {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property RegisterShadowCache::DEFAULT_MAX_AGE_MS
+	 *
+	 * Maximum age of the EEG and accelerometer entries. Those registers are
+	 * only changed by the host.
+	 */
+	public static final long DEFAULT_MAX_AGE_MS = 30000;
+
+	/*!
+	 * \property RegisterShadowCache::NO_CACHE
+	 *
+	 * Maximum age of the families that are always read from the device. The
+	 * stimulation family holds results updated by the device, and the SD card
+	 * registers cannot be read back.
+	 */
+	public static final long NO_CACHE = 0;
+
+	/*!
+	 * \property RegisterShadowCache::_values
+	 *
+	 * Register values, indexed by family ordinal and address.
+	 */
+	private int[][] _values;
+
+	/*!
+	 * \property RegisterShadowCache::_versions
+	 *
+	 * Version of the last update or invalidation of each entry.
+	 */
+	private long[][] _versions;
+
+	/*!
+	 * \property RegisterShadowCache::_timestamps
+	 *
+	 * System.nanoTime of the last update of each entry, 0 if not valid.
+	 */
+	private long[][] _timestamps;
+
+	/*!
+	 * \property RegisterShadowCache::_pendingWrites
+	 *
+	 * Number of writes of each entry waiting for the acknowledge.
+	 */
+	private int[][] _pendingWrites;
+
+	/*!
+	 * \property RegisterShadowCache::_maxAge
+	 *
+	 * Maximum age in nanoseconds of the entries of each family.
+	 */
+	private long[] _maxAge;
+
+	/*!
+	 * \property RegisterShadowCache::_version
+	 *
+	 * Last version handed out.
+	 */
+	private long _version;
+
+	private long _hits;
+	private long _misses;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor
+	 */
+	public RegisterShadowCache(){
+		StarStimRegisterFamily[] families = StarStimRegisterFamily.values();
+		_values = new int[families.length][];
+		_versions = new long[families.length][];
+		_timestamps = new long[families.length][];
+		_pendingWrites = new int[families.length][];
+		_maxAge = new long[families.length];
+		for (int i = 0; i < families.length; i++)
+		{
+			int size = familySize(families[i]);
+			_values[i] = new int[size];
+			_versions[i] = new long[size];
+			_timestamps[i] = new long[size];
+			_pendingWrites[i] = new int[size];
+		}
+		setMaxAge(StarStimRegisterFamily.EEG_REGISTERS, DEFAULT_MAX_AGE_MS);
+		setMaxAge(StarStimRegisterFamily.ACCELEROMETER_REGISTERS, DEFAULT_MAX_AGE_MS);
+		setMaxAge(StarStimRegisterFamily.STIM_REGISTERS, NO_CACHE);
+		setMaxAge(StarStimRegisterFamily.SDCARD_REGISTERS, NO_CACHE);
+		_version = 0;
+	}
+
+	/*!
+	 * Sets how long the entries of a family are trusted.
+	 *
+	 * \param maxAgeMillis Maximum age in milliseconds, NO_CACHE to always read
+	 * the family from the device.
+	 */
+	public synchronized void setMaxAge(StarStimRegisterFamily family, long maxAgeMillis){
+		_maxAge[family.ordinal()] = maxAgeMillis * 1000000L;
+	}
+
+	public synchronized long getMaxAge(StarStimRegisterFamily family){
+		return _maxAge[family.ordinal()] / 1000000L;
+	}
+
+	/*!
+	 * Version to be given to store for a request submitted now.
+	 */
+	public synchronized long nextVersion(){
+		return ++_version;
+	}
+
+	/*!
+	 * Reads consecutive registers if all of them are fresh. It counts a hit
+	 * or a miss.
+	 *
+	 * \return The values, or null if any of them has to be read from the
+	 * device.
+	 */
+	public synchronized byte[] get(StarStimRegisterFamily family, int address, int length){
+		int f = family.ordinal();
+		if (_maxAge[f] <= 0 || address < 0 || address + length > _values[f].length)
+		{
+			_misses++;
+			return null;
+		}
+		long now = System.nanoTime();
+		byte[] values = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			long timestamp = _timestamps[f][address + i];
+			if (timestamp == 0 || now - timestamp > _maxAge[f] || _pendingWrites[f][address + i] > 0)
+			{
+				_misses++;
+				return null;
+			}
+			values[i] = (byte) _values[f][address + i];
+		}
+		_hits++;
+		return values;
+	}
+
+	/*!
+	 * Value of a register if it is fresh, without counting a hit or a miss.
+	 *
+	 * \return The value, or -1 if it has to be read from the device.
+	 */
+	public synchronized int peek(StarStimRegisterFamily family, int address){
+		int f = family.ordinal();
+		if (_maxAge[f] <= 0 || address < 0 || address >= _values[f].length) return -1;
+		long timestamp = _timestamps[f][address];
+		if (timestamp == 0 || System.nanoTime() - timestamp > _maxAge[f] || _pendingWrites[f][address] > 0)
+			return -1;
+		return _values[f][address];
+	}
+
+	/*!
+	 * Updates consecutive registers with the values written to or read from
+	 * the device.
+	 *
+	 * \param version Value of nextVersion when the request was submitted.
+	 */
+	public synchronized void store(StarStimRegisterFamily family, int address, byte[] values, long version){
+		int f = family.ordinal();
+		long now = System.nanoTime();
+		if (now == 0) now = 1;
+		for (int i = 0; i < values.length && address + i < _values[f].length; i++)
+		{
+			if (_versions[f][address + i] > version) continue;
+			_values[f][address + i] = values[i] & 0xFF;
+			_versions[f][address + i] = version;
+			_timestamps[f][address + i] = now;
+		}
+	}
+
+	/*!
+	 * A write of consecutive registers has been submitted. They are not read
+	 * from the cache until writeDone is called.
+	 */
+	public synchronized void writePending(StarStimRegisterFamily family, int address, int length){
+		int f = family.ordinal();
+		for (int i = 0; i < length && address + i < _values[f].length; i++)
+			_pendingWrites[f][address + i]++;
+	}
+
+	/*!
+	 * A write given to writePending has been completed, acknowledged or not.
+	 */
+	public synchronized void writeDone(StarStimRegisterFamily family, int address, int length){
+		int f = family.ordinal();
+		for (int i = 0; i < length && address + i < _values[f].length; i++)
+		{
+			if (_pendingWrites[f][address + i] > 0) _pendingWrites[f][address + i]--;
+		}
+	}
+
+	/*!
+	 * Forgets consecutive registers, for instance after a write that was not
+	 * acknowledged.
+	 */
+	public synchronized void invalidate(StarStimRegisterFamily family, int address, int length){
+		int f = family.ordinal();
+		long version = ++_version;
+		for (int i = 0; i < length && address + i < _values[f].length; i++)
+		{
+			_versions[f][address + i] = version;
+			_timestamps[f][address + i] = 0;
+		}
+	}
+
+	/*!
+	 * Forgets all the registers, when the device changes its status or the
+	 * connection is lost.
+	 */
+	public synchronized void invalidateAll(){
+		long version = ++_version;
+		for (int f = 0; f < _values.length; f++)
+		{
+			for (int i = 0; i < _values[f].length; i++)
+			{
+				_versions[f][i] = version;
+				_timestamps[f][i] = 0;
+			}
+		}
+	}
+
+	public synchronized long getHits(){
+		return _hits;
+	}
+
+	public synchronized long getMisses(){
+		return _misses;
+	}
+
+	public synchronized void resetStatistics(){
+		_hits = 0;
+		_misses = 0;
+	}
+
+	public synchronized String getStatistics(){
+		return "hits " + _hits + " misses " + _misses;
+	}
+
+	/*!
+	 * Number of registers of a family.
+	 */
+	static int familySize(StarStimRegisterFamily family){
+		switch (family)
+		{
+		case STIM_REGISTERS:
+			return DeviceManager.STM_NUM_REGS;
+		case EEG_REGISTERS:
+			return DeviceManager.EEG_NUM_REGS;
+		case ACCELEROMETER_REGISTERS:
+			return DeviceManager.ACCEL_NUM_REGS;
+		case SDCARD_REGISTERS:
+			return DeviceManager.SDCARD_NUM_REGS;
+		default:
+			return 0;
+		}
+	}
+}
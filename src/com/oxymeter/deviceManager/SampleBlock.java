@@ -0,0 +1,418 @@
+package com.icognos.deviceManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.icognos.IenzoHandler;
+
+/*!
+ * Block of consecutive samples stored by channel: the samples of each
+ * channel present in the mask are contiguous in their own column, next to a
+ * column with the timestamp of each sample and a bitmap that flags the
+ * samples repeated to fill a packet loss.
+ *
+ * DeviceManager gives one block per EEG frame to IenzoHandler.newEEGBlock.
+ * The blocks come from a SampleBlockPool and go back to it when the last
+ * reference is released: a consumer that keeps a block after the call takes
+ * a reference with retain and gives it back with release.
+ */
+public class SampleBlock {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/*!
+	 * \property SampleBlock::_channelMask
+	 *
+	 * Channels present in the block. The least significant bit corresponds to
+	 * channel 0.
+	 */
+	private int _channelMask;
+
+	/*!
+	 * \property SampleBlock::_channels
+	 *
+	 * Index of the channel of each column, in ascending order.
+	 */
+	private int[] _channels;
+	private int _numChannels;
+
+	/*!
+	 * \property SampleBlock::_columns
+	 *
+	 * Samples of each channel, indexed like _channels. Only the first
+	 * _numSamples values are valid.
+	 */
+	private int[][] _columns;
+
+	/*!
+	 * \property SampleBlock::_timestamps
+	 *
+	 * Timestamp of each sample, in milliseconds.
+	 */
+	private long[] _timestamps;
+
+	/*!
+	 * \property SampleBlock::_repeated
+	 *
+	 * Bit j % 64 of word j / 64 is set when sample j repeats the previous one
+	 * to fill a packet loss.
+	 */
+	private long[] _repeated;
+	private int _numRepeated;
+
+	private int _numSamples;
+	private int _capacity;
+
+	/*!
+	 * \property SampleBlock::_gapSamples
+	 *
+	 * Samples lost right before the first one of the block while the link was
+	 * down.
+	 */
+	private int _gapSamples;
+
+	/*!
+	 * \property SampleBlock::_sample
+	 *
+	 * Sample given to the handler by dispatchSamples.
+	 */
+	private ChannelData _sample;
+
+	/*!
+	 * \property SampleBlock::_pool
+	 *
+	 * Pool the block goes back to when released, null if it has none.
+	 */
+	private SampleBlockPool _pool;
+	private AtomicInteger _references;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The block is empty and has no channels.
+	 */
+	public SampleBlock(){
+		this(null);
+	}
+
+	/*!
+	 * Constructor of the blocks of a pool.
+	 */
+	SampleBlock(SampleBlockPool pool){
+		_pool = pool;
+		_references = new AtomicInteger(0);
+		_channels = new int[32];
+		_columns = new int[32][];
+		_capacity = DEFAULT_CAPACITY;
+		_timestamps = new long[_capacity];
+		_repeated = new long[(_capacity + 63) >> 6];
+		reset(0);
+	}
+
+	/*!
+	 * Takes a reference to the block, so it is not recycled until release is
+	 * called.
+	 */
+	public void retain(){
+		_references.incrementAndGet();
+	}
+
+	/*!
+	 * Gives back a reference taken with retain, or the one of
+	 * SampleBlockPool.acquire. The block must not be used after that: when
+	 * the last reference is released it goes back to its pool.
+	 */
+	public void release(){
+		if (_references.decrementAndGet() == 0 && _pool != null) _pool.recycle(this);
+	}
+
+	/*!
+	 * Called by the pool when the block is handed out.
+	 */
+	void acquired(){
+		_references.set(1);
+	}
+
+	/*!
+	 * Empties the block and sets the channels it holds.
+	 *
+	 * \param channelMask Channels present in the block. The least significant
+	 * bit corresponds to channel 0.
+	 */
+	public void reset(int channelMask){
+		if (channelMask != _channelMask || _numChannels == 0)
+		{
+			_channelMask = channelMask;
+			_numChannels = 0;
+			for (int k = 0; k < 32; k++)
+			{
+				if ((channelMask & (1 << k)) == 0) continue;
+				_channels[_numChannels] = k;
+				if (_columns[_numChannels] == null || _columns[_numChannels].length < _capacity)
+					_columns[_numChannels] = new int[_capacity];
+				_numChannels++;
+			}
+		}
+		for (int i = 0; i < _repeated.length; i++) _repeated[i] = 0;
+		_numRepeated = 0;
+		_numSamples = 0;
+		_gapSamples = 0;
+	}
+
+	/*!
+	 * Appends a sample to the block.
+	 *
+	 * \param data Values of the 32 channels, indexed by channel. Only the
+	 * channels in the mask are read.
+	 *
+	 * \param timestamp Timestamp of the sample.
+	 *
+	 * \param isRepeated Whether the sample repeats the previous one to fill a
+	 * packet loss.
+	 */
+	public void addSample(int[] data, long timestamp, boolean isRepeated){
+		if (_numSamples == _capacity) _grow(_capacity * 2);
+		int j = _numSamples++;
+		for (int i = 0; i < _numChannels; i++) _columns[i][j] = data[_channels[i]];
+		_timestamps[j] = timestamp;
+		if (isRepeated)
+		{
+			_repeated[j >> 6] |= 1L << (j & 63);
+			_numRepeated++;
+		}
+	}
+
+	/*!
+	 * Appends samples whose values are set later with fill.
+	 *
+	 * \param count Number of samples.
+	 *
+	 * \param isRepeated Whether the samples repeat the previous one to fill a
+	 * packet loss.
+	 */
+	public void addSamples(int count, boolean isRepeated){
+		if (count <= 0) return;
+		if (_numSamples + count > _capacity) _grow(Math.max(_capacity * 2, _numSamples + count));
+		if (isRepeated)
+		{
+			for (int j = _numSamples; j < _numSamples + count; j++) _repeated[j >> 6] |= 1L << (j & 63);
+			_numRepeated += count;
+		}
+		_numSamples += count;
+	}
+
+	/*!
+	 * Sets the values of a range of samples.
+	 *
+	 * \param from First sample of the range.
+	 *
+	 * \param count Number of samples of the range.
+	 *
+	 * \param data Values of the 32 channels, indexed by channel. Only the
+	 * channels in the mask are read.
+	 */
+	public void fill(int from, int count, int[] data){
+		for (int i = 0; i < _numChannels; i++)
+		{
+			int[] column = _columns[i];
+			int value = data[_channels[i]];
+			for (int j = from; j < from + count; j++) column[j] = value;
+		}
+	}
+
+	/*!
+	 * Removes the samples from the given one on.
+	 */
+	public void truncate(int numSamples){
+		if (numSamples >= _numSamples) return;
+		for (int j = numSamples; j < _numSamples; j++)
+		{
+			if (isRepeated(j))
+			{
+				_repeated[j >> 6] &= ~(1L << (j & 63));
+				_numRepeated--;
+			}
+		}
+		_numSamples = Math.max(numSamples, 0);
+	}
+
+	/*!
+	 * Appends again a range of samples of the block, with the same
+	 * timestamps and flags.
+	 *
+	 * \param from First sample of the range.
+	 *
+	 * \param count Number of samples of the range.
+	 */
+	public void repeatSamples(int from, int count){
+		if (_numSamples + count > _capacity) _grow(Math.max(_capacity * 2, _numSamples + count));
+		int to = _numSamples;
+		for (int i = 0; i < _numChannels; i++) System.arraycopy(_columns[i], from, _columns[i], to, count);
+		System.arraycopy(_timestamps, from, _timestamps, to, count);
+		for (int j = 0; j < count; j++)
+		{
+			if (isRepeated(from + j))
+			{
+				_repeated[(to + j) >> 6] |= 1L << ((to + j) & 63);
+				_numRepeated++;
+			}
+		}
+		_numSamples += count;
+	}
+
+	/*!
+	 * Sets the timestamp of a sample.
+	 */
+	public void setTimestamp(int sample, long value){
+		_timestamps[sample] = value;
+	}
+
+	public int channelMask(){
+		return _channelMask;
+	}
+
+	/*!
+	 * Number of channels present, which is the number of columns.
+	 */
+	public int numChannels(){
+		return _numChannels;
+	}
+
+	/*!
+	 * Index of the channel of a column.
+	 */
+	public int channelAt(int column){
+		return _channels[column];
+	}
+
+	public int numSamples(){
+		return _numSamples;
+	}
+
+	/*!
+	 * Samples of a column. Only the first numSamples values are valid.
+	 *
+	 * \param column 0-based column, from 0 to numChannels - 1.
+	 */
+	public int[] column(int column){
+		return _columns[column];
+	}
+
+	/*!
+	 * Samples of a channel, or null if the channel is not present. Only the
+	 * first numSamples values are valid.
+	 *
+	 * \param channel 0-based channel index.
+	 */
+	public int[] channel(int channel){
+		if (channel < 0 || channel >= 32 || (_channelMask & (1 << channel)) == 0) return null;
+		return _columns[Integer.bitCount(_channelMask & ((1 << channel) - 1))];
+	}
+
+	/*!
+	 * Timestamps of the samples. Only the first numSamples values are valid.
+	 */
+	public long[] timestamps(){
+		return _timestamps;
+	}
+
+	/*!
+	 * Whether a sample repeats the previous one to fill a packet loss.
+	 */
+	public boolean isRepeated(int sample){
+		return (_repeated[sample >> 6] & (1L << (sample & 63))) != 0;
+	}
+
+	/*!
+	 * Bitmap of the repeated samples: bit j % 64 of word j / 64 is set when
+	 * sample j is repeated.
+	 */
+	public long[] repeatedBits(){
+		return _repeated;
+	}
+
+	/*!
+	 * Number of repeated samples in the block, 0 if the stream is continuous.
+	 */
+	public int numRepeated(){
+		return _numRepeated;
+	}
+
+	public void setGapSamples(int value){
+		_gapSamples = value;
+	}
+
+	/*!
+	 * Samples lost right before the first one of the block while the link was
+	 * down, 0 if the stream is continuous. The timestamps already account for
+	 * them.
+	 */
+	public int gapSamples(){
+		return _gapSamples;
+	}
+
+	/*!
+	 * Gives the samples of the block one by one to IenzoHandler.newEEGData,
+	 * for the handlers that process a sample at a time. The ChannelData is
+	 * reused for all the samples.
+	 */
+	public void dispatchSamples(IenzoHandler handler){
+		if (_sample == null) _sample = new ChannelData();
+		for (int j = 0; j < _numSamples; j++)
+		{
+			getSample(j, _sample);
+			handler.newEEGData(_sample);
+		}
+	}
+
+	/*!
+	 * Copies a sample of the block into a ChannelData.
+	 */
+	public void getSample(int sample, ChannelData data){
+		int[] values = data.data();
+		for (int i = 0; i < _numChannels; i++) values[_channels[i]] = _columns[i][sample];
+		data.setChannelInfo(_channelMask);
+		data.setTimestamp(_timestamps[sample]);
+		data.setRepeated(isRepeated(sample));
+		data.setGapSamples(sample == 0 ? _gapSamples : 0);
+	}
+
+	/*!
+	 * It returns a copy of the block that the caller owns.
+	 */
+	public SampleBlock copy(){
+		SampleBlock block = new SampleBlock();
+		block._grow(Math.max(_numSamples, DEFAULT_CAPACITY));
+		block.reset(_channelMask);
+		for (int i = 0; i < _numChannels; i++) System.arraycopy(_columns[i], 0, block._columns[i], 0, _numSamples);
+		System.arraycopy(_timestamps, 0, block._timestamps, 0, _numSamples);
+		// The words of the samples only: a pooled block may have grown larger
+		System.arraycopy(_repeated, 0, block._repeated, 0, (_numSamples + 63) >> 6);
+		block._numRepeated = _numRepeated;
+		block._numSamples = _numSamples;
+		block._gapSamples = _gapSamples;
+		return block;
+	}
+
+	private void _grow(int capacity){
+		if (capacity <= _capacity) return;
+		for (int i = 0; i < _numChannels; i++)
+		{
+			int[] column = new int[capacity];
+			System.arraycopy(_columns[i], 0, column, 0, _numSamples);
+			_columns[i] = column;
+		}
+		// Columns of channels not in the mask are reallocated on reset
+		for (int i = _numChannels; i < 32; i++) _columns[i] = null;
+		long[] timestamps = new long[capacity];
+		System.arraycopy(_timestamps, 0, timestamps, 0, _numSamples);
+		_timestamps = timestamps;
+		long[] repeated = new long[(capacity + 63) >> 6];
+		System.arraycopy(_repeated, 0, repeated, 0, (_numSamples + 63) >> 6);
+		_repeated = repeated;
+		_capacity = capacity;
+	}
+}
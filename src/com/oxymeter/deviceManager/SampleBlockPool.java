@@ -0,0 +1,93 @@
+package com.icognos.deviceManager;
+
+/*!
+ * Pool of SampleBlock. The blocks are allocated when the pool is created and
+ * go back to it when their last reference is released, so a stream of
+ * frames does not allocate while the consumers give the blocks back.
+ *
+ * When the pool is empty acquire allocates a new block, which is kept by
+ * the pool when released if there is room for it.
+ */
+public class SampleBlockPool {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property SampleBlockPool::_free
+	 *
+	 * Blocks ready to be acquired, the first _numFree entries.
+	 */
+	private SampleBlock[] _free;
+	private int _numFree;
+
+	/*!
+	 * \property SampleBlockPool::_allocated
+	 *
+	 * Blocks allocated since the pool was created.
+	 */
+	private int _allocated;
+
+	/*!
+	 * \property SampleBlockPool::_misses
+	 *
+	 * Times acquire found the pool empty.
+	 */
+	private long _misses;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor.
+	 *
+	 * \param size Number of blocks allocated upfront, and kept at most.
+	 */
+	public SampleBlockPool(int size){
+		_free = new SampleBlock[Math.max(size, 1)];
+		for (int i = 0; i < _free.length; i++) _free[i] = new SampleBlock(this);
+		_numFree = _free.length;
+		_allocated = _free.length;
+	}
+
+	/*!
+	 * Hands out an empty block. The caller owns a reference to it and has to
+	 * release it.
+	 *
+	 * \param channelMask Channels of the block.
+	 */
+	public SampleBlock acquire(int channelMask){
+		SampleBlock block;
+		synchronized (this) {
+			if (_numFree > 0)
+			{
+				block = _free[--_numFree];
+				_free[_numFree] = null;
+			}
+			else
+			{
+				_misses++;
+				_allocated++;
+				block = new SampleBlock(this);
+			}
+		}
+		block.reset(channelMask);
+		block.acquired();
+		return block;
+	}
+
+	/*!
+	 * Called by SampleBlock.release when the last reference is released.
+	 */
+	synchronized void recycle(SampleBlock block){
+		if (_numFree < _free.length) _free[_numFree++] = block;
+	}
+
+	public synchronized int available(){
+		return _numFree;
+	}
+
+	public synchronized String getStatistics(){
+		return "blocks " + _free.length + " free " + _numFree + " allocated " + _allocated + " misses " + _misses;
+	}
+}
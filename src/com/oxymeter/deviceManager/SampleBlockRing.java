@@ -0,0 +1,362 @@
+package com.icognos.deviceManager;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.icognos.util.Logger;
+
+/*!
+ * Ring of the last SampleBlock published, shared by several consumers that
+ * read it at their own pace: plotting, recording, network outlets...
+ *
+ * The ring holds a reference to each block until its slot is reused. Every
+ * consumer has its own thread and its own cursor, the sequence of the next
+ * block it will read, and the ring is not consumed: all the consumers see
+ * all the blocks, unless they fall behind. What happens then depends on the
+ * policy of the consumer:
+ *
+ *  - BLOCK           the publisher waits until the consumer has read the
+ *                    block about to be overwritten. Nothing is lost, but a
+ *                    slow consumer stalls the ingestion.
+ *  - DROP_OLDEST     the publisher never waits. A consumer that falls more
+ *                    than a ring behind loses the oldest blocks and goes on
+ *                    from the oldest one still in the ring.
+ *  - SKIP_TO_LATEST  the publisher never waits. A consumer that is behind
+ *                    skips to the latest block, for the ones that only care
+ *                    about the present, like a plot.
+ *
+ * Consumers added while the stream runs start with the next block
+ * published.
+ */
+public class SampleBlockRing {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	public enum Policy {
+		BLOCK,
+		DROP_OLDEST,
+		SKIP_TO_LATEST
+	}
+
+	/*!
+	 * \property SampleBlockRing::DEFAULT_CAPACITY
+	 *
+	 * Blocks in the ring, one EEG frame each.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/*!
+	 * \property SampleBlockRing::PARK_NANOS
+	 *
+	 * Longest wait of a thread before it looks at the ring again. It is woken
+	 * up as soon as there is something for it.
+	 */
+	private static final long PARK_NANOS = 100000000L;
+
+	/*!
+	 * Slot of the ring. It is locked while its block is replaced or taken.
+	 */
+	private static class Slot {
+		SampleBlock block;
+		long sequence = -1;
+	}
+
+	private final Slot[] _slots;
+	private final int _mask;
+
+	/*!
+	 * \property SampleBlockRing::_published
+	 *
+	 * Blocks published, the sequence of the next one.
+	 */
+	private volatile long _published;
+
+	/*!
+	 * \property SampleBlockRing::_consumers
+	 *
+	 * Consumers attached. The array is replaced when one is added or removed.
+	 */
+	private volatile Consumer[] _consumers;
+
+	/*!
+	 * \property SampleBlockRing::_waitingPublisher
+	 *
+	 * Publisher waiting for a BLOCK consumer, null otherwise.
+	 */
+	private volatile Thread _waitingPublisher;
+	private volatile long _publisherWaits;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor.
+	 *
+	 * \param capacity Blocks in the ring, rounded up to a power of two.
+	 */
+	public SampleBlockRing(int capacity){
+		int length = 1;
+		while (length < capacity) length <<= 1;
+		_slots = new Slot[length];
+		for (int i = 0; i < length; i++) _slots[i] = new Slot();
+		_mask = length - 1;
+		_consumers = new Consumer[0];
+	}
+
+	/*!
+	 * Attaches a consumer, which starts with the next block published.
+	 *
+	 * \param name Name of the consumer, for its thread and its statistics.
+	 *
+	 * \param consumer Receiver of the blocks.
+	 *
+	 * \param policy What to do when the consumer falls behind.
+	 *
+	 * \return The cursor of the consumer, to look at its lag or remove it.
+	 */
+	public synchronized Consumer addConsumer(String name, ISampleBlockConsumer consumer, Policy policy){
+		Consumer cursor = new Consumer(name, consumer, policy);
+		cursor.sequence = _published;
+		Consumer[] consumers = new Consumer[_consumers.length + 1];
+		System.arraycopy(_consumers, 0, consumers, 0, _consumers.length);
+		consumers[_consumers.length] = cursor;
+		_consumers = consumers;
+		cursor.thread = new Thread(cursor, "Consumer Thread " + name);
+		cursor.thread.setDaemon(true);
+		cursor.thread.start();
+		logger.info("SampleBlockRing added " + name + " " + policy, Logger.LOG_FILE_ON);
+		return cursor;
+	}
+
+	/*!
+	 * Detaches a consumer and waits for its thread to finish.
+	 */
+	public void removeConsumer(Consumer cursor){
+		synchronized (this) {
+			int index = -1;
+			for (int i = 0; i < _consumers.length; i++)
+			{
+				if (_consumers[i] == cursor) index = i;
+			}
+			if (index < 0) return;
+			Consumer[] consumers = new Consumer[_consumers.length - 1];
+			System.arraycopy(_consumers, 0, consumers, 0, index);
+			System.arraycopy(_consumers, index + 1, consumers, index, consumers.length - index);
+			_consumers = consumers;
+		}
+		cursor.isRunning = false;
+		LockSupport.unpark(cursor.thread);
+		_wakeUp(_waitingPublisher);
+		if (cursor.thread != Thread.currentThread())
+		{
+			try {
+				cursor.thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		logger.info("SampleBlockRing removed " + cursor.getStatistics(), Logger.LOG_FILE_ON);
+	}
+
+	public boolean hasConsumers(){
+		return _consumers.length > 0;
+	}
+
+	/*!
+	 * Publishes a block. The ring takes a reference to it, the caller keeps
+	 * its own. Only called from one thread at a time.
+	 */
+	public void publish(SampleBlock block){
+		Consumer[] consumers = _consumers;
+		if (consumers.length == 0) return;
+
+		long sequence = _published;
+		_waitForBlockingConsumers(sequence);
+
+		Slot slot = _slots[(int) sequence & _mask];
+		SampleBlock overwritten;
+		block.retain();
+		synchronized (slot) {
+			overwritten = slot.block;
+			slot.block = block;
+			slot.sequence = sequence;
+		}
+		if (overwritten != null) overwritten.release();
+		_published = sequence + 1;
+
+		for (int i = 0; i < consumers.length; i++) _wakeUp(consumers[i].waitingThread);
+	}
+
+	public long published(){
+		return _published;
+	}
+
+	public int capacity(){
+		return _slots.length;
+	}
+
+	/*!
+	 * Times the publisher waited for a BLOCK consumer.
+	 */
+	public long publisherWaits(){
+		return _publisherWaits;
+	}
+
+	public String getStatistics(){
+		StringBuilder builder = new StringBuilder();
+		builder.append("published ").append(_published).append(" publisher waits ").append(_publisherWaits);
+		Consumer[] consumers = _consumers;
+		for (int i = 0; i < consumers.length; i++) builder.append("; ").append(consumers[i].getStatistics());
+		return builder.toString();
+	}
+
+	/*!
+	 * Waits until the BLOCK consumers have read the block about to be
+	 * overwritten by the given sequence.
+	 */
+	private void _waitForBlockingConsumers(long sequence){
+		if (_minimumBlockingSequence() > sequence - _slots.length) return;
+
+		_publisherWaits++;
+		_waitingPublisher = Thread.currentThread();
+		while (_minimumBlockingSequence() <= sequence - _slots.length)
+		{
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		_waitingPublisher = null;
+	}
+
+	private long _minimumBlockingSequence(){
+		long minimum = Long.MAX_VALUE;
+		Consumer[] consumers = _consumers;
+		for (int i = 0; i < consumers.length; i++)
+		{
+			if (consumers[i].policy == Policy.BLOCK) minimum = Math.min(minimum, consumers[i].sequence);
+		}
+		return minimum;
+	}
+
+	private void _wakeUp(Thread thread){
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/*!
+	 * Cursor of a consumer, and the thread that feeds it.
+	 */
+	public class Consumer implements Runnable {
+
+		private final String name;
+		private final ISampleBlockConsumer consumer;
+		private final Policy policy;
+
+		/*!
+		 * Sequence of the next block to read.
+		 */
+		volatile long sequence;
+		volatile boolean isRunning;
+		volatile Thread waitingThread;
+		Thread thread;
+
+		private volatile long _consumed;
+		private volatile long _dropped;
+		private volatile long _maxLag;
+
+		Consumer(String name, ISampleBlockConsumer consumer, Policy policy){
+			this.name = name;
+			this.consumer = consumer;
+			this.policy = policy;
+			isRunning = true;
+		}
+
+		public String name(){
+			return name;
+		}
+
+		public Policy policy(){
+			return policy;
+		}
+
+		/*!
+		 * Blocks published that the consumer has not read yet.
+		 */
+		public long lag(){
+			return Math.max(_published - sequence, 0);
+		}
+
+		/*!
+		 * Largest lag seen by the consumer before reading a block.
+		 */
+		public long maxLag(){
+			return _maxLag;
+		}
+
+		public long consumed(){
+			return _consumed;
+		}
+
+		/*!
+		 * Blocks the consumer missed because it fell behind.
+		 */
+		public long dropped(){
+			return _dropped;
+		}
+
+		public String getStatistics(){
+			return name + " " + policy + " consumed " + _consumed + " dropped " + _dropped + " lag " + lag() + " max " + _maxLag;
+		}
+
+		public void run(){
+			while (isRunning)
+			{
+				long published = _published;
+				if (published <= sequence)
+				{
+					waitingThread = Thread.currentThread();
+					if (_published <= sequence && isRunning) LockSupport.parkNanos(PARK_NANOS);
+					waitingThread = null;
+					continue;
+				}
+
+				long lag = published - sequence;
+				if (lag > _maxLag) _maxLag = lag;
+				if (policy == Policy.SKIP_TO_LATEST && lag > 1)
+				{
+					_dropped += lag - 1;
+					sequence = published - 1;
+				}
+
+				SampleBlock block = null;
+				Slot slot = _slots[(int) sequence & _mask];
+				synchronized (slot) {
+					if (slot.sequence == sequence)
+					{
+						block = slot.block;
+						block.retain();
+					}
+				}
+				if (block == null)
+				{
+					// Overwritten: go on from the oldest block in the ring
+					long oldest = Math.max(_published - _slots.length + 1, sequence + 1);
+					_dropped += oldest - sequence;
+					sequence = oldest;
+					continue;
+				}
+
+				try {
+					consumer.newBlock(block);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+				} finally {
+					block.release();
+				}
+				_consumed++;
+				sequence++;
+				if (policy == Policy.BLOCK) _wakeUp(_waitingPublisher);
+			}
+		}
+	}
+}
@@ -10,6 +10,14 @@ public class StarStimData {
     private Logger logger;
 	//  -- Attributtes --
 	//  -----------------
+
+    /*!
+     * \property StarStimData::MAX_SAMPLES_PER_BEACON
+     *
+     * Largest number of EEG samples in a beacon. The number is sent as a
+     * signed byte.
+     */
+    public static final int MAX_SAMPLES_PER_BEACON = 127;
 	
     /*!
      * \property StarStimData::_deviceStatus
@@ -131,10 +139,19 @@ public class StarStimData {
     /*!
      * \property StarStimData::eegDataArray
      *
-     * It contains the EEG Samples in the present beacon
+     * It contains the EEG Samples in the present beacon. They are taken from
+     * _eegSamples, so the list does not own them.
      */
     private ArrayList<ChannelData> _eegDataArray;
 
+    /*!
+     * \property StarStimData::_eegSamples
+     *
+     * Storage of the EEG samples, allocated once for the largest beacon and
+     * reused for every frame.
+     */
+    private ChannelData[] _eegSamples;
+
     /*!
      * \property StarStimData::_eegChecksum
      *
@@ -295,7 +312,12 @@ public class StarStimData {
     	_stimImpedance = new ChannelData();
     	_accelerometer = new ChannelData();
     	
-    	_eegDataArray = new ArrayList<ChannelData>(); 
+    	_eegDataArray = new ArrayList<ChannelData>(MAX_SAMPLES_PER_BEACON);
+    	_eegSamples = new ChannelData[MAX_SAMPLES_PER_BEACON];
+    	for (int i = 0; i < MAX_SAMPLES_PER_BEACON; i++)
+    	{
+    		_eegSamples[i] = new ChannelData();
+    	}
     	
     	this.empty();
     }
@@ -566,7 +588,7 @@ public class StarStimData {
      */
     public int eegChInfo(){
         // NOTE: All elements in _eegDataArray.channelInfo() should be equal
-        return _eegDataArray.get(0).channelInfo();
+        return _eegSamples[0].channelInfo();
     }
 
     /*!
@@ -725,6 +747,9 @@ public class StarStimData {
     /*!
      * It returns the EEG Data Sample Array
      *
+     * The samples are borrowed: they are overwritten by the next frame. Use
+     * ChannelData.copy to keep one.
+     *
      * \return EEG Data Array of the channels
      */
     public ArrayList<ChannelData> eegDataArray(){
@@ -965,12 +990,20 @@ public class StarStimData {
     public void eegData(int channel, int value, int sample){
             	
     	if (channel >= 32) channel = 31;
-        ChannelData channelData = _eegDataArray.get(sample);
-        channelData.data()[channel] = value;
-        
-        _eegDataArray.set(sample, channelData);
-        
+        _eegSamples[sample].data()[channel] = value;
+    }
 
+    /*!
+     * It returns the array where the EEG data of a sample is stored, indexed
+     * by channel, so a whole sample can be written without going through
+     * eegData once per channel.
+     *
+     * \param sample number of sample
+     *
+     * \return The EEG data array of the sample.
+     */
+    public int[] eegSampleData(int sample){
+        return _eegSamples[sample].data();
     }
 
     /*!
@@ -979,25 +1012,17 @@ public class StarStimData {
      * \param nSamples number of samples in the current beacon
      */
     public void nSamples( int value ){
-        
-    	
+
+        // A corrupted count must not go out of the storage
+        if (value < 0) value = 0;
+        if (value > MAX_SAMPLES_PER_BEACON) value = MAX_SAMPLES_PER_BEACON;
     	_nSamples = value;
 
         _eegDataArray.clear();
-        /*
-        ChannelData channelData = new ChannelData();
-        channelData.setChannelInfo(0);
-        for (int i = 0; i < 32; i++)
-        {
-            channelData.data()[i] = 0;
-        }
-		/**/
-
-
-        for(int i = 0; i < value; i++){            
-            _eegDataArray.add( new ChannelData() );
+        for(int i = 0; i < value; i++){
+            _eegSamples[i].clear();
+            _eegDataArray.add( _eegSamples[i] );
         }
-                
     }
 
 
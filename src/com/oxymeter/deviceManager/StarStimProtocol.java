@@ -1,7 +1,6 @@
 package com.icognos.deviceManager;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import android.util.Log;
 
@@ -15,6 +14,29 @@ public class StarStimProtocol {
 	//  -----------------
     
     private final static int SFD_LENGTH = 3;
+
+    /*!
+     * \property StarStimProtocol::EFD_LENGTH
+     *
+     * Length of the End of Frame Delimiter sent by the device.
+     */
+    private final static int EFD_LENGTH = 4;
+
+    /*!
+     * \property StarStimProtocol::MIN_FRAME_LENGTH
+     *
+     * Length of a frame with the delimiters, a 1 byte length field and the
+     * status bytes only.
+     */
+    private final static int MIN_FRAME_LENGTH = SFD_LENGTH + 1 + 2 + EFD_LENGTH;
+
+    /*!
+     * \property StarStimProtocol::MAX_FRAME_LENGTH
+     *
+     * Above the longest frame the device sends: 127 samples of 32 channels
+     * plus the other blocks.
+     */
+    final static int MAX_FRAME_LENGTH = 1 << 14;
     
     /*!
      * \property StarStimProtocol::SFD_0
@@ -57,6 +79,50 @@ public class StarStimProtocol {
      * Third byte of the End of Frame Delimiter.
      */
     private final static int EFD_2 = 'F';
+
+    /*!
+     * \property StarStimProtocol::EFD_3
+     *
+     * Fourth byte of the End of Frame Delimiter.
+     */
+    private final static int EFD_3 = '\n';
+
+    /*!
+     * \property StarStimProtocol::SFD
+     *
+     * Start of Frame Delimiter as the last three bytes received, the latest
+     * one in the lowest byte.
+     */
+    private final static int SFD = (SFD_0 << 16) | (SFD_1 << 8) | SFD_2;
+
+    private final static int SFD_MASK = 0xFFFFFF;
+
+    /*!
+     * \property StarStimProtocol::EFD
+     *
+     * End of Frame Delimiter as the last four bytes received.
+     */
+    private final static int EFD = (EFD_0 << 24) | (EFD_1 << 16) | (EFD_2 << 8) | EFD_3;
+
+    /*!
+     * \property StarStimProtocol::REQUEST_FRAME_LENGTH
+     *
+     * Room for the largest request frame.
+     */
+    public final static int REQUEST_FRAME_LENGTH = 256;
+
+    /*
+     * Request frames without parameters, built once. They are shared, so
+     * they must not be modified.
+     */
+    static final byte[] START_EEG_FRAME = _commandFrame(0x01, 0x00);
+    static final byte[] STOP_EEG_FRAME = _commandFrame(0x02, 0x00);
+    static final byte[] READ_BATTERY_FRAME = _commandFrame(0x40, 0x00);
+    static final byte[] NULL_REQUEST_FRAME = _commandFrame(0x80, 0x00);
+    static final byte[] FIRMWARE_VERSION_BATTERY_FRAME = _commandFrame(0x40, 0x10);
+    static final byte[] FIRMWARE_VERSION_FRAME = _commandFrame(0x00, 0x10);
+    static final byte[] START_BEACON_FRAME = _commandFrame(0x7F, 0x7F);
+    static final byte[] STOP_BEACON_FRAME = _commandFrame(0x00, 0x00);
     
     /*!
      * \property _firmwareVersion
@@ -134,6 +200,18 @@ public class StarStimProtocol {
         ST_EOF_3
     } ;
 
+    /*!
+     * \enum FrameError
+     *
+     * Reasons why a frame is discarded, or reported with errors
+     */
+    public enum FrameError {
+        BAD_EOF,            // End of Frame Delimiter not where the length field puts it
+        CHECKSUM,           // EEG checksum mismatch, the frame is still given
+        LENGTH_OVERFLOW,    // length field out of range, or content longer than it
+        UNEXPECTED_STATE    // content shorter than the length field, or a field the parser cannot handle
+    }
+
     /*!
      * \enum EEGCompressionType
      *
@@ -256,6 +334,22 @@ public class StarStimProtocol {
      */
     private byte _currentSample;
 
+    /*!
+     * \property StarStimProtocol::_eegChannelIndex
+     *
+     * Channels present in the current EEG block, in the order they are sent.
+     * Built from the channel information so the raw samples can be decoded
+     * without scanning the mask once per channel.
+     */
+    private int[] _eegChannelIndex;
+
+    /*!
+     * \property StarStimProtocol::_eegChannelCount
+     *
+     * Number of valid entries of _eegChannelIndex.
+     */
+    private int _eegChannelCount;
+
     /*!
      * \property StarStimProtocol::_multipleSample
      *
@@ -284,11 +378,32 @@ public class StarStimProtocol {
      * \brief isLength2Bytes Holds whether the current device has length of two bytes
      */
     private boolean _isLength2Bytes;
+
+    /*!
+     * \brief _isLengthWidthDetected Set once a frame has been parsed, so a
+     * corrupted length byte does not change the width of the field
+     */
+    private boolean _isLengthWidthDetected;
     
     private int _artifactCheckerCounter;
     private int _lastArtifactCheckerCounter;
     private int[] _artifactLastValues;
 
+    /*!
+     * \property StarStimProtocol::_frameCodec
+     *
+     * Codec of the firmware and mode of the device, null while they are not
+     * known. See _selectFrameCodec.
+     */
+    private FrameCodec _frameCodec;
+    private FrameCodec _selectedFrameCodec;
+    private IEEGSampleCodec _rawSampleCodec;
+    private IEEGSampleCodec _artifactCheckingSampleCodec;
+    private IEEGSampleCodec _delta16SampleCodec;
+    private IEEGSampleCodec _artifactCheckingDelta16SampleCodec;
+    private IEEGSampleCodec _delta12SampleCodec;
+    private IEEGSampleCodec _artifactCheckingDelta12SampleCodec;
+
     private int _status;
 
     private char[] _debugErrorFrame;
@@ -301,10 +416,54 @@ public class StarStimProtocol {
     private int _temp;
     private char  _checksum;
     private char _stamp;
-    private char[] _sfd;
-    private char[] _eof;
+
+    /*!
+     * \property StarStimProtocol::_sfd
+     *
+     * Last bytes received while looking for the Start of Frame Delimiter.
+     */
+    private int _sfd;
+
+    /*!
+     * \property StarStimProtocol::_eof
+     *
+     * Last four bytes received while checking the End of Frame Delimiter.
+     */
+    private int _eof;
     private int _counter;
 
+    /*!
+     * \property StarStimProtocol::_bodyEnd
+     *
+     * Value of _nBytes at the last byte before the End of Frame Delimiter,
+     * from the length field. Integer.MAX_VALUE when not known.
+     */
+    private int _bodyEnd;
+
+    /*!
+     * \property StarStimProtocol::_errorCounts
+     *
+     * Frames with errors, indexed by FrameError.
+     */
+    private int[] _errorCounts;
+
+    /*!
+     * \property StarStimProtocol::_discardedBytes
+     *
+     * Bytes skipped while looking for the Start Of Frame Delimiter.
+     */
+    private int _discardedBytes;
+
+    /*!
+     * \property StarStimProtocol::_lastErrorFrame
+     *
+     * Bytes of the last frame with errors, formatted on demand by
+     * lastErrorFrame.
+     */
+    private char[] _lastErrorFrame;
+    private int _lastErrorFrameLength;
+    private FrameError _lastError;
+
     private int _sdcardRecording;
     
     
@@ -315,9 +474,19 @@ public class StarStimProtocol {
     	
     	// Initialise arrays
         _artifactLastValues = new int[32];
+        _eegChannelIndex = new int[32];
+        _selectedFrameCodec = new FrameCodec();
+        _rawSampleCodec = new RawSampleCodec();
+        _artifactCheckingSampleCodec = new ArtifactCheckingSampleCodec();
+        _delta16SampleCodec = new Delta16SampleCodec(_rawSampleCodec);
+        _artifactCheckingDelta16SampleCodec = new Delta16SampleCodec(_artifactCheckingSampleCodec);
+        _delta12SampleCodec = new Delta12SampleCodec(_rawSampleCodec);
+        _artifactCheckingDelta12SampleCodec = new Delta12SampleCodec(_artifactCheckingSampleCodec);
         _debugErrorFrame = new char[200];
-        _sfd = new char[4];
-        _eof = new char[5];
+        _lastErrorFrame = new char[200];
+        _errorCounts = new int[FrameError.values().length];
+        _sfd = 0;
+        _eof = 0;
 
         _starStimData = new StarStimData();
         
@@ -453,6 +622,14 @@ public class StarStimProtocol {
         {
             return false;
         }
+        _eegChannelCount = 0;
+        for (int i = 0; i < 32; i++)
+        {
+            if ((eegChInfo & (1 << i)) != 0)
+            {
+                _eegChannelIndex[_eegChannelCount++] = i;
+            }
+        }
         _currentChannel = 0;
         _findNextChannel (eegChInfo);
         return true;
@@ -621,9 +798,102 @@ public class StarStimProtocol {
         _currentChannel           = 0;
         _currentConfigAddress     = 0;
         _dataLength               = 0;
+        _bodyEnd                  = Integer.MAX_VALUE;
         _artifactCheckerCounter   = 0;
     }
 
+    /*!
+     * It starts a new frame once the Start Of Frame Delimiter has been
+     * received.
+     */
+    private void _startFrame (){
+        _resetStateMachine();
+        _starStimData.empty();
+        _nBytes = SFD_LENGTH;
+        _statusTransition(StatusProtocol.ST_LENGTH0);
+    }
+
+    /*!
+     * It checks the length field once received, and sets where the End Of
+     * Frame Delimiter has to be.
+     */
+    private void _lengthReceived (){
+        if (_dataLength < MIN_FRAME_LENGTH || _dataLength > MAX_FRAME_LENGTH)
+        {
+            _frameError(FrameError.LENGTH_OVERFLOW);
+            return;
+        }
+        _bodyEnd = _dataLength - EFD_LENGTH;
+    }
+
+    /*!
+     * It discards the frame being parsed. If the last bytes received are a
+     * Start Of Frame Delimiter the next frame starts right away, otherwise
+     * the search goes on from the current byte: the bytes already consumed
+     * are not parsed again.
+     *
+     * \param reason Why the frame is discarded.
+     */
+    private void _frameError (FrameError reason){
+        _errorCounts[reason.ordinal()]++;
+        _lastError = reason;
+        _lastErrorFrameLength = _debugErrorFrameIndex;
+        System.arraycopy(_debugErrorFrame, 0, _lastErrorFrame, 0, _lastErrorFrameLength);
+        _debugErrorFrameIndex = 0;
+
+        _resetStateMachine();
+        if (_sfd == SFD)
+        {
+            _startFrame();
+        }
+    }
+
+    /*!
+     * \return Number of frames with errors for the given reason.
+     */
+    public int errorCount (FrameError reason){
+        return _errorCounts[reason.ordinal()];
+    }
+
+    /*!
+     * \return Number of bytes skipped while looking for the Start Of Frame
+     * Delimiter.
+     */
+    public int discardedBytes (){
+        return _discardedBytes;
+    }
+
+    public void resetErrorStatistics (){
+        for (int i = 0; i < _errorCounts.length; i++)
+        {
+            _errorCounts[i] = 0;
+        }
+        _discardedBytes = 0;
+    }
+
+    public String getErrorStatistics (){
+        return "bad EOF " + errorCount(FrameError.BAD_EOF)
+                + " checksum " + errorCount(FrameError.CHECKSUM)
+                + " length overflow " + errorCount(FrameError.LENGTH_OVERFLOW)
+                + " unexpected state " + errorCount(FrameError.UNEXPECTED_STATE)
+                + " discarded bytes " + _discardedBytes;
+    }
+
+    /*!
+     * \return The reason and the bytes of the last frame with errors, for
+     * debugging. Null if there has been none.
+     */
+    public String lastErrorFrame (){
+        if (_lastError == null)
+            return null;
+        StringBuilder frame = new StringBuilder(_lastError.toString());
+        for (int k = 0; k < _lastErrorFrameLength; k++)
+        {
+            frame.append(' ').append((int) _lastErrorFrame[k]);
+        }
+        return frame.toString();
+    }
+
     /*!
      * It checks if the Start Of Frame delimites has been received.
      *
@@ -632,28 +902,58 @@ public class StarStimProtocol {
      * \return True if the Start Of Frame has been detected, false otherwise.
      */
     private boolean _isStartOfFrame (byte byteRcv){
-        _sfd[0] = _sfd[1];
-        _sfd[1] = _sfd[2];
-        _sfd[2] = (char) byteRcv;
+        _sfd = ((_sfd << 8) | (byteRcv & 0xFF)) & SFD_MASK;
         
         _counter++;
         
-        StringBuilder str = new StringBuilder();
-        str.append(_sfd[0]);
-        str.append(_sfd[1]);
-        str.append(_sfd[2]);
-        
-        if ( str.toString().equals("SOF") )
+        if (_sfd == SFD)
         {
-            if (_counter > 3)
+            if (_counter > SFD_LENGTH)
             {
-                logger.info( "SOF not found " + _counter, Logger.LOG_FILE_ON );
+                _discardedBytes += _counter - SFD_LENGTH;
             }
             _counter = 0;
+            return true;
         }
+        return false;
+    }
 
-        
-        return (str.toString().equals("SOF"));
+    /*!
+     * It looks for the next Start Of Frame in a buffer of received bytes,
+     * so the bytes between frames are skipped without being parsed one by
+     * one. It does nothing while a frame is being parsed.
+     *
+     * \param buffer Received bytes.
+     *
+     * \param offset First byte to look at.
+     *
+     * \param length Number of bytes to look at.
+     *
+     * \return Index of the next byte to be given to parseByte: the one that
+     * completes the Start Of Frame Delimiter, or offset + length if there is
+     * none. The bytes before it have been consumed.
+     */
+    public int scanForStartOfFrame (byte[] buffer, int offset, int length){
+        if (_state != StatusProtocol.ST_IDLE)
+            return offset;
+
+        int end = offset + length;
+        int sfd = _sfd;
+        for (int i = offset; i < end; i++)
+        {
+            int next = ((sfd << 8) | (buffer[i] & 0xFF)) & SFD_MASK;
+            if (next == SFD)
+            {
+                // parseByte completes it
+                _sfd = sfd;
+                _counter += i - offset;
+                return i;
+            }
+            sfd = next;
+        }
+        _sfd = sfd;
+        _counter += length;
+        return end;
     }
 
     /*!
@@ -664,21 +964,586 @@ public class StarStimProtocol {
      * \return True if the EndOfDelimiter has been detected, false otherwise.
      */
     private boolean _isEndOfFrame (byte byteRcv){
-        _eof[0] = _eof[1];
-        _eof[1] = _eof[2];
-        _eof[2] = _eof[3];
-        _eof[3] = (char) byteRcv;
-        
-        StringBuilder str = new StringBuilder();
-        str.append(_eof[0]);
-        str.append(_eof[1]);
-        str.append(_eof[2]);
-        str.append(_eof[3]);
-            	       
-        return (str.toString().equals("EOF\n"));
+        _eof = (_eof << 8) | (byteRcv & 0xFF);
+        return (_eof == EFD);
     }
     
     
+    /*!
+     * It parses a span of received bytes and gives each frame completed to
+     * the sink. A frame may be split across calls: the bytes left over are
+     * kept in the state of the parser until the next call.
+     *
+     * \param buffer Received bytes.
+     *
+     * \param offset First byte to parse.
+     *
+     * \param length Number of bytes to parse.
+     *
+     * \param sink Receives the frames completed.
+     *
+     * \return Number of frames completed.
+     */
+    public int parse (byte[] buffer, int offset, int length, IFrameSink sink){
+        int end = offset + length;
+        int frames = 0;
+        for (int i = offset; i < end; i++)
+        {
+            // Skip to the next frame when between frames
+            i = scanForStartOfFrame(buffer, i, end - i);
+            if (i >= end)
+                break;
+
+            // The header and the EEG blocks in the buffer are decoded at once
+            FrameCodec codec = _frameCodec;
+            if (codec != null)
+            {
+                if (_state == StatusProtocol.ST_LENGTH0)
+                {
+                    i = codec.decodeHeader(buffer, i, end);
+                    if (i >= end)
+                        break;
+                }
+                if (_state == StatusProtocol.ST_EEG_DATA)
+                {
+                    i = codec.decodeEEGBlock(buffer, i, end);
+                    if (i >= end)
+                        break;
+                }
+                else if (codec.isAtSample())
+                {
+                    i = codec.decodeSamples(buffer, i, end);
+                    if (i >= end)
+                        break;
+                }
+            }
+            else if (_state == StatusProtocol.ST_EEG_DATA_RAW_MSB
+                    && _eegCompresssionType == EEGCompressionType.EEG_NO_COMPRESSION
+                    && _currentChannel == _eegChannelIndex[0])
+            {
+                // Before the firmware is known, whole raw EEG samples are
+                // decoded at once
+                i = _decodeRawEEGSamples(buffer, i, end);
+                if (i >= end)
+                    break;
+            }
+
+            if (parseByte(buffer[i]))
+            {
+                frames++;
+                sink.newFrame(_starStimData);
+            }
+        }
+        return frames;
+    }
+
+    /*!
+     * It decodes the uncompressed EEG samples of the current block that are
+     * fully contained in the buffer, leaving the parser as if they had been
+     * given to parseByte one by one: same checksum, artifact counter and
+     * frame length accounting. Samples split across calls are left to
+     * parseByte.
+     *
+     * \pre The parser is at the first channel of a sample, in state
+     * ST_EEG_DATA_RAW_MSB.
+     *
+     * \param buffer Received bytes.
+     *
+     * \param offset First byte of the sample.
+     *
+     * \param end Index after the last received byte.
+     *
+     * \return Index of the first byte not decoded.
+     */
+    private int _decodeRawEEGSamples (byte[] buffer, int offset, int end){
+        int channels = _eegChannelCount;
+        int sampleLength = 3 * channels;
+        int nSamples = _starStimData.nSamples();
+        // Not past the End Of Frame Delimiter the length field announces
+        int available = Math.min(end - offset, _bodyEnd - _nBytes);
+        int samples = Math.min(nSamples - _currentSample, available / sampleLength);
+        if (samples <= 0)
+            return offset;
+
+        int i = _decodeRawSamples(buffer, offset, _currentSample, samples);
+
+        int length = i - offset;
+        _nBytes += length;
+        _recordDebugBytes(buffer, offset, length);
+        _sfd = ((buffer[i - 3] & 0xFF) << 16) | ((buffer[i - 2] & 0xFF) << 8) | (buffer[i - 1] & 0xFF);
+
+        _currentSample += samples;
+        if (_currentSample == nSamples)
+        {
+            _currentChannel = 32;
+            _statusTransition( StatusProtocol.ST_EEG_STAMP );
+        }
+        return i;
+    }
+
+    /*!
+     * It decodes uncompressed EEG samples as parseByte does: checksum,
+     * artifact counter and last values of the artifact checker included.
+     *
+     * \param buffer Received bytes.
+     *
+     * \param offset First byte of the first sample.
+     *
+     * \param from Index of the first sample in the block.
+     *
+     * \param samples Number of samples to decode.
+     *
+     * \return Index after the last sample.
+     */
+    private int _decodeRawSamples (byte[] buffer, int offset, int from, int samples){
+        int channels = _eegChannelCount;
+        int[] channelIndex = _eegChannelIndex;
+        int[] lastValues = _artifactLastValues;
+        boolean isCheckingArtifacts = (_lastArtifactCheckerCounter >= 0);
+        int lastChannelWithEEG = channelIndex[channels - 1] + 1;
+        int checksum = 0;
+        int artifactCounter = _artifactCheckerCounter;
+        int value = _temp;
+        int i = offset;
+        for (int s = 0; s < samples; s++)
+        {
+            int[] data = _starStimData.eegSampleData(from + s);
+            for (int c = 0; c < channels; c++)
+            {
+                int channel = channelIndex[c];
+                byte msb = buffer[i];
+                int mid = buffer[i + 1] & 0xFF;
+                int lsb = buffer[i + 2] & 0xFF;
+                i += 3;
+                // The most significant byte is added with its sign, as in
+                // ST_EEG_DATA_RAW_MSB
+                checksum += msb + mid + lsb;
+                int upper = ((msb & 0xFF) << 8) | mid;
+                value = (upper << 8) | lsb;
+                if (isCheckingArtifacts)
+                {
+                    artifactCounter += Math.abs(upper - lastValues[channel]);
+                }
+                lastValues[channel] = upper;
+                data[channel] = value;
+            }
+            artifactCounter = artifactCounter / lastChannelWithEEG;
+        }
+        _checksum += checksum;
+        _artifactCheckerCounter = artifactCounter;
+        _lastChannelWithEEG = lastChannelWithEEG;
+        _temp = value;
+        return i;
+    }
+
+    /*!
+     * It keeps the parser as if the bytes had been given to parseByte: frame
+     * length accounting, bytes kept to report frames with errors and the
+     * last bytes for the Start Of Frame Delimiter.
+     */
+    private void _consumeBytes (byte[] buffer, int offset, int length){
+        _nBytes += length;
+        _recordDebugBytes(buffer, offset, length);
+        int sfd = _sfd;
+        for (int k = Math.max(offset, offset + length - SFD_LENGTH); k < offset + length; k++)
+        {
+            sfd = ((sfd << 8) | (buffer[k] & 0xFF)) & SFD_MASK;
+        }
+        _sfd = sfd;
+    }
+
+    /*!
+     * \class FrameCodec
+     *
+     * Decodes, at once, the parts of the frames whose layout is fixed once
+     * the device has reported its firmware: the length and status bytes with
+     * the width of the length field known, and EEG blocks with the number of
+     * samples present or not (multiple sample mode), the samples decoded by
+     * the IEEGSampleCodec of the compression and firmware and the stamp of
+     * 1 byte (firmwares older than 800) or 4 bytes.
+     *
+     * It only decodes what is fully in the buffer and well formed, leaving
+     * the parser as parseByte would. An EEG block longer than the buffer is
+     * decoded sample by sample over the calls; the bytes of a sample split
+     * across calls, and anything else, are left to parseByte.
+     */
+    private final class FrameCodec {
+        boolean isLength2Bytes;
+        boolean isMultipleSample;
+        int stampLength;
+        IEEGSampleCodec samples;
+
+        /*!
+         * Decodes the length field and the status bytes.
+         *
+         * \pre The parser is in state ST_LENGTH0.
+         *
+         * \return Index of the first byte not decoded.
+         */
+        int decodeHeader (byte[] buffer, int offset, int end){
+            int lengthWidth = isLength2Bytes ? 2 : 1;
+            if (end - offset < lengthWidth + 2)
+                return offset;
+            int i = offset;
+            _dataLength = isLength2Bytes ? ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF) : (buffer[i] & 0xFF);
+            i += lengthWidth;
+            _consumeBytes(buffer, offset, lengthWidth);
+            _statusTransition(StatusProtocol.ST_STATUS_0);
+            _lengthReceived();
+            if (_state != StatusProtocol.ST_STATUS_0 || _nBytes + 2 > _bodyEnd)
+                return i;
+
+            _consumeBytes(buffer, i, 2);
+            _processStatusByte0(buffer[i]);
+            _processStatusByte1(buffer[i + 1]);
+            if (!_transitionToNextBlock()) // no more data
+            {
+                _statusTransition(StatusProtocol.ST_EOF);
+            }
+            return i + 2;
+        }
+
+        /*!
+         * Decodes the number of samples and the channel info of an EEG
+         * block, and then its samples as decodeSamples does.
+         *
+         * \pre The parser is in state ST_EEG_DATA.
+         *
+         * \return Index of the first byte not decoded.
+         */
+        int decodeEEGBlock (byte[] buffer, int offset, int end){
+            // Not past the End Of Frame Delimiter the length field announces
+            int available = Math.min(end - offset, _bodyEnd - _nBytes);
+            int headerLength = isMultipleSample ? 5 : 4;
+            if (available < headerLength)
+                return offset;
+            int i = offset;
+            int nSamples = 1;
+            if (isMultipleSample)
+            {
+                if (buffer[i] <= 0)
+                    return offset;
+                nSamples = buffer[i++];
+            }
+            int chInfo = ((buffer[i] & 0xFF) << 24) | ((buffer[i + 1] & 0xFF) << 16) | ((buffer[i + 2] & 0xFF) << 8) | (buffer[i + 3] & 0xFF);
+            i += 4;
+            if (~chInfo == 0)
+                return offset;
+
+            _starStimData.nSamples(nSamples);
+            _currentSample = 0;
+            _temp = chInfo;
+            _processEEGChannelInfo(chInfo);
+            _consumeBytes(buffer, offset, headerLength);
+            _statusTransition(StatusProtocol.ST_EEG_DATA_RAW_MSB);
+            return decodeSamples(buffer, i, end);
+        }
+
+        /*!
+         * \return True if the parser is at the first channel of a sample of
+         * an EEG block, where decodeSamples can go on.
+         */
+        boolean isAtSample (){
+            return (_state == StatusProtocol.ST_EEG_DATA_RAW_MSB
+                    || _state == StatusProtocol.ST_EEG_COMPRESSED_16BIT_MSB
+                    || _state == StatusProtocol.ST_EEG_COMPRESSED_12BIT_S1)
+                    && _currentChannel == _eegChannelIndex[0];
+        }
+
+        /*!
+         * Decodes the samples of the current EEG block that are whole in the
+         * buffer, and the stamp if the last sample is decoded and the stamp
+         * follows it in the buffer. Blocks longer than a read go on in the
+         * next call.
+         *
+         * \pre isAtSample()
+         *
+         * \return Index of the first byte not decoded.
+         */
+        int decodeSamples (byte[] buffer, int offset, int end){
+            int available = Math.min(end - offset, _bodyEnd - _nBytes);
+            int channelMask = _starStimData.eegChInfo();
+            int nSamples = _starStimData.nSamples();
+            int from = _currentSample;
+            int count = 0;
+            int length = 0;
+            while (from + count < nSamples)
+            {
+                int sampleLength = samples.length(channelMask, from + count);
+                if (length + sampleLength > available)
+                    break;
+                length += sampleLength;
+                count++;
+            }
+            if (count == 0)
+                return offset;
+
+            int i = samples.decode(buffer, offset, from, count);
+            _currentSample = (byte) (from + count);
+            if (_currentSample < nSamples)
+            {
+                _currentChannel = (byte) _eegChannelIndex[0];
+                _statusTransition(samples.nextSampleState());
+                _consumeBytes(buffer, offset, i - offset);
+                return i;
+            }
+
+            _currentChannel = 32;
+            _statusTransition(StatusProtocol.ST_EEG_STAMP);
+            if (length + stampLength > available)
+            {
+                _consumeBytes(buffer, offset, i - offset);
+                return i;
+            }
+            _stamp++;
+            if (stampLength == 1)
+            {
+                _starStimData.eegStamp(buffer[i] & 0xFF);
+            }
+            else
+            {
+                _temp = ((buffer[i] & 0xFF) << 24) | ((buffer[i + 1] & 0xFF) << 16) | ((buffer[i + 2] & 0xFF) << 8) | (buffer[i + 3] & 0xFF);
+                _starStimData.eegStamp(_temp);
+            }
+            i += stampLength;
+            _consumeBytes(buffer, offset, i - offset);
+            if (!_transitionToNextBlock()) // no more data
+            {
+                _statusTransition(StatusProtocol.ST_EOF);
+            }
+            return i;
+        }
+    }
+
+    /*!
+     * \interface IEEGSampleCodec
+     *
+     * Decodes the samples of an EEG block in one of the formats, leaving the
+     * parser as parseByte would. There is a class per format so the loops
+     * have no per value test of the format.
+     */
+    private interface IEEGSampleCodec {
+        /*!
+         * \return Bytes of a sample of a block.
+         *
+         * \param channelMask Channels of the block.
+         *
+         * \param sample Index of the sample in the block.
+         */
+        int length (int channelMask, int sample);
+
+        /*!
+         * Decodes samples of the block, whose channel info has been
+         * processed.
+         *
+         * \param from Index of the first sample in the block.
+         *
+         * \param samples Number of samples to decode.
+         *
+         * \return Index after the last sample.
+         */
+        int decode (byte[] buffer, int offset, int from, int samples);
+
+        /*!
+         * \return State of parseByte at the first channel of a sample after
+         * the first one.
+         */
+        StatusProtocol nextSampleState ();
+    }
+
+    /*!
+     * Uncompressed samples of the firmwares from 593, and of any while
+     * stimulating: no artifact checker.
+     */
+    private final class RawSampleCodec implements IEEGSampleCodec {
+        public int length (int channelMask, int sample){
+            return 3 * Integer.bitCount(channelMask);
+        }
+
+        public int decode (byte[] buffer, int offset, int from, int samples){
+            int channels = _eegChannelCount;
+            int[] channelIndex = _eegChannelIndex;
+            int checksum = 0;
+            int value = _temp;
+            int i = offset;
+            for (int s = from; s < from + samples; s++)
+            {
+                int[] data = _starStimData.eegSampleData(s);
+                for (int c = 0; c < channels; c++)
+                {
+                    byte msb = buffer[i];
+                    int mid = buffer[i + 1] & 0xFF;
+                    int lsb = buffer[i + 2] & 0xFF;
+                    i += 3;
+                    checksum += msb + mid + lsb;
+                    value = ((msb & 0xFF) << 16) | (mid << 8) | lsb;
+                    data[channelIndex[c]] = value;
+                }
+            }
+            _checksum += checksum;
+            _lastChannelWithEEG = channelIndex[channels - 1] + 1;
+            _temp = value;
+            return i;
+        }
+
+        public StatusProtocol nextSampleState (){
+            return StatusProtocol.ST_EEG_DATA_RAW_MSB;
+        }
+    }
+
+    /*!
+     * Uncompressed samples of the firmwares older than 593 while not
+     * stimulating: the artifact checker is kept going.
+     */
+    private final class ArtifactCheckingSampleCodec implements IEEGSampleCodec {
+        public int length (int channelMask, int sample){
+            return 3 * Integer.bitCount(channelMask);
+        }
+
+        public int decode (byte[] buffer, int offset, int from, int samples){
+            return _decodeRawSamples(buffer, offset, from, samples);
+        }
+
+        public StatusProtocol nextSampleState (){
+            return StatusProtocol.ST_EEG_DATA_RAW_MSB;
+        }
+    }
+
+    /*!
+     * 16 bit compression: the first sample uncompressed, then 2 bytes per
+     * channel.
+     */
+    private final class Delta16SampleCodec implements IEEGSampleCodec {
+        private final IEEGSampleCodec _first;
+
+        Delta16SampleCodec(IEEGSampleCodec first){
+            _first = first;
+        }
+
+        public int length (int channelMask, int sample){
+            return ((sample == 0) ? 3 : 2) * Integer.bitCount(channelMask);
+        }
+
+        public int decode (byte[] buffer, int offset, int from, int samples){
+            int i = offset;
+            if (from == 0)
+            {
+                i = _first.decode(buffer, i, 0, 1);
+                from++;
+                samples--;
+            }
+            int channels = _eegChannelCount;
+            int[] channelIndex = _eegChannelIndex;
+            int lastChannelWithEEG = _lastChannelWithEEG;
+            int artifactCounter = _artifactCheckerCounter;
+            int value = _temp;
+            for (int s = from; s < from + samples; s++)
+            {
+                int[] data = _starStimData.eegSampleData(s);
+                for (int c = 0; c < channels; c++)
+                {
+                    value = ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF);
+                    i += 2;
+                    data[channelIndex[c]] = value;
+                }
+                artifactCounter = artifactCounter / lastChannelWithEEG;
+            }
+            _artifactCheckerCounter = artifactCounter;
+            _temp = value;
+            return i;
+        }
+
+        public StatusProtocol nextSampleState (){
+            return StatusProtocol.ST_EEG_COMPRESSED_16BIT_MSB;
+        }
+    }
+
+    /*!
+     * 12 bit compression: the first sample uncompressed, then pairs of
+     * values in 3 bytes. As in parseByte, the second value of a pair is the
+     * channel after the first one, whether it is in the block or not.
+     */
+    private final class Delta12SampleCodec implements IEEGSampleCodec {
+        private final IEEGSampleCodec _first;
+        private final int[] _pairChannels = new int[32];
+        private int _pairs;
+        private int _pairsChannelMask;
+
+        Delta12SampleCodec(IEEGSampleCodec first){
+            _first = first;
+        }
+
+        public int length (int channelMask, int sample){
+            if (sample == 0)
+                return 3 * Integer.bitCount(channelMask);
+            if (channelMask != _pairsChannelMask)
+            {
+                _pairs = 0;
+                for (int channel = 0; channel < 32; channel += 2)
+                {
+                    // Next channel in the block
+                    while (channel < 32 && (channelMask & (1 << channel)) == 0) channel++;
+                    if (channel >= 32) break;
+                    _pairChannels[_pairs++] = channel;
+                }
+                _pairsChannelMask = channelMask;
+            }
+            return 3 * _pairs;
+        }
+
+        public int decode (byte[] buffer, int offset, int from, int samples){
+            int i = offset;
+            if (from == 0)
+            {
+                i = _first.decode(buffer, i, 0, 1);
+                from++;
+                samples--;
+            }
+            int pairs = _pairs;
+            int[] pairChannels = _pairChannels;
+            int value = _temp;
+            for (int s = from; s < from + samples; s++)
+            {
+                int[] data = _starStimData.eegSampleData(s);
+                for (int p = 0; p < pairs; p++)
+                {
+                    int channel = pairChannels[p];
+                    int middle = buffer[i + 1] & 0xFF;
+                    data[channel] = ((buffer[i] & 0xFF) << 4) + (middle >> 4);
+                    value = ((middle & 0x0F) << 8) + (buffer[i + 2] & 0xFF);
+                    i += 3;
+                    // StarStimData.eegData keeps the channel past the last
+                    // one in the last one
+                    data[(channel < 31) ? channel + 1 : 31] = value;
+                }
+            }
+            _temp = value;
+            return i;
+        }
+
+        public StatusProtocol nextSampleState (){
+            return StatusProtocol.ST_EEG_COMPRESSED_12BIT_S1;
+        }
+    }
+
+    /*!
+     * It keeps the bytes consumed without parseByte in the buffer used to
+     * report frames with errors.
+     */
+    private void _recordDebugBytes (byte[] buffer, int offset, int length){
+        int index = _debugErrorFrameIndex;
+        char[] frame = _debugErrorFrame;
+        for (int k = offset; k < offset + length; k++)
+        {
+            frame[index++] = (char) (buffer[k]&0xFF);
+            if (index >= frame.length)
+            {
+                index = 0;
+            }
+        }
+        _debugErrorFrameIndex = index;
+    }
+
     /*!
      * It performs the parse of the protocol byte by byte.
      *
@@ -691,8 +1556,6 @@ public class StarStimProtocol {
     public boolean _streamingMainClass = false;
     public boolean parseByte ( byte byteRcv ){
 
-        String debugString = "";
-
         int auxArtifactCorrector;
 
         /* JUST WHILE DEVELOPING ****/
@@ -712,15 +1575,22 @@ public class StarStimProtocol {
             _debugErrorFrameIndex = 0;
         }
         _nBytes++;
+        if (_state != StatusProtocol.ST_IDLE)
+        {
+            // Kept while parsing, to resync on a frame with errors
+            _sfd = ((_sfd << 8) | (byteRcv & 0xFF)) & SFD_MASK;
+            if (_nBytes > _bodyEnd && _state != StatusProtocol.ST_EOF)
+            {
+                _frameError(FrameError.LENGTH_OVERFLOW);
+                return false;
+            }
+        }
         switch (_state)
         {
         case ST_IDLE:
             if ( _isStartOfFrame( byteRcv ) ) // start frame delimiter
             {    
-                _resetStateMachine();
-                _starStimData.empty();
-                _nBytes = SFD_LENGTH;
-                _statusTransition(StatusProtocol.ST_LENGTH0);
+                _startFrame();
             }
             break;
         case ST_LENGTH0:
@@ -728,18 +1598,24 @@ public class StarStimProtocol {
         	
             // When receiving first packet, decide whether device it length 2 byte
             // First byte of length in first packet should be 0 (length is 0x00 0x0B)
-            if( byteRcv == 0 && _isLength2Bytes == false ){
+            if( byteRcv == 0 && _isLength2Bytes == false && !_isLengthWidthDetected ){
             	logger.info("Length field is 2 bytes ", Logger.LOG_FILE_ON );
                 _isLength2Bytes = true;
             }
         	
             if( _isLength2Bytes ){
             	_dataLength = ((byteRcv&0xFF) << 8*1);
-                _statusTransition(StatusProtocol.ST_STATUS_1);
+                _statusTransition(StatusProtocol.ST_LENGTH1);
             }else{
-                _dataLength = byteRcv;
+                _dataLength = (byteRcv&0xFF);
                 _statusTransition(StatusProtocol.ST_STATUS_0);            	
+                _lengthReceived();
             }
+            break;
+        case ST_LENGTH1:
+            _dataLength += (byteRcv&0xFF);
+            _statusTransition(StatusProtocol.ST_STATUS_0);
+            _lengthReceived();
 
 
         	
@@ -784,6 +1660,11 @@ public class StarStimProtocol {
 
 
             if( _multipleSample == 1 ){ // Multiple Sample Mode ON!
+                if (byteRcv <= 0)
+                {
+                    _frameError(FrameError.UNEXPECTED_STATE);
+                    break;
+                }
                 _statusTransition(StatusProtocol.ST_EEG_CH_INFO_0);
                 // Store number of samples per byte
                 _starStimData.nSamples( byteRcv );
@@ -981,7 +1862,7 @@ public class StarStimProtocol {
         case ST_EEG_CHECKSUM:
             if (_checksum != (byteRcv&0xFF))
             {
-                logger.info ( "Checksum incorrect"  +_checksum + " " + (byteRcv&0xFF), Logger.LOG_FILE_ON);
+                _errorCounts[FrameError.CHECKSUM.ordinal()]++;
             }
             _starStimData.eegChecksum( (char) (byteRcv&0xFF));
             _statusTransition(StatusProtocol.ST_EEG_STAMP);
@@ -1041,6 +1922,11 @@ public class StarStimProtocol {
             break;
         case ST_EEG_CONFIG_NUM_REGS:
             _starStimData.eegNumRegs( (byteRcv&0xFF));
+            if (_starStimData.eegStartAddress() + _starStimData.eegNumRegs() > StarStimData.NumEEGConfigReg)
+            {
+                _frameError(FrameError.UNEXPECTED_STATE);
+                break;
+            }
             if (_starStimData.eegNumRegs() == 0)
             {
                 if (!_transitionToNextBlock()) // no more data
@@ -1113,6 +1999,11 @@ public class StarStimProtocol {
             break;
         case ST_STIM_CONFIG_NUM_REGS:
             _starStimData.stimNumRegs( (char) byteRcv);            
+            if (_starStimData.stimStartAddress() + _starStimData.stimNumRegs() > StarStimData.NumStimConfigReg)
+            {
+                _frameError(FrameError.UNEXPECTED_STATE);
+                break;
+            }
             if (_starStimData.stimNumRegs() == 0)
             {
                 if (!_transitionToNextBlock()) // no more data
@@ -1251,23 +2142,44 @@ public class StarStimProtocol {
             
             _starStimData.firmwareVersion( (_temp & 0x7FFF) );
             _starStimData.set1000SPS(     ((_temp & 0x8000)>>15) );
-            // NOTE: Configure SW to work in MultipleSample Mode when 1000SPS
-            _multipleSample = (_temp & 0x8000)>>15; // This should be removed as 1000SPS is always multisample
-            //
+            // NOTE: MultipleSample Mode is configured when the frame ends
+            // well, a corrupted one would break the next EEG frames
             if (!_transitionToNextBlock()) // no more data
             {
                 _statusTransition(StatusProtocol.ST_EOF);
             }
             break;
         case ST_EOF:
+            if (_nBytes != _bodyEnd + 1)
+            {
+                // The blocks announced end before the length field says
+                _frameError(FrameError.UNEXPECTED_STATE);
+                break;
+            }
+            _bodyEnd = Integer.MAX_VALUE;
+            if (byteRcv != EFD_0)
+            {
+                _frameError(FrameError.BAD_EOF);
+                break;
+            }
             _isEndOfFrame(byteRcv);
             _statusTransition(StatusProtocol.ST_EOF_1);
             break;
         case ST_EOF_1:
+            if (byteRcv != EFD_1)
+            {
+                _frameError(FrameError.BAD_EOF);
+                break;
+            }
             _isEndOfFrame(byteRcv);
             _statusTransition(StatusProtocol.ST_EOF_2);
             break;
         case ST_EOF_2:
+            if (byteRcv != EFD_2)
+            {
+                _frameError(FrameError.BAD_EOF);
+                break;
+            }
             _isEndOfFrame(byteRcv);
             _statusTransition(StatusProtocol.ST_EOF_3);
             break;
@@ -1292,6 +2204,13 @@ public class StarStimProtocol {
     #endif
 /**/
                 _debugErrorFrameIndex = 0;
+                _isLengthWidthDetected = true;
+                if (_starStimData.isFirmwareVersionPresent())
+                {
+                    // NOTE: Configure SW to work in MultipleSample Mode when 1000SPS
+                    _multipleSample = _starStimData.get1000SPS(); // This should be removed as 1000SPS is always multisample
+                }
+                _selectFrameCodec();
                 if ((_firmwareVersion<593)&&(!_isStimulating))
                 {
                     if (_lastArtifactCheckerCounter >= 0)
@@ -1327,14 +2246,7 @@ public class StarStimProtocol {
                 _lastDeviceStatus = (char) _starStimData.deviceStatus();
                 return true;
             }
-            logger.info( "Frame with errors: byte " + (byteRcv&0xFF) + " nBytes " + _nBytes + " _dataLength " 
-            				+ _dataLength + " _state " + _state, Logger.LOG_FILE_ON);
-            for (int k = 0; k < _debugErrorFrameIndex; k++)
-            {
-            	debugString += " " + new Integer(_debugErrorFrame[k]) ;
-            }
-            logger.info( debugString, Logger.LOG_FILE_ON );
-            _debugErrorFrameIndex = 0;
+            _frameError(FrameError.BAD_EOF);
             break;
         }
         return false;
@@ -1360,26 +2272,67 @@ public class StarStimProtocol {
         _debugErrorFrameIndex = 0;
         _lastDeviceStatus = 0;
         _nBytes = 0;
-        _sfd[0] = 'x';
-        _sfd[1] = 'x';
-        _sfd[2] = 'x';
-        _sfd[3] = '\0';
+        _sfd = 0;
         _counter = 0;
 
-        _eof[0] = 'x';
-        _eof[1] = 'x';
-        _eof[2] = 'x';
-        _eof[3] = 'x';
-        _eof[4] = '\0';
+        _eof = 0;
+        _isLengthWidthDetected = false;
         _previousCommandToggle = 0;
         _lastArtifactCheckerCounter = -1;
         for (int i = 0; i < 32; i++)
         {
             _artifactLastValues[i] = 0;
         }
+        _selectFrameCodec();
         _resetStateMachine();
     }
 
+    /*!
+     * Codec factory: it selects the FrameCodec for the firmware, the width of
+     * the length field, the multiple sample mode, the compression and
+     * whether the device is stimulating. There is none until the firmware
+     * and the width of the length field are known, so parseByte parses the
+     * first frames.
+     */
+    private void _selectFrameCodec (){
+        if (_firmwareVersion == 0 || (!_isLength2Bytes && !_isLengthWidthDetected))
+        {
+            _frameCodec = null;
+            return;
+        }
+        boolean isCheckingArtifacts = (_firmwareVersion < 593) && !_isStimulating;
+        IEEGSampleCodec samples;
+        if (_eegCompresssionType == EEGCompressionType.EEG_16BIT_COMPRESSION)
+            samples = isCheckingArtifacts ? _artifactCheckingDelta16SampleCodec : _delta16SampleCodec;
+        else if (_eegCompresssionType == EEGCompressionType.EEG_12BIT_COMPRESSION)
+            samples = isCheckingArtifacts ? _artifactCheckingDelta12SampleCodec : _delta12SampleCodec;
+        else
+            samples = isCheckingArtifacts ? _artifactCheckingSampleCodec : _rawSampleCodec;
+        boolean isMultipleSample = (_multipleSample == 1);
+        int stampLength = (_firmwareVersion < 800) ? 1 : 4;
+
+        if (isCheckingArtifacts && _frameCodec != null && !_isCheckingArtifacts(_frameCodec.samples))
+        {
+            // The artifact values were not tracked: start over
+            _lastArtifactCheckerCounter = -1;
+            for (int i = 0; i < 32; i++)
+            {
+                _artifactLastValues[i] = 0;
+            }
+        }
+        FrameCodec codec = _selectedFrameCodec;
+        codec.isLength2Bytes = _isLength2Bytes;
+        codec.isMultipleSample = isMultipleSample;
+        codec.stampLength = stampLength;
+        codec.samples = samples;
+        _frameCodec = codec;
+    }
+
+    private boolean _isCheckingArtifacts (IEEGSampleCodec samples){
+        return samples == _artifactCheckingSampleCodec || samples == _artifactCheckingDelta16SampleCodec
+                || samples == _artifactCheckingDelta12SampleCodec;
+    }
+
     /*!
      * It builds a request frame.
      *
@@ -1387,6 +2340,8 @@ public class StarStimProtocol {
      * built. The caller to the function has to allocate space enough to hold
      * the entire request frame.
      *
+     * \param offset Position of buffer where the request frame starts.
+     *
      * \param isEEGStarting Boolean that indicates whether the request frame
      * performs the EEG Starting action.
      *
@@ -1505,7 +2460,8 @@ public class StarStimProtocol {
      * A negative number is returned if some of the parameter has an invalid
      * value.
      */
-    public static int buildRequestFrame (  Byte[] buffer,
+    public static int buildRequestFrame (  byte[] buffer,
+                                  int offset,
                                   boolean isEEGStarting,
                                   boolean isEEGStopping,
                                   boolean isStimStarting,
@@ -1523,37 +2479,37 @@ public class StarStimProtocol {
                                   boolean isAccelerometerConfigWriting,
                                   boolean isRealTimeStimulationWriting,
                                   boolean isSDCardConfigWriting,
-                                  Byte eegConfigStartAddress,
-                                  Byte eegConfigNumRegs,
-                                  Byte[] eegConfigReg,
-                                  Byte stimConfigStartAddress,
-                                  Byte stimConfigNumRegs,
-                                  Byte[] stimConfigReg,
-                                  Byte accelerometerConfigStartAddress,
-                                  Byte accelerometerConfigNumRegs,
-                                  Byte[] accelerometerConfigReg,
-                                  Byte sdcardConfigStartAddress,
-                                  Byte sdcardConfigNumRegs,
-                                  Byte[] sdcardConfigReg,
-                                  Byte onlineStimChannelInfo,
-                                  Byte onlineStimNumSamples,
-                                  Byte[] onlineStimSample){
-        buffer[0] = SFD_0;
-        buffer[1] = SFD_1;
-        buffer[2] = SFD_2;
-        buffer[3] = 0; // length
+                                  byte eegConfigStartAddress,
+                                  byte eegConfigNumRegs,
+                                  byte[] eegConfigReg,
+                                  byte stimConfigStartAddress,
+                                  byte stimConfigNumRegs,
+                                  byte[] stimConfigReg,
+                                  byte accelerometerConfigStartAddress,
+                                  byte accelerometerConfigNumRegs,
+                                  byte[] accelerometerConfigReg,
+                                  byte sdcardConfigStartAddress,
+                                  byte sdcardConfigNumRegs,
+                                  byte[] sdcardConfigReg,
+                                  byte onlineStimChannelInfo,
+                                  byte onlineStimNumSamples,
+                                  byte[] onlineStimSample){
+        buffer[offset] = (byte) SFD_0;
+        buffer[offset + 1] = (byte) SFD_1;
+        buffer[offset + 2] = (byte) SFD_2;
+        buffer[offset + 3] = 0; // length
         
-        buffer[4] = (byte) (((isEEGStarting?1:0)        << 0) | ( (isEEGStopping?1:0)        << 1) | 
+        buffer[offset + 4] = (byte) (((isEEGStarting?1:0)        << 0) | ( (isEEGStopping?1:0)        << 1) | 
         					( (isStimStarting?1:0)      << 2) | ( (isStimStopping?1:0)      << 3)  | ( (isImpedanceStarting?1:0)  << 4) |
                             ( (isImpedanceStopping?1:0) << 5) | ( (isBatteryMeasurement?1:0) << 6) | ( (isTBD?1:0) << 7) );
         
-        buffer[5] = (byte)  (  (isEEGConfigWriting?1:0) | ( (isStimConfigWriting?1:0) << 1) |
+        buffer[offset + 5] = (byte)  (  (isEEGConfigWriting?1:0) | ( (isStimConfigWriting?1:0) << 1) |
                     		( (isEEGConfigReading?1:0) << 2) | ( (isStimConfigReading?1:0) << 3) |
                     		( (isFirmWareVersionReading?1:0) << 4) | ( (isAccelerometerConfigReading?1:0) << 5)|
                     		( (isAccelerometerConfigWriting?1:0) << 6) |
                     		( (isRealTimeStimulationWriting?1:0) << 7) | ( (isSDCardConfigWriting?1:0) << 7) );
                     // Note that MSB is used for both RealTimeStimulationWriting and SDCardConfigWriting
-        int pos = 6;
+        int pos = offset + 6;
         if (isEEGConfigReading || isEEGConfigWriting)
         {
             if (eegConfigStartAddress >= StarStimData.NumEEGConfigReg)
@@ -1673,11 +2629,11 @@ public class StarStimProtocol {
     /**/
 
 
-        buffer[pos++] = EFD_0;
-        buffer[pos++] = EFD_1;
-        buffer[pos++] = EFD_2;
-        buffer[3] = (byte) pos; // update length
-        return pos;
+        buffer[pos++] = (byte) EFD_0;
+        buffer[pos++] = (byte) EFD_1;
+        buffer[pos++] = (byte) EFD_2;
+        buffer[offset + 3] = (byte) (pos - offset); // update length
+        return pos - offset;
     }
 
     /*!
@@ -1687,30 +2643,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildStartEEGFrame (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, true, false, false, false, false,
-                                     false, false, false, false, false, false,
-                                     false, false, false, false, false, false,
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
-                                     (byte) 0, (byte) 0, nullArray);
-
-        if (size < 0)
-        {
-            logger.info( "Error building start EEG frame", Logger.LOG_FILE_ON );
-        }
-        else if (size >= 256)
-        {
-        	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
-        }
-        
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte> (returnArray.subList(0, size)); 
-               
+        return _toList(START_EEG_FRAME, START_EEG_FRAME.length);
     }
 
     /*!
@@ -1720,29 +2653,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildStopEEGFrame (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, true, false, false, false,
-                                     false, false, false, false, false, false,
-                                     false, false, false, false, false, false,
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
-                                     (byte) 0, (byte) 0, nullArray);
-
-        if (size < 0)
-        {
-            logger.info( "Error building start EEG frame", Logger.LOG_FILE_ON );
-        }
-        else if (size >= 256)
-        {
-        	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
-        }
-        
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));
+        return _toList(STOP_EEG_FRAME, STOP_EEG_FRAME.length);
     }
 
     /*!
@@ -1788,9 +2699,9 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildReadStimRegisterFrame (Byte address, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame,  false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 					 false, false, false, false, false, false,
                 					 true, false, false, false, false, false,
                 					 (byte) 0, (byte) 0, nullArray, address, length, nullArray, 
@@ -1801,14 +2712,12 @@ public class StarStimProtocol {
         {
             logger.info( "Error building start EEG frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));
+        return _toList(frame, size);
     }
 
     /*!
@@ -1824,9 +2733,9 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildReadEEGRegisterFrame (Byte address, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame,  false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 					 false, false, false, false, false, true,
                 					 false, false, false, false, false, false,
                                      address, length, nullArray, (byte) 0, (byte) 0, nullArray, 
@@ -1837,14 +2746,12 @@ public class StarStimProtocol {
         {
             logger.info( "Error building read EEG register frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));
+        return _toList(frame, size);
     }
 
     /*!
@@ -1860,9 +2767,9 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildReadAccRegisterFrame (Byte address, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame,  false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 					 false, false, false, false, false, false,
                 					 false, false, true, false, false, false,
                 					 (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
@@ -1873,14 +2780,12 @@ public class StarStimProtocol {
         {
             logger.info( "Error building read ACCEL register frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));
+        return _toList(frame, size);
     }
 
     /*!
@@ -1898,12 +2803,12 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildWriteStimRegisterFrame (Byte address, Byte[] value, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 							false, false, false, false, true, false,
                 							false, false, false, false, false, false,
-                							(byte) 0, (byte) 0, nullArray, address, length, value,  
+                							(byte) 0, (byte) 0, nullArray, address, length, _toArray(value),  
                 							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
                 							(byte) 0, (byte) 0, nullArray);        
         
@@ -1911,14 +2816,12 @@ public class StarStimProtocol {
         {
             logger.info( "Error building start Stim register frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));  
+        return _toList(frame, size);
     }
 
     /*!
@@ -1936,12 +2839,12 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildWriteEEGRegisterFrame (Byte address, Byte[] value, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 							false, false, false, true, false, false,
                 							false, false, false, false, false, false,
-                							address, length, value, (byte) 0, (byte) 0, nullArray, 
+                							address, length, _toArray(value), (byte) 0, (byte) 0, nullArray, 
                 							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
                 							(byte) 0, (byte) 0, nullArray);
 
@@ -1949,14 +2852,12 @@ public class StarStimProtocol {
         {
             logger.info( "Error building write EEG register frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));  
+        return _toList(frame, size);
     }
 
     /*!
@@ -1974,27 +2875,25 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildWriteAccRegisterFrame (Byte address, Byte[] value, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 						false, false, false, false, false, false,
                 						false, false, false, true, false, false,
                 						(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                						address, length, value, (byte) 0, (byte) 0, nullArray,
+                						address, length, _toArray(value), (byte) 0, (byte) 0, nullArray,
                 						(byte) 0, (byte) 0, nullArray);
 
         if (size < 0)
         {
             logger.info( "Error building start ACCEL write frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));  
+        return _toList(frame, size);
     }
 
     /*!
@@ -2030,27 +2929,25 @@ public class StarStimProtocol {
     public static ArrayList<Byte> buildWriteSDCardRegisterFrame (Byte address, Byte[] value, Byte length){
     	Logger logger = Logger.getInstance();
     	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
+        byte[] frame = new byte[REQUEST_FRAME_LENGTH];
+        byte[] nullArray = new byte[1];
+        int size = buildRequestFrame(frame, 0, false, false, false, false, false,
                 						false, false, false, false, false, false,
                 						false, false, false, false, false, true,
                 						(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                						(byte) 0, (byte) 0, nullArray, address, length, value, 
+                						(byte) 0, (byte) 0, nullArray, address, length, _toArray(value), 
                 						(byte) 0, (byte) 0, nullArray);
 
         if (size < 0)
         {
             logger.info( "Error building start ACCEL write frame", Logger.LOG_FILE_ON );
         }
-        else if (size >= 256)
+        else if (size >= REQUEST_FRAME_LENGTH)
         {
         	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
         }
         
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));  
+        return _toList(frame, size);
     }
 
     /*!
@@ -2060,29 +2957,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildReadBatteryRequest (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
-                							false, true, false, false, false, false,
-                							false, false, false, false, false, false,
-                							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
-                							(byte) 0, (byte) 0, nullArray);
-
-        if (size < 0)
-        {
-            logger.info( "Error building start Read Battery frame", Logger.LOG_FILE_ON );
-        }
-        else if (size >= 256)
-        {
-        	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
-        }
-        
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));  
+        return _toList(READ_BATTERY_FRAME, READ_BATTERY_FRAME.length);
     }
 
     /*!
@@ -2092,21 +2967,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildNullRequest (){
-        Byte[] frame = new Byte[9];
-
-        int pos = 0;
-        frame[pos++] = SFD_0;
-        frame[pos++] = SFD_1;
-        frame[pos++] = SFD_2;
-        frame[pos++] = 0; // length
-        frame[pos++] = (byte) 0x80; // NULL REQUEST COMMAND
-        frame[pos++] = (byte) 0x00; // NULL REQUEST COMMAND
-        frame[pos++] = EFD_0;
-        frame[pos++] = EFD_1;
-        frame[pos++] = EFD_2;
-        frame[3] = (byte) pos;
-
-        return new ArrayList<Byte>(Arrays.asList(frame)); 
+        return _toList(NULL_REQUEST_FRAME, NULL_REQUEST_FRAME.length);
     }
 
     /*!
@@ -2116,29 +2977,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildFirmwareVersionBatteryFrame (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame,  false, false, false, false, false,
-                							 false, true, false, false, false, false,
-                							 false, true, false, false, false, false,
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                                     (byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
-                                     (byte) 0, (byte) 0, nullArray);
-
-        if (size < 0)
-        {
-            logger.info( "Error building start EEG frame", Logger.LOG_FILE_ON );
-        }
-        else if (size >= 256)
-        {
-        	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
-        }
-        
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size));    	
+        return _toList(FIRMWARE_VERSION_BATTERY_FRAME, FIRMWARE_VERSION_BATTERY_FRAME.length);
     }
 
     /*!
@@ -2148,29 +2987,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildFirmwareVersionFrame (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[256];
-        Byte[] nullArray = new Byte[1];
-        int size = buildRequestFrame(frame, false, false, false, false, false,
-                							false, false, false, false, false, false,
-                							false, true, false, false, false, false,
-                							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray, 
-                							(byte) 0, (byte) 0, nullArray, (byte) 0, (byte) 0, nullArray,
-                							(byte) 0, (byte) 0, nullArray);
-
-        if (size < 0)
-        {
-            logger.info( "Error building start EEG frame", Logger.LOG_FILE_ON );
-        }
-        else if (size >= 256)
-        {
-        	logger.info( "Critical: buffer too short. Program may not work properly", Logger.LOG_FILE_ON );
-        }
-        
-        ArrayList<Byte> returnArray = new ArrayList<Byte>(Arrays.asList(frame)); 
-        
-        return new ArrayList<Byte>( returnArray.subList(0, size)); 
+        return _toList(FIRMWARE_VERSION_FRAME, FIRMWARE_VERSION_FRAME.length);
     }
 
     /*!
@@ -2180,24 +2997,7 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildStartBeaconRequest (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[9];
-
-        int pos = 0;
-        frame[pos++] = SFD_0;
-        frame[pos++] = SFD_1;
-        frame[pos++] = SFD_2;
-        frame[pos++] = 0; // length
-        frame[pos++] = 0x7F; // START BEACON COMMAND
-        frame[pos++] = 0x7F; // START BEACON COMMAND
-        frame[pos++] = EFD_0;
-        frame[pos++] = EFD_1;
-        frame[pos++] = EFD_2;
-        frame[3] = (byte) pos;
-        
-        return new ArrayList<Byte>(Arrays.asList(frame)); 
-         
+        return _toList(START_BEACON_FRAME, START_BEACON_FRAME.length);
     }
 
     /*!
@@ -2207,23 +3007,68 @@ public class StarStimProtocol {
      * \return Byte array that contains the request.
      */
     public static ArrayList<Byte> buildStopBeaconRequest (){
-    	Logger logger = Logger.getInstance();
-    	
-        Byte[] frame = new Byte[9];
+        return _toList(STOP_BEACON_FRAME, STOP_BEACON_FRAME.length);
+    }
 
-        int pos = 0;
-        frame[pos++] = SFD_0;
-        frame[pos++] = SFD_1;
-        frame[pos++] = SFD_2;
-        frame[pos++] = 0; // length
-        frame[pos++] = 0x00; // STOP BEACON COMMAND
-        frame[pos++] = 0x00; // STOP BEACON COMMAND
-        frame[pos++] = EFD_0;
-        frame[pos++] = EFD_1;
-        frame[pos++] = EFD_2;
-        frame[3] = (byte) pos;
-        
-        return new ArrayList<Byte>(Arrays.asList(frame));
+    /*!
+     * It writes a request frame without parameters, that only carries the
+     * two command bytes.
+     *
+     * \param buffer Buffer where the request frame is written.
+     *
+     * \param offset Position of buffer where the request frame starts.
+     *
+     * \param command0 First command byte, as buffer[4] of buildRequestFrame.
+     *
+     * \param command1 Second command byte, as buffer[5] of buildRequestFrame.
+     *
+     * \return Size of the request frame.
+     */
+    public static int writeCommandFrame (byte[] buffer, int offset, int command0, int command1){
+        int pos = offset;
+        buffer[pos++] = (byte) SFD_0;
+        buffer[pos++] = (byte) SFD_1;
+        buffer[pos++] = (byte) SFD_2;
+        buffer[pos++] = 0; // length
+        buffer[pos++] = (byte) command0;
+        buffer[pos++] = (byte) command1;
+        buffer[pos++] = (byte) EFD_0;
+        buffer[pos++] = (byte) EFD_1;
+        buffer[pos++] = (byte) EFD_2;
+        buffer[offset + 3] = (byte) (pos - offset);
+        return pos - offset;
+    }
+
+    /*!
+     * \return A new array holding the request frame with the given command
+     * bytes.
+     */
+    private static byte[] _commandFrame (int command0, int command1){
+        byte[] frame = new byte[9];
+        writeCommandFrame(frame, 0, command0, command1);
+        return frame;
+    }
+
+    /*!
+     * \return The first size bytes of frame as a list, empty if size is
+     * negative as when the frame could not be built.
+     */
+    private static ArrayList<Byte> _toList (byte[] frame, int size){
+        ArrayList<Byte> list = new ArrayList<Byte>(Math.max(size, 0));
+        for (int i = 0; i < size; i++)
+        {
+            list.add(frame[i]);
+        }
+        return list;
+    }
+
+    private static byte[] _toArray (Byte[] value){
+        byte[] array = new byte[value.length];
+        for (int i = 0; i < value.length; i++)
+        {
+            array[i] = value[i];
+        }
+        return array;
     }
 
     /*!
@@ -2283,6 +3128,25 @@ public class StarStimProtocol {
      */
     void setFirmwareVersion(int firmwareVersion){
     	_firmwareVersion = firmwareVersion;
+    	_selectFrameCodec();
+    }
+
+    /*!
+     * Sets the width of the length field, when already known for the device.
+     * Otherwise it is detected from the first frame.
+     *
+     * \param value true for a 2-byte length field.
+     */
+    public void setLength2Bytes(boolean value){
+        _isLength2Bytes = value;
+        _selectFrameCodec();
+    }
+
+    /*!
+     * Returns whether the length field of the device is 2 bytes
+     */
+    public boolean isLength2Bytes(){
+        return _isLength2Bytes;
     }
 
     /*!
@@ -2292,6 +3156,7 @@ public class StarStimProtocol {
      */
     public void setIsStimulating(boolean value){
         _isStimulating = value;
+        _selectFrameCodec();
     }
 
     /*!
@@ -2301,6 +3166,7 @@ public class StarStimProtocol {
      */
     public void multipleSample( int value ){
         _multipleSample = value;
+        _selectFrameCodec();
     }
 
     /*!
@@ -2317,6 +3183,7 @@ public class StarStimProtocol {
      */
     public void eegCompressionType( EEGCompressionType value ){
         _eegCompresssionType = value;
+        _selectFrameCodec();
     }
 
     /*!
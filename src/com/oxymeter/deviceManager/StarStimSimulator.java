@@ -0,0 +1,963 @@
+package com.icognos.deviceManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import com.icognos.util.ILoggerOutput;
+import com.icognos.util.Logger;
+
+/*!
+ * Stand-in for an enzo3G/StarStim device. It speaks the framing that
+ * StarStimProtocol.parseByte understands and answers the request frames built
+ * by StarStimProtocol.build*Frame, so the host pipeline can be exercised
+ * without hardware, at real-time pace or many times faster.
+ *
+ * The simulator runs on a pair of streams: a LoopbackTransport device side for
+ * in-process runs (see DeviceManager.setDemoMode), or a socket for
+ * TCPTransport (see main).
+ *
+ * Two threads are used. The request thread parses the host requests, updates
+ * the registers and queues the replies. The beacon thread sends the beacons at
+ * the configured pace; replies piggy-back on the next beacon, or go out on
+ * their own frame while the beacons are stopped. As the device does, at most
+ * one command is acknowledged per frame by toggling the MSB of status #0.
+ *
+ * The EEG registers of DennisRegisters that shape the stream are honoured:
+ * EEG_CH_INFO_ADDR (4 bytes, LSB first, '0' means active channel),
+ * EEG_MULTISAMPLE_MODE_ADDR, EEG_REG_SAMPLES_PER_BEACON_ADDR,
+ * EEG_COMPRESSION_TYPE_ADDR and EEG_STREAMING_RATE_ADDR. The host protocol is
+ * not configured by these writes, so both sides have to be set up alike.
+ */
+public class StarStimSimulator {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property StarStimSimulator::MAX_CHANNELS
+	 *
+	 * Maximum number of EEG channels in the channel info.
+	 */
+	public static final int MAX_CHANNELS = 32;
+
+	/*!
+	 * \property StarStimSimulator::MAX_SAMPLE_RATE
+	 *
+	 * Maximum EEG sample rate in samples per second.
+	 */
+	public static final int MAX_SAMPLE_RATE = 1000;
+
+	/*!
+	 * \property StarStimSimulator::MAX_SAMPLES_PER_BEACON
+	 *
+	 * The parser keeps the sample index in a byte.
+	 */
+	public static final int MAX_SAMPLES_PER_BEACON = 127;
+
+	/*!
+	 * \property StarStimSimulator::IDLE_BEACON_RATE
+	 *
+	 * Beacons per second while the EEG is not streaming.
+	 */
+	public static final int IDLE_BEACON_RATE = 250;
+
+	/*!
+	 * \property StarStimSimulator::SIGNAL_AMPLITUDE
+	 *
+	 * Amplitude of the generated sines in ADC counts, around 50uV at gain 6.
+	 */
+	public static final int SIGNAL_AMPLITUDE = 1000;
+
+	private static final int MAX_FRAME_LENGTH = 16384;
+	private static final int MAX_REQUEST_LENGTH = 256;
+	private static final int SINE_TABLE_BITS = 10;
+
+	/*!
+	 * \property StarStimSimulator::_sineTable
+	 *
+	 * One period of a sine of SIGNAL_AMPLITUDE, indexed by the top bits of
+	 * the channel phase.
+	 */
+	private static final int[] _sineTable = new int[1 << SINE_TABLE_BITS];
+	static {
+		for (int i = 0; i < _sineTable.length; i++)
+			_sineTable[i] = (int) Math.round(SIGNAL_AMPLITUDE * Math.sin(2 * Math.PI * i / _sineTable.length));
+	}
+
+	/*!
+	 * \property Logger
+	 *
+	 * Logger of the application
+	 */
+	private Logger logger;
+
+	// Configuration
+	private int _sampleRate;
+	private int _firmwareVersion;
+	private boolean _is1000SPS;
+	private boolean _isLength2Bytes;
+	private double _speedFactor;
+	private double _lossRate;
+	private double _corruptionRate;
+	private int _batteryMillivolts;
+	private Random _random;
+
+	/*!
+	 * \property StarStimSimulator::_eegReg
+	 *
+	 * EEG, stimulation and accelerometer register files.
+	 */
+	private int[] _eegReg;
+	private int[] _stimReg;
+	private int[] _accReg;
+
+	// Streams and threads
+	private InputStream _in;
+	private OutputStream _out;
+	private Thread _requestThread;
+	private Thread _beaconThread;
+	private volatile boolean _isRunning;
+
+	// Device state, guarded by this
+	private boolean _isBeaconing;
+	private boolean _isEEGStreaming;
+	private boolean _isStimulating;
+	private boolean _isImpedanceRunning;
+	private boolean _isFirmwareReported;
+	private int _commandToggle;
+	private int _pendingAcks;
+	private boolean _pendingFirmware;
+	private boolean _pendingBattery;
+	private LinkedList<int[]> _pendingEEGReads;
+	private LinkedList<int[]> _pendingStimReads;
+	private long _nextBeaconTime;
+
+	/*!
+	 * \property StarStimSimulator::_beaconStamp
+	 *
+	 * One byte stamp of the firmwares older than 800, one per beacon.
+	 */
+	private int _beaconStamp;
+
+	/*!
+	 * \property StarStimSimulator::_sampleStamp
+	 *
+	 * Four bytes stamp of the firmwares from 800, one per sample.
+	 */
+	private int _sampleStamp;
+
+	// Signal generation
+	private int[] _phase;
+	private int[] _phaseIncrement;
+	private int[][] _samples;
+
+	// Frame building, only used by the beacon thread
+	private byte[] _frame;
+	private int _framePosition;
+
+	// Request parsing, only used by the request thread
+	private byte[] _request;
+	private int _requestPosition;
+	private int _requestLength;
+
+	// Statistics
+	private volatile long _framesSent;
+	private volatile long _framesDropped;
+	private volatile long _framesCorrupted;
+	private volatile long _bytesSent;
+	private volatile long _samplesSent;
+	private volatile long _requestsReceived;
+	private volatile long _badRequests;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The device has 8 channels at 500 SPS, one sample
+	 * per beacon without compression, and reports firmware 1225.
+	 */
+	public StarStimSimulator(){
+		logger = Logger.getInstance();
+
+		_eegReg  = new int[DeviceManager.EEG_NUM_REGS];
+		_stimReg = new int[DeviceManager.STM_NUM_REGS];
+		_accReg  = new int[DeviceManager.ACCEL_NUM_REGS];
+
+		_firmwareVersion = DeviceManager.FWVERSION_ANDROID_COMPATIBLE;
+		_is1000SPS = false;
+		_isLength2Bytes = false;
+		_speedFactor = 1.0;
+		_lossRate = 0.0;
+		_corruptionRate = 0.0;
+		_batteryMillivolts = 4000;
+		_random = new Random(0);
+
+		_pendingEEGReads = new LinkedList<int[]>();
+		_pendingStimReads = new LinkedList<int[]>();
+
+		_phase = new int[MAX_CHANNELS];
+		_phaseIncrement = new int[MAX_CHANNELS];
+		_samples = new int[MAX_SAMPLES_PER_BEACON][MAX_CHANNELS];
+		_frame = new byte[MAX_FRAME_LENGTH];
+		_request = new byte[MAX_REQUEST_LENGTH];
+
+		setNumChannels(8);
+		setSampleRate(500);
+		samplesPerBeacon(1);
+		multipleSample(0);
+		eegCompressionType(StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION);
+	}
+
+	/*!
+	 * Sets the number of active EEG channels, from 1 to MAX_CHANNELS. The
+	 * channels are 0 to value-1.
+	 */
+	public synchronized void setNumChannels(int value){
+		if (value < 1 || value > MAX_CHANNELS)
+			throw new IllegalArgumentException("Number of channels out of range: " + value);
+		int mask = (value == MAX_CHANNELS) ? 0xFFFFFFFF : ((1 << value) - 1);
+		_setChannelMask(mask);
+		_eegReg[DennisRegisters.EEG_N_INSTRUMENT_CHANNEL] = value;
+	}
+
+	/*!
+	 * Returns the number of active EEG channels.
+	 */
+	public synchronized int getNumChannels(){
+		return Integer.bitCount(_channelMask());
+	}
+
+	/*!
+	 * Sets the EEG sample rate in samples per second, up to MAX_SAMPLE_RATE.
+	 */
+	public synchronized void setSampleRate(int value){
+		if (value < 1 || value > MAX_SAMPLE_RATE)
+			throw new IllegalArgumentException("Sample rate out of range: " + value);
+		_sampleRate = value;
+		for (int i = 0; i < MAX_CHANNELS; i++)
+		{
+			// 10Hz plus one Hz per channel, as a fraction of 2^32 per sample
+			_phaseIncrement[i] = (int) (((10L + i) << 32) / _sampleRate);
+		}
+	}
+
+	/*!
+	 * Returns the EEG sample rate in samples per second.
+	 */
+	public synchronized int getSampleRate(){
+		return _sampleRate;
+	}
+
+	/*!
+	 * Sets the number of samples per beacon in multiple sample mode.
+	 */
+	public synchronized void samplesPerBeacon(int value){
+		if (value < 1 || value > MAX_SAMPLES_PER_BEACON)
+			throw new IllegalArgumentException("Samples per beacon out of range: " + value);
+		_eegReg[DennisRegisters.EEG_REG_SAMPLES_PER_BEACON_ADDR] = value;
+	}
+
+	/*!
+	 * Sets whether the EEG block carries the number of samples, 1 or 0.
+	 */
+	public synchronized void multipleSample(int value){
+		_eegReg[DennisRegisters.EEG_MULTISAMPLE_MODE_ADDR] = value & 0x01;
+	}
+
+	/*!
+	 * Sets the compression of the samples after the first one of each beacon.
+	 */
+	public synchronized void eegCompressionType(StarStimProtocol.EEGCompressionType value){
+		_eegReg[DennisRegisters.EEG_COMPRESSION_TYPE_ADDR] = value.getNumVal();
+	}
+
+	/*!
+	 * Sets the firmware version reported, and whether it is a 1000SPS device.
+	 * From version 800 the EEG stamp is 4 bytes once the version has been
+	 * reported, and a 1000SPS device switches to multiple sample mode.
+	 */
+	public synchronized void setFirmwareVersion(int version, boolean is1000SPS){
+		_firmwareVersion = version & 0x7FFF;
+		_is1000SPS = is1000SPS;
+	}
+
+	/*!
+	 * Sets whether the length field of the frames is 2 bytes. It must not be
+	 * changed once the host has received the first frame.
+	 */
+	public synchronized void setLength2Bytes(boolean value){
+		_isLength2Bytes = value;
+	}
+
+	/*!
+	 * Sets the pace of the beacons relative to real time. 1 is real time,
+	 * 10 ten times faster and 0 as fast as the host consumes them.
+	 */
+	public synchronized void setSpeedFactor(double value){
+		_speedFactor = (value < 0) ? 0 : value;
+		_nextBeaconTime = System.nanoTime();
+	}
+
+	/*!
+	 * Sets the fraction of beacons that are lost. The stamps keep counting,
+	 * so the host sees the gap.
+	 */
+	public synchronized void setLossRate(double value){
+		_lossRate = value;
+	}
+
+	/*!
+	 * Sets the fraction of frames that get one byte corrupted.
+	 */
+	public synchronized void setCorruptionRate(double value){
+		_corruptionRate = value;
+	}
+
+	/*!
+	 * Sets the seed of the loss and corruption injection.
+	 */
+	public synchronized void setSeed(long seed){
+		_random = new Random(seed);
+	}
+
+	/*!
+	 * Sets the cell voltage reported in the battery block.
+	 */
+	public synchronized void setBatteryMillivolts(int value){
+		_batteryMillivolts = value;
+	}
+
+	/*!
+	 * Starts answering the host on the given streams.
+	 *
+	 * \param in stream with the request frames of the host
+	 *
+	 * \param out stream where the frames for the host are written
+	 */
+	public synchronized void start(InputStream in, OutputStream out){
+		if (_requestThread != null) return;
+
+		_in = in;
+		_out = out;
+		_isRunning = true;
+		_isBeaconing = false;
+		_isEEGStreaming = false;
+		_pendingAcks = 0;
+		_pendingFirmware = false;
+		_pendingBattery = false;
+		_pendingEEGReads.clear();
+		_pendingStimReads.clear();
+		_requestPosition = 0;
+
+		// The length field has to be wide enough for the longest beacon
+		if (!_isLength2Bytes && _maxFrameLength() > 0xFF)
+		{
+			logger.info("StarStimSimulator: beacons longer than 255 bytes, using 2 bytes length", Logger.LOG_FILE_ON);
+			_isLength2Bytes = true;
+		}
+
+		_requestThread = new Thread(new Runnable() {
+			public void run() {
+				_requestLoop();
+			}
+		}, "StarStim Simulator Requests");
+		_beaconThread = new Thread(new Runnable() {
+			public void run() {
+				_beaconLoop();
+			}
+		}, "StarStim Simulator Beacons");
+		_requestThread.start();
+		_beaconThread.start();
+	}
+
+	/*!
+	 * Stops the simulator and closes its streams.
+	 */
+	public void stop(){
+		Thread requestThread, beaconThread;
+		synchronized (this) {
+			if (_requestThread == null) return;
+			_isRunning = false;
+			requestThread = _requestThread;
+			beaconThread = _beaconThread;
+			_requestThread = null;
+			_beaconThread = null;
+		}
+		try {
+			_in.close();
+			_out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+		}
+		LockSupport.unpark(beaconThread);
+		try {
+			requestThread.join(1000);
+			beaconThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("StarStimSimulator stopped: " + getStatistics(), Logger.LOG_FILE_ON);
+	}
+
+	/*!
+	 * Whether the simulator is answering. It stops by itself when the host
+	 * closes the connection.
+	 */
+	public boolean isRunning(){
+		return _isRunning;
+	}
+
+	public long framesSent(){
+		return _framesSent;
+	}
+
+	public long framesDropped(){
+		return _framesDropped;
+	}
+
+	public long framesCorrupted(){
+		return _framesCorrupted;
+	}
+
+	public long bytesSent(){
+		return _bytesSent;
+	}
+
+	public long samplesSent(){
+		return _samplesSent;
+	}
+
+	/*!
+	 * Summary of the counters, for the logs.
+	 */
+	public String getStatistics(){
+		return "frames " + _framesSent + " dropped " + _framesDropped + " corrupted " + _framesCorrupted +
+				" bytes " + _bytesSent + " samples " + _samplesSent +
+				" requests " + _requestsReceived + " bad requests " + _badRequests;
+	}
+
+	// ------------------------------------------------------------------
+	// Requests
+	// ------------------------------------------------------------------
+
+	private void _requestLoop(){
+		byte[] buffer = new byte[MAX_REQUEST_LENGTH];
+		try {
+			while (_isRunning)
+			{
+				int n = _in.read(buffer, 0, buffer.length);
+				if (n < 0) break;
+				for (int i = 0; i < n; i++) _onRequestByte(buffer[i]);
+			}
+		} catch (IOException e) {
+			if (_isRunning)
+			{
+				e.printStackTrace();
+				logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+			}
+		}
+		// Host is gone, nothing else to answer
+		_isRunning = false;
+		LockSupport.unpark(_beaconThread);
+	}
+
+	/*!
+	 * Reassembles the request frames: SOF, length, cmd #0, cmd #1, payload
+	 * and EOF. The length counts the whole frame.
+	 */
+	private void _onRequestByte(byte b){
+		if (_requestPosition < 3)
+		{
+			// Looking for the SOF
+			if (b == "SOF".charAt(_requestPosition))
+			{
+				_request[_requestPosition++] = b;
+			}
+			else
+			{
+				_requestPosition = (b == 'S') ? 1 : 0;
+				_request[0] = b;
+			}
+			return;
+		}
+		if (_requestPosition == 3)
+		{
+			_requestLength = b & 0xFF;
+			if (_requestLength < 9)
+			{
+				_badRequests++;
+				_requestPosition = 0;
+				return;
+			}
+		}
+		_request[_requestPosition++] = b;
+		if (_requestPosition < _requestLength) return;
+
+		_requestPosition = 0;
+		if (_request[_requestLength - 3] != 'E' || _request[_requestLength - 2] != 'O' ||
+				_request[_requestLength - 1] != 'F')
+		{
+			_badRequests++;
+			return;
+		}
+		_requestsReceived++;
+		_handleRequest(_request, _requestLength);
+	}
+
+	private synchronized void _handleRequest(byte[] request, int length){
+		int cmd0 = request[4] & 0xFF;
+		int cmd1 = request[5] & 0xFF;
+
+		if (length == 9 && cmd0 == 0x7F && cmd1 == 0x7F)
+		{
+			// Start beacon: a new host, stamps back to 1 byte until the
+			// firmware version is reported again
+			_isBeaconing = true;
+			_isFirmwareReported = false;
+			_nextBeaconTime = System.nanoTime();
+		}
+		else if (length == 9 && cmd0 == 0x00 && cmd1 == 0x00)
+		{
+			_isBeaconing = false;
+			_isEEGStreaming = false;
+		}
+		else if (cmd0 == 0x00 && cmd1 == 0x00)
+		{
+			// Rename radio, the name is not kept
+		}
+		else
+		{
+			int pos = 6;
+			if ((cmd0 & 0x01) != 0) _isEEGStreaming = true;
+			if ((cmd0 & 0x02) != 0) _isEEGStreaming = false;
+			if ((cmd0 & 0x04) != 0) _isStimulating = true;
+			if ((cmd0 & 0x08) != 0) _isStimulating = false;
+			if ((cmd0 & 0x10) != 0) _isImpedanceRunning = true;
+			if ((cmd0 & 0x20) != 0) _isImpedanceRunning = false;
+			if ((cmd0 & 0x40) != 0) _pendingBattery = true;
+
+			if ((cmd1 & 0x05) != 0) // EEG config write or read
+				pos = _handleConfig(request, pos, _eegReg, (cmd1 & 0x01) != 0, _pendingEEGReads);
+			if ((cmd1 & 0x0A) != 0) // Stim config write or read
+				pos = _handleConfig(request, pos, _stimReg, (cmd1 & 0x02) != 0, _pendingStimReads);
+			if ((cmd1 & 0x10) != 0)
+				_pendingFirmware = true;
+			if ((cmd1 & 0x60) != 0) // Accelerometer config, the reply has no block
+				pos = _handleConfig(request, pos, _accReg, (cmd1 & 0x40) != 0, null);
+			// cmd1 bit 7 (real-time stimulation or SD card) is only acknowledged
+		}
+
+		_pendingAcks++;
+		LockSupport.unpark(_beaconThread);
+	}
+
+	/*!
+	 * Applies a register write or queues the reply of a register read.
+	 *
+	 * \return Position of the next field of the request.
+	 */
+	private int _handleConfig(byte[] request, int pos, int[] registers, boolean isWrite, LinkedList<int[]> reads){
+		int address = request[pos++] & 0xFF;
+		int numRegs = request[pos++] & 0xFF;
+		if (address + numRegs > registers.length)
+		{
+			_badRequests++;
+			return pos;
+		}
+		if (isWrite)
+		{
+			for (int i = 0; i < numRegs; i++) registers[address + i] = request[pos++] & 0xFF;
+			if (registers == _eegReg) _onEEGRegistersWritten(address, numRegs);
+		}
+		else if (reads != null)
+		{
+			reads.add(new int[] { address, numRegs });
+		}
+		return pos;
+	}
+
+	private void _onEEGRegistersWritten(int address, int numRegs){
+		int end = address + numRegs;
+		if (address <= DennisRegisters.EEG_STREAMING_RATE_ADDR && end > DennisRegisters.EEG_STREAMING_RATE_ADDR)
+		{
+			switch (_eegReg[DennisRegisters.EEG_STREAMING_RATE_ADDR])
+			{
+			case 1: setSampleRate(500); break;
+			case 2: setSampleRate(250); break;
+			case 4: setSampleRate(125); break;
+			case 8: setSampleRate(75); break;
+			default: break;
+			}
+		}
+		if (_samplesPerBeacon() < 1 || _samplesPerBeacon() > MAX_SAMPLES_PER_BEACON)
+			_eegReg[DennisRegisters.EEG_REG_SAMPLES_PER_BEACON_ADDR] = 1;
+		if (_channelMask() == 0)
+			setNumChannels(1);
+	}
+
+	// ------------------------------------------------------------------
+	// Beacons
+	// ------------------------------------------------------------------
+
+	private void _beaconLoop(){
+		try {
+			while (_isRunning)
+			{
+				int length = 0;
+				boolean isBeacon = false;
+				long waitTime = 0;
+				synchronized (this)
+				{
+					boolean hasReplies = _pendingAcks > 0 || _pendingFirmware || _pendingBattery ||
+							!_pendingEEGReads.isEmpty() || !_pendingStimReads.isEmpty();
+					if (_isBeaconing)
+					{
+						waitTime = (_speedFactor == 0) ? 0 : _nextBeaconTime - System.nanoTime();
+						if (waitTime <= 0)
+						{
+							isBeacon = true;
+							_nextBeaconTime += _beaconPeriod();
+							length = _buildFrame(_isEEGStreaming);
+						}
+					}
+					else if (hasReplies)
+					{
+						length = _buildFrame(false);
+					}
+					else
+					{
+						waitTime = 100000000L;
+					}
+				}
+
+				if (length > 0)
+				{
+					_send(length, isBeacon);
+				}
+				else if (waitTime > 0)
+				{
+					LockSupport.parkNanos(waitTime);
+				}
+			}
+		} catch (IOException e) {
+			if (_isRunning)
+			{
+				e.printStackTrace();
+				logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+			}
+		}
+		_isRunning = false;
+	}
+
+	private void _send(int length, boolean isBeacon) throws IOException {
+		if (isBeacon && _lossRate > 0 && _random.nextDouble() < _lossRate)
+		{
+			_framesDropped++;
+			return;
+		}
+		if (_corruptionRate > 0 && _random.nextDouble() < _corruptionRate)
+		{
+			_frame[_random.nextInt(length)] ^= (byte) (1 << _random.nextInt(8));
+			_framesCorrupted++;
+		}
+		_out.write(_frame, 0, length);
+		_out.flush();
+		_framesSent++;
+		_bytesSent += length;
+	}
+
+	/*!
+	 * Nanoseconds between two beacons at the current pace.
+	 */
+	private long _beaconPeriod(){
+		if (_speedFactor == 0) return 0;
+		double rate = _isEEGStreaming ? ((double) _sampleRate / _samplesInBeacon()) : IDLE_BEACON_RATE;
+		return (long) (1000000000.0 / (rate * _speedFactor));
+	}
+
+	/*!
+	 * Builds the next frame in _frame with the EEG samples, if requested,
+	 * and the pending replies.
+	 *
+	 * \return Length of the frame.
+	 */
+	private int _buildFrame(boolean withEEG){
+		int[] eegRead = _pendingEEGReads.poll();
+		int[] stimRead = _pendingStimReads.poll();
+		boolean withBattery = _pendingBattery;
+		boolean withFirmware = _pendingFirmware;
+		boolean withAccelerometer = _isBeaconing && (_accReg[0] & 0x01) != 0;
+		_pendingBattery = false;
+		_pendingFirmware = false;
+
+		if (_pendingAcks > 0)
+		{
+			_pendingAcks--;
+			_commandToggle ^= 0x80;
+		}
+
+		int deviceStatus = (_isEEGStreaming ? DeviceManager.StatusByteBits.EEG_BIT.getVal() : 0) |
+				(_isStimulating ? DeviceManager.StatusByteBits.STM_BIT.getVal() : 0) |
+				(_isImpedanceRunning ? DeviceManager.StatusByteBits.IMP_BIT.getVal() : 0);
+
+		_framePosition = 0;
+		_put('S');
+		_put('O');
+		_put('F');
+		_put(0);
+		if (_isLength2Bytes) _put(0);
+		_put(_commandToggle | (deviceStatus << 3));
+		_put(((eegRead != null) ? 0x01 : 0) | (withEEG ? 0x02 : 0) | ((stimRead != null) ? 0x04 : 0) |
+				(withAccelerometer ? 0x20 : 0) | (withBattery ? 0x40 : 0) | (withFirmware ? 0x80 : 0));
+
+		if (withEEG) _putEEGData();
+		if (eegRead != null) _putConfig(eegRead, _eegReg);
+		if (stimRead != null) _putConfig(stimRead, _stimReg);
+		if (withBattery)
+		{
+			// vCell = ((b0 << 8) + b3) >> 4 in 1.25mV units
+			int raw = (int) (_batteryMillivolts / 1.25) << 4;
+			_put(raw >> 8);
+			_put(0);
+			_put(0);
+			_put(raw);
+		}
+		if (withAccelerometer)
+		{
+			_put16(0);
+			_put16(0);
+			_put16(256); // 1g on Z
+		}
+		if (withFirmware)
+			_put16(_firmwareVersion | (_is1000SPS ? 0x8000 : 0));
+
+		_put('E');
+		_put('O');
+		_put('F');
+		_put('\n');
+
+		if (_isLength2Bytes)
+		{
+			_frame[3] = (byte) (_framePosition >> 8);
+			_frame[4] = (byte) _framePosition;
+		}
+		else
+		{
+			_frame[3] = (byte) _framePosition;
+		}
+
+		// The host applies the firmware version once this frame is parsed
+		if (withFirmware)
+		{
+			_isFirmwareReported = true;
+			if (_is1000SPS) _eegReg[DennisRegisters.EEG_MULTISAMPLE_MODE_ADDR] = 1;
+		}
+		return _framePosition;
+	}
+
+	/*!
+	 * EEG data block: number of samples (multiple sample mode only), channel
+	 * info, the first sample in 24 bits and the rest raw or compressed as the
+	 * difference with the first one, and the stamp.
+	 */
+	private void _putEEGData(){
+		int mask = _channelMask();
+		int nSamples = _samplesInBeacon();
+		int compression = _eegReg[DennisRegisters.EEG_COMPRESSION_TYPE_ADDR];
+
+		if (_multipleSample() == 1) _put(nSamples);
+		_put32(~mask);
+
+		for (int j = 0; j < nSamples; j++)
+		{
+			int[] sample = _samples[j];
+			for (int ch = 0; ch < MAX_CHANNELS; ch++)
+			{
+				_phase[ch] += _phaseIncrement[ch];
+				sample[ch] = _sineTable[_phase[ch] >>> (32 - SINE_TABLE_BITS)] + (ch << 8);
+			}
+
+			if (j == 0 || compression == StarStimProtocol.EEGCompressionType.EEG_NO_COMPRESSION.getNumVal())
+			{
+				for (int ch = _nextChannel(mask, 0); ch < MAX_CHANNELS; ch = _nextChannel(mask, ch + 1))
+					_put24(sample[ch]);
+			}
+			else if (compression == StarStimProtocol.EEGCompressionType.EEG_16BIT_COMPRESSION.getNumVal())
+			{
+				for (int ch = _nextChannel(mask, 0); ch < MAX_CHANNELS; ch = _nextChannel(mask, ch + 1))
+					_put16(_clamp(sample[ch] - _samples[0][ch], 0x7FFF));
+			}
+			else
+			{
+				// Pairs of 12 bits. As in the parser, the second value of a
+				// pair is the next physical channel whether it is active or not
+				for (int ch = _nextChannel(mask, 0); ch < MAX_CHANNELS; ch = _nextChannel(mask, ch + 2))
+				{
+					int a = _clamp(sample[ch] - _samples[0][ch], 0x7FF) & 0xFFF;
+					int b = (ch + 1 < MAX_CHANNELS) ? (_clamp(sample[ch + 1] - _samples[0][ch + 1], 0x7FF) & 0xFFF) : 0;
+					_put(a >> 4);
+					_put(((a & 0x0F) << 4) | (b >> 8));
+					_put(b);
+				}
+			}
+		}
+		_samplesSent += nSamples;
+
+		_beaconStamp = (_beaconStamp + 1) & 0xFF;
+		_sampleStamp += nSamples;
+		if (_isFirmwareReported && _firmwareVersion >= 800)
+			_put32(_sampleStamp);
+		else
+			_put(_beaconStamp);
+	}
+
+	/*!
+	 * Config block: start address, number of registers and their values.
+	 */
+	private void _putConfig(int[] read, int[] registers){
+		_put(read[0]);
+		_put(read[1]);
+		for (int i = 0; i < read[1]; i++) _put(registers[read[0] + i]);
+	}
+
+	/*!
+	 * Longest beacon the current configuration can produce.
+	 */
+	private int _maxFrameLength(){
+		int channels = Integer.bitCount(_channelMask());
+		int eeg = 1 + 4 + _samplesPerBeacon() * channels * 3 + 4;
+		// SOF, length, status, config reply, battery, accelerometer, firmware, EOF
+		return 3 + 2 + 2 + eeg + (2 + DeviceManager.EEG_NUM_REGS) + 4 + 6 + 2 + 4;
+	}
+
+	private int _samplesInBeacon(){
+		return (_multipleSample() == 1) ? _samplesPerBeacon() : 1;
+	}
+
+	private int _samplesPerBeacon(){
+		return _eegReg[DennisRegisters.EEG_REG_SAMPLES_PER_BEACON_ADDR];
+	}
+
+	private int _multipleSample(){
+		return _eegReg[DennisRegisters.EEG_MULTISAMPLE_MODE_ADDR];
+	}
+
+	/*!
+	 * Active channels, bit n set for channel n. The register holds the
+	 * device format where '0' means active.
+	 */
+	private int _channelMask(){
+		int chInfo = 0;
+		for (int i = 0; i < 4; i++)
+			chInfo |= (_eegReg[DennisRegisters.EEG_CH_INFO_ADDR + i] & 0xFF) << (8 * i);
+		return ~chInfo;
+	}
+
+	private void _setChannelMask(int mask){
+		for (int i = 0; i < 4; i++)
+			_eegReg[DennisRegisters.EEG_CH_INFO_ADDR + i] = (~mask >> (8 * i)) & 0xFF;
+	}
+
+	private static int _nextChannel(int mask, int channel){
+		while (channel < MAX_CHANNELS && (mask & (1 << channel)) == 0) channel++;
+		return channel;
+	}
+
+	private static int _clamp(int value, int limit){
+		if (value > limit) return limit;
+		if (value < -limit - 1) return -limit - 1;
+		return value;
+	}
+
+	private void _put(int value){
+		_frame[_framePosition++] = (byte) value;
+	}
+
+	private void _put16(int value){
+		_frame[_framePosition++] = (byte) (value >> 8);
+		_frame[_framePosition++] = (byte) value;
+	}
+
+	private void _put24(int value){
+		_frame[_framePosition++] = (byte) (value >> 16);
+		_frame[_framePosition++] = (byte) (value >> 8);
+		_frame[_framePosition++] = (byte) value;
+	}
+
+	private void _put32(int value){
+		_frame[_framePosition++] = (byte) (value >> 24);
+		_frame[_framePosition++] = (byte) (value >> 16);
+		_frame[_framePosition++] = (byte) (value >> 8);
+		_frame[_framePosition++] = (byte) value;
+	}
+
+	/**
+	 * Serves a simulated device over TCP, for TCPTransport ("tcp://host:port").
+	 *
+	 * Usage: StarStimSimulator port [channels [sampleRate [samplesPerBeacon
+	 * [speedFactor [lossRate [corruptionRate]]]]]]
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException {
+		Logger.useAndroidLog = false;
+		Logger.getInstance(new ILoggerOutput() {
+			public void setVisualLog(String msg) {
+			}
+			public void setFileLog(String msg) {
+				System.out.print(msg);
+			}
+		});
+		Logger logger = Logger.getInstance();
+
+		if (args.length < 1)
+		{
+			System.out.println("Usage: StarStimSimulator port [channels [sampleRate [samplesPerBeacon " +
+					"[speedFactor [lossRate [corruptionRate]]]]]]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+
+		ServerSocket server = new ServerSocket(port);
+		logger.info("StarStimSimulator listening on port " + port, Logger.LOG_FILE_ON);
+		while (true)
+		{
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			logger.info("StarStimSimulator host connected " + socket.getRemoteSocketAddress(), Logger.LOG_FILE_ON);
+
+			StarStimSimulator simulator = new StarStimSimulator();
+			if (args.length > 1) simulator.setNumChannels(Integer.parseInt(args[1]));
+			if (args.length > 2) simulator.setSampleRate(Integer.parseInt(args[2]));
+			if (args.length > 3)
+			{
+				int samplesPerBeacon = Integer.parseInt(args[3]);
+				simulator.samplesPerBeacon(samplesPerBeacon);
+				simulator.multipleSample(samplesPerBeacon > 1 ? 1 : 0);
+			}
+			if (args.length > 4) simulator.setSpeedFactor(Double.parseDouble(args[4]));
+			if (args.length > 5) simulator.setLossRate(Double.parseDouble(args[5]));
+			if (args.length > 6) simulator.setCorruptionRate(Double.parseDouble(args[6]));
+
+			// One host at a time, as a Bluetooth device would
+			simulator.start(socket.getInputStream(), socket.getOutputStream());
+			while (simulator.isRunning())
+			{
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			simulator.stop();
+			socket.close();
+		}
+	}
+}
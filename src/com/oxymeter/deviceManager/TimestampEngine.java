@@ -0,0 +1,279 @@
+package com.icognos.deviceManager;
+
+/*!
+ * Gives the EEG samples their timestamps from the sample rate of the stream.
+ *
+ * The position of the stream is kept in milliseconds since the first sample
+ * as a fixed point number with FRACTION_BITS fractional bits, so the sample
+ * periods that are not a whole number of milliseconds, like the 13.3 ms of
+ * 75 SPS, do not accumulate rounding errors however long the session is.
+ *
+ * The position is anchored to the monotonic host clock when the stream
+ * starts. The clock of the device drifts from the host one, so once per
+ * frame the position is compared with the host time elapsed. The lowest
+ * difference of each window of WINDOW_NANOS, the one of the frame that
+ * arrived with the least delay, estimates the drift: the sample period is
+ * corrected, up to MAX_CORRECTION, to follow its trend and to take back
+ * the difference accumulated. The timestamps never go backwards.
+ *
+ * It is only used from the polling thread.
+ */
+public class TimestampEngine {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property TimestampEngine::FRACTION_BITS
+	 *
+	 * Fractional bits of the positions and periods, in milliseconds.
+	 */
+	public static final int FRACTION_BITS = 32;
+
+	public static final double DEFAULT_SAMPLE_RATE = 500.0;
+
+	/*!
+	 * \property TimestampEngine::MAX_CORRECTION
+	 *
+	 * Largest relative correction of the sample period, far above the drift
+	 * of a crystal, so a stalled host does not bend the timestamps.
+	 */
+	public static final double MAX_CORRECTION = 0.001;
+
+	/*!
+	 * \property TimestampEngine::WINDOW_NANOS
+	 *
+	 * Host time between two estimations of the drift.
+	 */
+	private static final long WINDOW_NANOS = 10000000000L;
+
+	/*!
+	 * \property TimestampEngine::PHASE_WINDOWS
+	 *
+	 * Windows the difference accumulated with the host clock is taken back
+	 * over.
+	 */
+	private static final int PHASE_WINDOWS = 6;
+
+	/*!
+	 * \property TimestampEngine::FREQUENCY_GAIN
+	 *
+	 * Part of the drift measured in a window that is applied, which smooths
+	 * the jitter of the link out of the estimation.
+	 */
+	private static final double FREQUENCY_GAIN = 0.25;
+
+	private static final double ONE = (double) (1L << FRACTION_BITS);
+
+	private double _sampleRate;
+
+	/*!
+	 * \property TimestampEngine::_nominalPeriod
+	 *
+	 * Milliseconds between two samples at the sample rate, fixed point.
+	 */
+	private long _nominalPeriod;
+
+	/*!
+	 * \property TimestampEngine::_period
+	 *
+	 * Milliseconds between two samples once corrected, fixed point.
+	 */
+	private long _period;
+
+	/*!
+	 * \property TimestampEngine::_origin
+	 *
+	 * Time of position 0, in milliseconds since the epoch, and the host
+	 * monotonic clock at that moment.
+	 */
+	private long _origin;
+	private long _originNanos;
+
+	/*!
+	 * \property TimestampEngine::_position
+	 *
+	 * Milliseconds since the origin of the last sample, fixed point.
+	 */
+	private long _position;
+	private long _samples;
+
+	private long _windowStart;
+	private double _windowMinimum;
+	private boolean _hasReference;
+
+	/*!
+	 * \property TimestampEngine::_reference
+	 *
+	 * Lowest difference between the host time and the position in the first
+	 * window, the latency of the link the following ones are compared with.
+	 */
+	private double _reference;
+	private double _error;
+	private boolean _hasError;
+	private double _frequencyCorrection;
+	private double _phaseCorrection;
+	private int _windows;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The stream starts now at DEFAULT_SAMPLE_RATE.
+	 */
+	public TimestampEngine(){
+		reset(DEFAULT_SAMPLE_RATE, System.currentTimeMillis());
+	}
+
+	/*!
+	 * Starts a stream.
+	 *
+	 * \param sampleRate Samples per second.
+	 *
+	 * \param origin Time before the first sample, in milliseconds since the
+	 * epoch.
+	 */
+	public void reset(double sampleRate, long origin){
+		_origin = origin;
+		_originNanos = System.nanoTime() - (System.currentTimeMillis() - origin) * 1000000L;
+		_position = 0;
+		_samples = 0;
+		_windowStart = System.nanoTime();
+		_windowMinimum = Double.MAX_VALUE;
+		_hasReference = false;
+		_hasError = false;
+		_error = 0;
+		_frequencyCorrection = 0;
+		_phaseCorrection = 0;
+		_windows = 0;
+		setSampleRate(sampleRate);
+	}
+
+	/*!
+	 * Changes the sample rate from the next sample on. The correction of the
+	 * drift is kept.
+	 */
+	public void setSampleRate(double sampleRate){
+		if (sampleRate <= 0) sampleRate = DEFAULT_SAMPLE_RATE;
+		_sampleRate = sampleRate;
+		_nominalPeriod = Math.round(1000.0 / sampleRate * ONE);
+		_updatePeriod();
+	}
+
+	/*!
+	 * Moves the position past the given number of samples.
+	 */
+	public void advance(int samples){
+		if (samples <= 0) return;
+		_position += _period * samples;
+		_samples += samples;
+	}
+
+	/*!
+	 * Compares the position with the host clock, once per frame received,
+	 * and corrects the sample period at the end of each window.
+	 *
+	 * \param nanoTime Host monotonic clock when the frame was received.
+	 */
+	public void frameReceived(long nanoTime){
+		double difference = (nanoTime - _originNanos) / 1000000.0 - _position / ONE;
+		if (difference < _windowMinimum) _windowMinimum = difference;
+		long elapsed = nanoTime - _windowStart;
+		if (elapsed < WINDOW_NANOS) return;
+
+		_windows++;
+		if (!_hasReference)
+		{
+			_reference = _windowMinimum;
+			_hasReference = true;
+		}
+		else
+		{
+			double window = elapsed / 1000000.0;
+			double error = _windowMinimum - _reference;
+			if (_hasError)
+			{
+				// What is left of the drift once corrected
+				double drift = (error - _error) / window + _phaseCorrection;
+				_frequencyCorrection = _clamp(_frequencyCorrection + FREQUENCY_GAIN * drift);
+			}
+			_error = error;
+			_hasError = true;
+			_phaseCorrection = error / (PHASE_WINDOWS * window);
+			_updatePeriod();
+		}
+		_windowStart = nanoTime;
+		_windowMinimum = Double.MAX_VALUE;
+	}
+
+	/*!
+	 * Time of position 0, in milliseconds since the epoch.
+	 */
+	public long origin(){
+		return _origin;
+	}
+
+	/*!
+	 * Milliseconds since the origin of the last sample, fixed point with
+	 * FRACTION_BITS fractional bits.
+	 */
+	public long position(){
+		return _position;
+	}
+
+	/*!
+	 * Milliseconds between two samples, fixed point with FRACTION_BITS
+	 * fractional bits.
+	 */
+	public long period(){
+		return _period;
+	}
+
+	/*!
+	 * Timestamp of the last sample, in milliseconds since the epoch.
+	 */
+	public long timestamp(){
+		return timestamp(_origin, _position);
+	}
+
+	/*!
+	 * Timestamp in milliseconds since the epoch of a fixed point position.
+	 */
+	public static long timestamp(long origin, long position){
+		return origin + (position >> FRACTION_BITS);
+	}
+
+	public double sampleRate(){
+		return _sampleRate;
+	}
+
+	/*!
+	 * Relative correction of the sample period, positive when the device is
+	 * slower than its sample rate.
+	 */
+	public double correction(){
+		return (double) (_period - _nominalPeriod) / _nominalPeriod;
+	}
+
+	/*!
+	 * Milliseconds the samples are behind the host clock, beyond the latency
+	 * of the first window, at the end of the last window.
+	 */
+	public double error(){
+		return _error;
+	}
+
+	public String getStatistics(){
+		return "rate " + _sampleRate + " samples " + _samples + " windows " + _windows +
+				" error " + Math.round(_error * 1000) / 1000.0 + " ms correction " + Math.round(correction() * 1e6) + " ppm";
+	}
+
+	private void _updatePeriod(){
+		double correction = _clamp(_frequencyCorrection + _phaseCorrection);
+		_period = _nominalPeriod + Math.round(_nominalPeriod * correction);
+	}
+
+	private static double _clamp(double correction){
+		return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+	}
+}
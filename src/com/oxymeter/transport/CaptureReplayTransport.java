@@ -0,0 +1,209 @@
+package com.icognos.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*!
+ * Transport that replays a capture made by CaptureWriter. The address is the
+ * prefix of the capture segments. Request frames written by the host are
+ * accepted and discarded.
+ *
+ * Each read returns the bytes of, at most, one captured chunk, so the device
+ * manager sees the stream split as it was received. By default the capture is
+ * replayed as fast as the consumer reads it; in real time mode each chunk is
+ * delivered at the time it was received, relative to the first one.
+ */
+public class CaptureReplayTransport extends StreamTransport {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property CaptureReplayTransport::MAX_INDEX
+	 *
+	 * Segments looked for the first one of a capture, whose oldest segments
+	 * may have been deleted.
+	 */
+	private static final int MAX_INDEX = 10000;
+
+	private String _prefix;
+
+	/*!
+	 * \property CaptureReplayTransport::_isRealTime
+	 *
+	 * Whether the chunks are delivered at the time they were received.
+	 */
+	private boolean _isRealTime;
+
+	/*!
+	 * \property CaptureReplayTransport::_segment
+	 *
+	 * Segment being replayed, null when the capture is over.
+	 */
+	private MappedByteBuffer _segment;
+	private int _segmentIndex;
+
+	/*!
+	 * \property CaptureReplayTransport::_chunkRemaining
+	 *
+	 * Bytes of the current chunk not returned yet.
+	 */
+	private int _chunkRemaining;
+
+	/*!
+	 * \property CaptureReplayTransport::_firstTimestamp
+	 *
+	 * Timestamp of the first chunk, and System.nanoTime when it was replayed.
+	 */
+	private long _firstTimestamp;
+	private long _startTime;
+	private boolean _isStarted;
+
+	private long _replayedBytes;
+	private long _replayedChunks;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The capture is replayed unpaced.
+	 */
+	public CaptureReplayTransport(){
+		_isRealTime = false;
+	}
+
+	/*!
+	 * Sets whether the chunks are delivered at the time they were received.
+	 */
+	public void setRealTime(boolean value){
+		_isRealTime = value;
+	}
+
+	public long getReplayedBytes(){
+		return _replayedBytes;
+	}
+
+	public long getReplayedChunks(){
+		return _replayedChunks;
+	}
+
+	@Override
+	public boolean isReplay(){
+		return true;
+	}
+
+	@Override
+	protected int _connect(String address) throws IOException {
+		_prefix = address;
+		_segmentIndex = 0;
+		while (_segmentIndex < MAX_INDEX && !new File(CaptureWriter.segmentPath(_prefix, _segmentIndex)).exists()) _segmentIndex++;
+		_segment = _openSegment(_segmentIndex);
+		if (_segment == null) return 0;
+
+		_outStream = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		_chunkRemaining = 0;
+		_isStarted = false;
+		_replayedBytes = 0;
+		_replayedChunks = 0;
+		return 1;
+	}
+
+	@Override
+	protected void _disconnect() throws IOException {
+		_segment = null;
+		super._disconnect();
+	}
+
+	@Override
+	public int readRFCOMM( int handle, byte[] buffer, int offset, int numberBytes, int timeout) throws IOException{
+		if (!_isConnected) return 0;
+
+		while (_chunkRemaining == 0)
+		{
+			if (_segment == null) return -1;
+			if (_segment.remaining() < CaptureWriter.RECORD_HEADER_LENGTH || !_nextChunk())
+			{
+				// End of the segment: continue with the next one, if any
+				_segment = _openSegment(++_segmentIndex);
+			}
+		}
+
+		int bytes = Math.min(numberBytes, _chunkRemaining);
+		_segment.get(buffer, offset, bytes);
+		_chunkRemaining -= bytes;
+		_replayedBytes += bytes;
+		return bytes;
+	}
+
+	/*!
+	 * Reads the header of the next chunk and, in real time mode, waits until
+	 * it is due.
+	 *
+	 * \return false at the end of the segment.
+	 */
+	private boolean _nextChunk(){
+		long timestamp = _segment.getLong();
+		int length = _segment.getInt();
+		if (length <= 0 || length > _segment.remaining()) return false;
+
+		_chunkRemaining = length;
+		_replayedChunks++;
+		if (!_isStarted)
+		{
+			_firstTimestamp = timestamp;
+			_startTime = System.nanoTime();
+			_isStarted = true;
+		}
+		else if (_isRealTime)
+		{
+			long waitTime = _startTime + (timestamp - _firstTimestamp) - System.nanoTime();
+			if (waitTime > 0)
+			{
+				try {
+					Thread.sleep(waitTime / 1000000L, (int) (waitTime % 1000000L));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return true;
+	}
+
+	/*!
+	 * Maps a segment and checks its header.
+	 *
+	 * \return the segment positioned at its first chunk, or null if it does
+	 * not exist.
+	 */
+	private MappedByteBuffer _openSegment(int index) throws IOException {
+		File path = new File(CaptureWriter.segmentPath(_prefix, index));
+		if (!path.exists()) return null;
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		MappedByteBuffer segment;
+		try {
+			segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+		segment.order(ByteOrder.BIG_ENDIAN);
+		if (segment.capacity() < CaptureWriter.HEADER_LENGTH || segment.getInt(0) != CaptureWriter.MAGIC)
+			throw new IOException(path + " is not a capture segment");
+		if (segment.getInt(4) != CaptureWriter.VERSION)
+			throw new IOException(path + " has an unknown capture version " + segment.getInt(4));
+		segment.position(segment.getInt(12));
+		return segment;
+	}
+}
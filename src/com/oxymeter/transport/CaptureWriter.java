@@ -0,0 +1,308 @@
+package com.icognos.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.icognos.util.Logger;
+
+/*!
+ * Records the raw byte stream received from a device, with the time each
+ * chunk was received, into memory-mapped segment files.
+ *
+ * Each segment is a file of a fixed length, preallocated and mapped when it
+ * is created, named after a prefix and its index: prefix-0000.cap,
+ * prefix-0001.cap... A segment starts with a header:
+ *
+ *  - int    MAGIC
+ *  - int    VERSION
+ *  - int    index of the segment
+ *  - int    HEADER_LENGTH
+ *  - long   System.currentTimeMillis when the capture started
+ *  - long   System.nanoTime when the capture started
+ *
+ * followed by one record per chunk: the System.nanoTime when it was received
+ * (long), its length (int) and its bytes. A record with length 0 ends the
+ * segment. All the fields are big endian.
+ *
+ * Appending a chunk is a single copy into the mapped segment. When a chunk
+ * does not fit in the current segment the writer moves to the next one,
+ * which is created and mapped in advance by a background thread. The same
+ * thread flushes the full segment to the storage, so the reader does not
+ * wait for it. Only the last maxSegments segment files are kept.
+ *
+ * CaptureReplayTransport replays the captures, so they can be fed to
+ * DeviceManager through a "capture://prefix" address.
+ */
+public class CaptureWriter {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property CaptureWriter::MAGIC
+	 *
+	 * First bytes of a segment, "NCAP".
+	 */
+	public static final int MAGIC = 0x4E434150;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_LENGTH = 32;
+
+	/*!
+	 * \property CaptureWriter::RECORD_HEADER_LENGTH
+	 *
+	 * Timestamp and length of a record.
+	 */
+	public static final int RECORD_HEADER_LENGTH = 12;
+
+	/*!
+	 * \property CaptureWriter::DEFAULT_SEGMENT_LENGTH
+	 *
+	 * About five minutes of a 32 channel stream at 500 SPS.
+	 */
+	public static final int DEFAULT_SEGMENT_LENGTH = 16 << 20;
+
+	public static final int MIN_SEGMENT_LENGTH = 1 << 16;
+
+	public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+	private String _prefix;
+	private int _segmentLength;
+	private int _maxSegments;
+	private long _startMillis;
+	private long _startNanos;
+
+	/*!
+	 * \property CaptureWriter::_segment
+	 *
+	 * Segment being written, null once closed.
+	 */
+	private MappedByteBuffer _segment;
+	private int _segmentIndex;
+
+	/*!
+	 * \property CaptureWriter::_nextSegment
+	 *
+	 * Segment prepared by _preparer for when the current one is full.
+	 */
+	private MappedByteBuffer _nextSegment;
+	private Thread _preparer;
+
+	private long _capturedBytes;
+	private long _capturedChunks;
+	private IOException _lastError;
+
+	private Logger logger = Logger.getInstance();
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. It creates the first segment.
+	 *
+	 * \param prefix Path of the segments, without the index and extension.
+	 *
+	 * \param segmentLength Length of each segment file, in bytes.
+	 *
+	 * \param maxSegments Segment files kept, counting the one prepared in
+	 * advance. The older ones are deleted.
+	 */
+	public CaptureWriter(String prefix, int segmentLength, int maxSegments) throws IOException {
+		_prefix = prefix;
+		_segmentLength = Math.max(segmentLength, MIN_SEGMENT_LENGTH);
+		_maxSegments = Math.max(maxSegments, 2);
+		_startMillis = System.currentTimeMillis();
+		_startNanos = System.nanoTime();
+		_segmentIndex = 0;
+		_segment = _createSegment(0);
+		_prepareNextSegment(null);
+	}
+
+	public CaptureWriter(String prefix) throws IOException {
+		this(prefix, DEFAULT_SEGMENT_LENGTH, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/*!
+	 * Path of a segment.
+	 */
+	public static String segmentPath(String prefix, int index){
+		return prefix + "-" + String.format("%04d", index) + ".cap";
+	}
+
+	/*!
+	 * Appends a chunk received now.
+	 */
+	public void append(byte[] buffer, int offset, int length){
+		append(System.nanoTime(), buffer, offset, length);
+	}
+
+	/*!
+	 * Appends a chunk. Chunks longer than a segment are split.
+	 *
+	 * \param timestamp System.nanoTime when the chunk was received.
+	 */
+	public synchronized void append(long timestamp, byte[] buffer, int offset, int length){
+		while (length > 0 && _segment != null)
+		{
+			MappedByteBuffer segment = _segment;
+			// Room for this record and the end mark
+			int room = segment.capacity() - segment.position() - 2 * RECORD_HEADER_LENGTH;
+			if (room <= 0)
+			{
+				_nextSegment();
+				continue;
+			}
+			int n = Math.min(length, room);
+			int position = segment.position();
+			segment.position(position + RECORD_HEADER_LENGTH);
+			segment.put(buffer, offset, n);
+			// The length last: a reader never sees a record half written
+			segment.putLong(position, timestamp);
+			segment.putInt(position + 8, n);
+			offset += n;
+			length -= n;
+			_capturedBytes += n;
+		}
+		_capturedChunks++;
+	}
+
+	/*!
+	 * Ends the capture. The segments are flushed to the storage.
+	 */
+	public void close(){
+		Thread preparer;
+		synchronized (this) {
+			if (_segment == null) return;
+			_segment.force();
+			_segment = null;
+			preparer = _preparer;
+		}
+		if (preparer != null)
+		{
+			try {
+				preparer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			// The prepared segment was not used
+			_nextSegment = null;
+			new File(segmentPath(_prefix, _segmentIndex + 1)).delete();
+		}
+		logger.info("CaptureWriter closed " + getStatistics(), Logger.LOG_FILE_ON);
+	}
+
+	public synchronized boolean isOpen(){
+		return _segment != null;
+	}
+
+	public synchronized long getCapturedBytes(){
+		return _capturedBytes;
+	}
+
+	public synchronized long getCapturedChunks(){
+		return _capturedChunks;
+	}
+
+	/*!
+	 * Error of the last segment that could not be created, null if none.
+	 * The capture stops when it happens.
+	 */
+	public synchronized IOException getLastError(){
+		return _lastError;
+	}
+
+	public synchronized String getStatistics(){
+		return _prefix + " segment " + _segmentIndex + ", " + _capturedChunks + " chunks, " + _capturedBytes + " bytes"
+				+ ((_lastError != null) ? ", error " + _lastError.getMessage() : "");
+	}
+
+	/*!
+	 * Moves to the next segment. Called with the lock held.
+	 */
+	private void _nextSegment(){
+		// Waits only if the segment filled before the next one was ready
+		while (_preparer != null)
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		MappedByteBuffer full = _segment;
+		_segment = _nextSegment;
+		_nextSegment = null;
+		if (_segment == null)
+		{
+			// No segment to go on: the full one is flushed here
+			full.force();
+			return;
+		}
+		_segmentIndex++;
+		_prepareNextSegment(full);
+	}
+
+	/*!
+	 * Creates the segment that follows the current one, and deletes the ones
+	 * beyond maxSegments, from a background thread. The thread also flushes
+	 * the segment that was filled and drops its mapping, which is unmapped
+	 * once collected, as there is no way to unmap it explicitly.
+	 *
+	 * \param full Segment that was filled, null if none.
+	 */
+	private void _prepareNextSegment(final MappedByteBuffer full){
+		final int index = _segmentIndex + 1;
+		_preparer = new Thread(new Runnable() {
+			public void run() {
+				MappedByteBuffer segment = null;
+				IOException error = null;
+				try {
+					segment = _createSegment(index);
+				} catch (IOException e) {
+					error = e;
+					e.printStackTrace();
+					logger.info(Logger.stack2string(e), Logger.LOG_FILE_ON);
+				}
+				if (full != null) full.force();
+				new File(segmentPath(_prefix, index - _maxSegments)).delete();
+				synchronized (CaptureWriter.this) {
+					_nextSegment = segment;
+					if (error != null) _lastError = error;
+					_preparer = null;
+					CaptureWriter.this.notifyAll();
+				}
+			}
+		});
+		_preparer.setName("Capture Thread");
+		_preparer.start();
+	}
+
+	private MappedByteBuffer _createSegment(int index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentPath(_prefix, index), "rw");
+		MappedByteBuffer segment;
+		try {
+			file.setLength(0);
+			file.setLength(_segmentLength);
+			segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentLength);
+		} finally {
+			// The mapping stays valid once the file is closed
+			file.close();
+		}
+		segment.order(ByteOrder.BIG_ENDIAN);
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putInt(index);
+		segment.putInt(HEADER_LENGTH);
+		segment.putLong(_startMillis);
+		segment.putLong(_startNanos);
+		return segment;
+	}
+}
@@ -0,0 +1,151 @@
+package com.icognos.transport;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*!
+ * Transport that replays a recording of the bytes received from a device.
+ * The address is the path of the recording. Request frames written by the
+ * host are accepted and discarded.
+ *
+ * By default the file is replayed as fast as the consumer reads it. A
+ * bytes-per-second rate can be set to emulate the link, and the replay can
+ * loop for soak tests.
+ */
+public class FileReplayTransport extends StreamTransport {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property FileReplayTransport::_path
+	 *
+	 * Path of the recording being replayed.
+	 */
+	private String _path;
+
+	/*!
+	 * \property FileReplayTransport::_bytesPerSecond
+	 *
+	 * Replay rate. Zero or negative means as fast as possible.
+	 */
+	private long _bytesPerSecond;
+
+	/*!
+	 * \property FileReplayTransport::_isLooping
+	 *
+	 * Whether the recording starts over when its end is reached.
+	 */
+	private boolean _isLooping;
+
+	/*!
+	 * \property FileReplayTransport::_replayedBytes
+	 *
+	 * Bytes replayed since the transport was opened.
+	 */
+	private long _replayedBytes;
+
+	/*!
+	 * \property FileReplayTransport::_startTime
+	 *
+	 * System.nanoTime when the replay started, used for pacing.
+	 */
+	private long _startTime;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor. The recording is replayed once, unpaced.
+	 */
+	public FileReplayTransport(){
+		_bytesPerSecond = 0;
+		_isLooping = false;
+	}
+
+	/*!
+	 * Sets the replay rate in bytes per second, zero to replay unpaced.
+	 */
+	public void setBytesPerSecond(long value){
+		_bytesPerSecond = value;
+	}
+
+	/*!
+	 * Sets whether the recording starts over when its end is reached.
+	 */
+	public void setLooping(boolean value){
+		_isLooping = value;
+	}
+
+	/*!
+	 * Bytes replayed since the transport was opened.
+	 */
+	public long getReplayedBytes(){
+		return _replayedBytes;
+	}
+
+	@Override
+	public boolean isReplay(){
+		return true;
+	}
+
+	@Override
+	protected int _connect(String address) throws IOException {
+		_path = address;
+		_inStream = new BufferedInputStream(new FileInputStream(_path), 1 << 16);
+		_outStream = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		_replayedBytes = 0;
+		_startTime = System.nanoTime();
+		return 1;
+	}
+
+	@Override
+	public int readRFCOMM( int handle, byte[] buffer, int offset, int numberBytes, int timeout) throws IOException{
+		// Read once: _disconnect may null it from another thread
+		InputStream inStream = _inStream;
+		if (!_isConnected || inStream == null) return 0;
+
+		int bytes = inStream.read(buffer, offset, numberBytes);
+		if (bytes < 0 && _isLooping)
+		{
+			inStream.close();
+			inStream = new BufferedInputStream(new FileInputStream(_path), 1 << 16);
+			if (!_isConnected)
+			{
+				// Disconnected meanwhile, not to be left open
+				inStream.close();
+				return -1;
+			}
+			_inStream = inStream;
+			bytes = inStream.read(buffer, offset, numberBytes);
+		}
+		if (bytes <= 0) return bytes;
+
+		_replayedBytes += bytes;
+		if (_bytesPerSecond > 0)
+		{
+			// Sleep until the link would have delivered the replayed bytes
+			long dueTime = _startTime + (_replayedBytes * 1000000000L) / _bytesPerSecond;
+			long waitTime = dueTime - System.nanoTime();
+			if (waitTime > 0)
+			{
+				try {
+					Thread.sleep(waitTime / 1000000L, (int) (waitTime % 1000000L));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return bytes;
+	}
+}
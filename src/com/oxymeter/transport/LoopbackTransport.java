@@ -0,0 +1,231 @@
+package com.icognos.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import com.icognos.util.ByteRingBuffer;
+
+/*!
+ * In-memory pipe between the host and a stand-in device living in the same
+ * process, typically a StarStimSimulator. The host side is this
+ * INICBluetooth; the device side is reached through getDeviceInputStream and
+ * getDeviceOutputStream.
+ *
+ * Each direction is a ByteRingBuffer. Writes on either side wait for room
+ * instead of dropping bytes, like a real pipe would.
+ *
+ * Pipes can be shared by name through getInstance, which is what the
+ * "loopback://name" addresses of TransportFactory resolve to.
+ */
+public class LoopbackTransport extends StreamTransport {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property LoopbackTransport::PIPE_CAPACITY
+	 *
+	 * Bytes buffered on each direction of the pipe.
+	 */
+	public static final int PIPE_CAPACITY = 1 << 18;
+
+	/*!
+	 * \property LoopbackTransport::_instances
+	 *
+	 * Named pipes shared between the host and the device sides.
+	 */
+	private static HashMap<String, LoopbackTransport> _instances = new HashMap<String, LoopbackTransport>();
+
+	/*!
+	 * \property LoopbackTransport::_toHost
+	 *
+	 * Bytes written by the device and read by the host.
+	 */
+	private ByteRingBuffer _toHost;
+
+	/*!
+	 * \property LoopbackTransport::_toDevice
+	 *
+	 * Bytes written by the host and read by the device.
+	 */
+	private ByteRingBuffer _toDevice;
+
+	/*!
+	 * \property LoopbackTransport::_isDeviceClosed
+	 *
+	 * Set when the device side hangs up. The host reads -1 once the pending
+	 * bytes have been consumed.
+	 */
+	private volatile boolean _isDeviceClosed;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor
+	 */
+	public LoopbackTransport(){
+		_toHost = new ByteRingBuffer(PIPE_CAPACITY);
+		_toDevice = new ByteRingBuffer(PIPE_CAPACITY);
+		_isDeviceClosed = false;
+	}
+
+	/*!
+	 * Returns the pipe registered with the given name, creating it if needed
+	 */
+	public static synchronized LoopbackTransport getInstance(String name){
+		LoopbackTransport instance = _instances.get(name);
+		if (instance == null)
+		{
+			instance = new LoopbackTransport();
+			_instances.put(name, instance);
+		}
+		return instance;
+	}
+
+	/*!
+	 * Stream where the device side reads the request frames from the host
+	 */
+	public InputStream getDeviceInputStream(){
+		return new RingInputStream(_toDevice);
+	}
+
+	/*!
+	 * Stream where the device side writes the frames for the host
+	 */
+	public OutputStream getDeviceOutputStream(){
+		return new RingOutputStream(_toHost) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				// Lost on the air until the host connects again
+				if (!_isDeviceClosed) super.write(b, off, len);
+			}
+		};
+	}
+
+	/*!
+	 * The device side hangs up, as if the radio link was lost. What the
+	 * device writes afterwards is dropped until the host connects again.
+	 */
+	public void closeDeviceSide(){
+		_isDeviceClosed = true;
+		_toHost.wakeUpConsumer();
+	}
+
+	@Override
+	protected int _connect(String address) throws IOException {
+		// Only the host consumes _toHost, so it can drop what the device sent
+		// while nobody was connected
+		_toHost.clear();
+		_isDeviceClosed = false;
+		_inStream = new HostInputStream();
+		_outStream = new RingOutputStream(_toDevice);
+		return 1;
+	}
+
+	@Override
+	protected void _disconnect() throws IOException {
+		_toHost.wakeUpConsumer();
+		_toDevice.wakeUpConsumer();
+		_inStream = null;
+		_outStream = null;
+	}
+
+	/*!
+	 * Host side of the device to host direction
+	 */
+	private class HostInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (_isConnected)
+			{
+				boolean isDeviceClosed = _isDeviceClosed;
+				int n = _toHost.read(b, off, len, 100);
+				if (n > 0) return n;
+				if (isDeviceClosed) return -1;
+			}
+			return -1;
+		}
+	}
+
+	/*!
+	 * Reading end of a ring. It waits until there is data.
+	 */
+	private static class RingInputStream extends InputStream {
+		private ByteRingBuffer _ring;
+		private volatile boolean _isClosed;
+
+		RingInputStream(ByteRingBuffer ring){
+			_ring = ring;
+		}
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (!_isClosed)
+			{
+				int n = _ring.read(b, off, len, 100);
+				if (n > 0) return n;
+			}
+			return -1;
+		}
+		@Override
+		public int available() {
+			return _ring.size();
+		}
+		@Override
+		public void close() {
+			_isClosed = true;
+			_ring.wakeUpConsumer();
+		}
+	}
+
+	/*!
+	 * Writing end of a ring. It waits for room instead of dropping bytes.
+	 */
+	private static class RingOutputStream extends OutputStream {
+		private ByteRingBuffer _ring;
+		private volatile boolean _isClosed;
+
+		RingOutputStream(ByteRingBuffer ring){
+			_ring = ring;
+		}
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0)
+			{
+				if (_isClosed) throw new IOException("Loopback pipe closed");
+				int free = _ring.capacity() - _ring.size();
+				int n = _ring.write(b, off, (len > free) ? free : len);
+				off += n;
+				len -= n;
+				if (len > 0)
+				{
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while writing to the loopback pipe");
+					}
+				}
+			}
+		}
+		@Override
+		public void close() {
+			_isClosed = true;
+		}
+	}
+}
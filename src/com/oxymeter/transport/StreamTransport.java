@@ -0,0 +1,177 @@
+package com.icognos.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import com.icognos.bluetooth.INICBluetooth;
+import com.icognos.util.Reference;
+
+/*!
+ * Base class for the transports that are not Bluetooth. They move the
+ * enzo3G/StarStim byte stream over a pair of java.io streams, so the
+ * discovery and pairing part of INICBluetooth has nothing to do.
+ *
+ * Subclasses only implement _connect, which opens _inStream and _outStream
+ * for the given address.
+ */
+public abstract class StreamTransport implements INICBluetooth {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property StreamTransport::_inStream
+	 *
+	 * Stream the device bytes are read from. Volatile: _disconnect nulls it
+	 * while the reader thread reads.
+	 */
+	protected volatile InputStream _inStream;
+
+	/*!
+	 * \property StreamTransport::_outStream
+	 *
+	 * Stream the request frames are written to.
+	 */
+	protected volatile OutputStream _outStream;
+
+	/*!
+	 * \property StreamTransport::_isConnected
+	 *
+	 * Whether the streams are open.
+	 */
+	protected volatile boolean _isConnected;
+
+	/*!
+	 * \property StreamTransport::_boxedBuffer
+	 *
+	 * Scratch buffer backing the ArrayList<Byte> read method.
+	 */
+	private byte[] _boxedBuffer;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Opens _inStream and _outStream for the given address.
+	 *
+	 * \param address transport specific address, without the scheme prefix
+	 *
+	 * \returns 1 on success 0 on failure
+	 */
+	protected abstract int _connect(String address) throws IOException;
+
+	/*!
+	 * Closes the streams opened by _connect
+	 */
+	protected void _disconnect() throws IOException {
+		InputStream inStream = _inStream;
+		OutputStream outStream = _outStream;
+		_inStream = null;
+		_outStream = null;
+		if (inStream != null) inStream.close();
+		if (outStream != null) outStream.close();
+	}
+
+	/*!
+	 * Whether the transport replays a recording. Its end is not a link loss
+	 * to recover from.
+	 */
+	public boolean isReplay(){
+		return false;
+	}
+
+	public int scanNeighborhood (){
+		return 1;
+	}
+
+	public int getNumPairedDevices(){
+		return 0;
+	}
+
+	public int getNumNotPairedDevices (){
+		return 0;
+	}
+
+	public int getNumAllDevices (int authenticated, int remembered, int unknown, int connected){
+		return 0;
+	}
+
+	public int getInfoPairedDevice(int index, Reference<String> deviceName, Reference<String> macAddress){
+		return 0;
+	}
+
+	public int getInfoAllDevices(int index, Reference<String> deviceName, Reference<String> macAddress,
+									int authenticated, int remembered, int unknown, int connected){
+		return 0;
+	}
+
+	public int getInfoNotPairedDevice(int index, Reference<String> deviceName, Reference<String> macAddress){
+		return 0;
+	}
+
+	public int pairDevice(String macAddress, String pin){
+		return 1;
+	}
+
+	public int removeDevice (String macAddress){
+		return 0;
+	}
+
+	public int iniBTSockets(){
+		return 1;
+	}
+
+	public void closeBTSockets(){
+		return;
+	}
+
+	public int openRFCOMM(String macAddress, Reference<Integer> handle) throws IOException{
+		handle.set(0);
+		int returnValue = _connect(macAddress);
+		_isConnected = (returnValue == 1);
+		return returnValue;
+	}
+
+	public int closeRFCOMM(int handle) throws IOException{
+		_isConnected = false;
+		_disconnect();
+		return 1;
+	}
+
+	public int writeRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes) throws IOException{
+		byte[] byteArray = new byte[buffer.size()];
+		for (int i = 0; i < buffer.size(); i++) byteArray[i] = buffer.get(i);
+		return writeRFCOMM(handle, byteArray, 0, byteArray.length);
+	}
+
+	public synchronized int writeRFCOMM( int handle, byte[] buffer, int offset, int numberBytes) throws IOException{
+		// Synchronized: requests may be written from several threads
+		OutputStream outStream = _outStream;
+		if (!_isConnected || outStream == null) return 0;
+
+		outStream.write(buffer, offset, numberBytes);
+		outStream.flush();
+		return 1;
+	}
+
+	public int readRFCOMM( int handle, ArrayList<Byte> buffer, long numberBytes, int timeout) throws IOException{
+		byte[] byteArray = _scratch((int) numberBytes);
+		int bytes = readRFCOMM(handle, byteArray, 0, (int) numberBytes, timeout);
+		for (int i = 0; i < bytes; i++) buffer.add(byteArray[i]);
+		return bytes;
+	}
+
+	public int readRFCOMM( int handle, byte[] buffer, int offset, int numberBytes, int timeout) throws IOException{
+		// Read once: _disconnect may null it from another thread
+		InputStream inStream = _inStream;
+		if (!_isConnected || inStream == null) return 0;
+		return inStream.read(buffer, offset, numberBytes);
+	}
+
+	private byte[] _scratch(int length){
+		if (_boxedBuffer == null || _boxedBuffer.length < length) _boxedBuffer = new byte[length];
+		return _boxedBuffer;
+	}
+}
@@ -0,0 +1,87 @@
+package com.icognos.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*!
+ * Transport over a TCP socket. The address has the form "host:port", for
+ * instance a StarStimSimulator listening on a Linux box or a serial-to-TCP
+ * bridge.
+ */
+public class TCPTransport extends StreamTransport {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property TCPTransport::CONNECT_TIMEOUT
+	 *
+	 * Milliseconds to wait for the connection to be established.
+	 */
+	public static final int CONNECT_TIMEOUT = 5000;
+
+	/*!
+	 * \property TCPTransport::_socket
+	 *
+	 * Connected socket, null when closed.
+	 */
+	private Socket _socket;
+
+	//  -- METHODS --
+	// --------------
+
+	@Override
+	protected int _connect(String address) throws IOException {
+		int separator = address.lastIndexOf(':');
+		if (separator <= 0) return 0;
+
+		String host = address.substring(0, separator);
+		int port;
+		try {
+			port = Integer.parseInt(address.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		if (port < 0 || port > 65535) return 0;
+
+		_socket = new Socket();
+		try {
+			_socket.setTcpNoDelay(true);
+			_socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			_inStream = _socket.getInputStream();
+			_outStream = _socket.getOutputStream();
+		} catch (IOException e) {
+			// Not to leak the socket of a failed connection
+			_closeSocket();
+			throw e;
+		} catch (RuntimeException e) {
+			// Invalid address or no permission to connect
+			_closeSocket();
+			throw e;
+		}
+		return 1;
+	}
+
+	@Override
+	protected void _disconnect() throws IOException {
+		if (_socket != null) _socket.close();
+		_socket = null;
+		_inStream = null;
+		_outStream = null;
+	}
+
+	/*!
+	 * Closes the socket of a failed connection
+	 */
+	private void _closeSocket(){
+		try {
+			_socket.close();
+		} catch (IOException e) {
+			// Nothing else to release
+		}
+		_socket = null;
+		_inStream = null;
+		_outStream = null;
+	}
+}
@@ -0,0 +1,45 @@
+package com.icognos.transport;
+
+import com.icognos.bluetooth.INICBluetooth;
+
+/*!
+ * Selects the transport for the address given to DeviceManager.openDevice.
+ *
+ *  - "tcp://host:port"   TCPTransport
+ *  - "file:///path"      FileReplayTransport
+ *  - "loopback://name"   LoopbackTransport registered with that name
+ *  - "capture://prefix"  CaptureReplayTransport
+ *  - anything else       Bluetooth mac address, handled by BluetoothManager
+ */
+public class TransportFactory {
+
+	public static final String TCP_SCHEME      = "tcp://";
+	public static final String FILE_SCHEME     = "file://";
+	public static final String LOOPBACK_SCHEME = "loopback://";
+	public static final String CAPTURE_SCHEME  = "capture://";
+
+	/*!
+	 * Returns the transport for the address, or null if the address is a
+	 * Bluetooth mac address.
+	 */
+	public static INICBluetooth createForAddress(String address){
+		if (address == null) return null;
+
+		if (address.startsWith(TCP_SCHEME)) return new TCPTransport();
+		if (address.startsWith(FILE_SCHEME)) return new FileReplayTransport();
+		if (address.startsWith(CAPTURE_SCHEME)) return new CaptureReplayTransport();
+		if (address.startsWith(LOOPBACK_SCHEME))
+			return LoopbackTransport.getInstance(address.substring(LOOPBACK_SCHEME.length()));
+		return null;
+	}
+
+	/*!
+	 * Returns the address without its scheme, which is what the transports
+	 * expect in openRFCOMM.
+	 */
+	public static String stripScheme(String address){
+		int separator = address.indexOf("://");
+		if (separator < 0) return address;
+		return address.substring(separator + 3);
+	}
+}
@@ -0,0 +1,259 @@
+package com.icognos.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*!
+ * Lock-free single-producer/single-consumer ring of primitive bytes.
+ *
+ * Exactly one thread may call write() and exactly one (other) thread may call
+ * read(). Positions are ever increasing counters published through volatile
+ * fields, so no lock is taken on any path. When the ring is full the producer
+ * does not block: the bytes that do not fit are dropped and accounted in the
+ * overflow counters.
+ */
+public class ByteRingBuffer {
+
+	//  -- Attributtes --
+	//  -----------------
+
+	/*!
+	 * \property ByteRingBuffer::_buffer
+	 *
+	 * Storage of the ring. Its length is always a power of two.
+	 */
+	private final byte[] _buffer;
+
+	/*!
+	 * \property ByteRingBuffer::_mask
+	 *
+	 * Mask applied to the positions to get the index in _buffer.
+	 */
+	private final int _mask;
+
+	/*!
+	 * \property ByteRingBuffer::_writePosition
+	 *
+	 * Total number of bytes written. Only modified by the producer.
+	 */
+	private volatile long _writePosition;
+
+	/*!
+	 * \property ByteRingBuffer::_readPosition
+	 *
+	 * Total number of bytes read. Only modified by the consumer.
+	 */
+	private volatile long _readPosition;
+
+	/*!
+	 * \property ByteRingBuffer::_waitingConsumer
+	 *
+	 * Consumer thread parked in read() waiting for data, null otherwise.
+	 */
+	private volatile Thread _waitingConsumer;
+
+	/*!
+	 * \property ByteRingBuffer::_isWakeUpRequested
+	 *
+	 * Set by wakeUpConsumer so the current or next wait of the consumer
+	 * returns without data.
+	 */
+	private volatile boolean _isWakeUpRequested;
+
+	/*!
+	 * \property ByteRingBuffer::_highWaterMark
+	 *
+	 * Maximum number of bytes stored in the ring since the last reset of the
+	 * statistics.
+	 */
+	private volatile int _highWaterMark;
+
+	/*!
+	 * \property ByteRingBuffer::_overflowCount
+	 *
+	 * Number of write operations that could not store all their bytes.
+	 */
+	private volatile long _overflowCount;
+
+	/*!
+	 * \property ByteRingBuffer::_overflowBytes
+	 *
+	 * Number of bytes dropped because the ring was full.
+	 */
+	private volatile long _overflowBytes;
+
+	//  -- METHODS --
+	// --------------
+
+	/*!
+	 * Public Constructor
+	 *
+	 * \param capacity minimum number of bytes the ring can hold. It is rounded
+	 * up to the next power of two.
+	 */
+	public ByteRingBuffer(int capacity){
+		int size = 1;
+		while (size < capacity) size <<= 1;
+		_buffer = new byte[size];
+		_mask = size - 1;
+		_writePosition = 0;
+		_readPosition = 0;
+	}
+
+	/*!
+	 * Number of bytes the ring can hold
+	 */
+	public int capacity(){
+		return _buffer.length;
+	}
+
+	/*!
+	 * Number of bytes stored and not read yet
+	 */
+	public int size(){
+		return (int) (_writePosition - _readPosition);
+	}
+
+	/*!
+	 * Producer side. Copies as many bytes as fit in the ring.
+	 *
+	 * \param src buffer holding the bytes to be stored
+	 *
+	 * \param offset position of the first byte in src
+	 *
+	 * \param length number of bytes to be stored
+	 *
+	 * \return number of bytes actually stored. The rest were dropped and
+	 * accounted as overflow.
+	 */
+	public int write(byte[] src, int offset, int length){
+		long writePosition = _writePosition;
+		int used = (int) (writePosition - _readPosition);
+		int free = _buffer.length - used;
+		int n = (length > free) ? free : length;
+
+		int index = (int) (writePosition & _mask);
+		int firstChunk = _buffer.length - index;
+		if (firstChunk >= n){
+			System.arraycopy(src, offset, _buffer, index, n);
+		}else{
+			System.arraycopy(src, offset, _buffer, index, firstChunk);
+			System.arraycopy(src, offset + firstChunk, _buffer, 0, n - firstChunk);
+		}
+		_writePosition = writePosition + n;
+
+		used += n;
+		if (used > _highWaterMark) _highWaterMark = used;
+		if (n < length){
+			_overflowCount++;
+			_overflowBytes += length - n;
+		}
+
+		Thread consumer = _waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+		return n;
+	}
+
+	/*!
+	 * Consumer side. Copies the available bytes without waiting.
+	 *
+	 * \param dst buffer receiving the bytes
+	 *
+	 * \param offset position in dst for the first byte
+	 *
+	 * \param length maximum number of bytes to be read
+	 *
+	 * \return number of bytes copied, 0 if the ring is empty
+	 */
+	public int read(byte[] dst, int offset, int length){
+		long readPosition = _readPosition;
+		int available = (int) (_writePosition - readPosition);
+		int n = (length > available) ? available : length;
+		if (n == 0) return 0;
+
+		int index = (int) (readPosition & _mask);
+		int firstChunk = _buffer.length - index;
+		if (firstChunk >= n){
+			System.arraycopy(_buffer, index, dst, offset, n);
+		}else{
+			System.arraycopy(_buffer, index, dst, offset, firstChunk);
+			System.arraycopy(_buffer, 0, dst, offset + firstChunk, n - firstChunk);
+		}
+		_readPosition = readPosition + n;
+		return n;
+	}
+
+	/*!
+	 * Consumer side. Copies the available bytes, parking the calling thread
+	 * up to timeoutMillis while the ring is empty.
+	 *
+	 * \return number of bytes copied, 0 if nothing arrived before the timeout
+	 * or wakeUpConsumer was called
+	 */
+	public int read(byte[] dst, int offset, int length, long timeoutMillis){
+		int n = read(dst, offset, length);
+		if (n > 0 || timeoutMillis <= 0) return n;
+
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		_waitingConsumer = Thread.currentThread();
+		try{
+			while (_writePosition == _readPosition){
+				if (_isWakeUpRequested) break;
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || Thread.currentThread().isInterrupted()) break;
+				LockSupport.parkNanos(this, remaining);
+			}
+		}finally{
+			_waitingConsumer = null;
+			_isWakeUpRequested = false;
+		}
+		return read(dst, offset, length);
+	}
+
+	/*!
+	 * Makes the consumer return from read(), now if it is parked or from its
+	 * next wait otherwise.
+	 */
+	public void wakeUpConsumer(){
+		_isWakeUpRequested = true;
+		Thread consumer = _waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/*!
+	 * Discards the stored bytes. It must only be called while neither the
+	 * producer nor the consumer are working on the ring.
+	 */
+	public void clear(){
+		_readPosition = _writePosition;
+	}
+
+	/*!
+	 * Maximum fill level of the ring since the last resetStatistics
+	 */
+	public int highWaterMark(){
+		return _highWaterMark;
+	}
+
+	/*!
+	 * Number of writes that found the ring full since the last resetStatistics
+	 */
+	public long overflowCount(){
+		return _overflowCount;
+	}
+
+	/*!
+	 * Number of bytes dropped since the last resetStatistics
+	 */
+	public long overflowBytes(){
+		return _overflowBytes;
+	}
+
+	/*!
+	 * Resets the high water mark and the overflow counters
+	 */
+	public void resetStatistics(){
+		_highWaterMark = size();
+		_overflowCount = 0;
+		_overflowBytes = 0;
+	}
+}
@@ -31,6 +31,10 @@ public class Logger {
 	
 	public static String logAppName = "com.icognos";
 	
+	// Set to false when running off the phone (e.g. against a TCP or loopback
+	// transport on a desktop JVM) where android.util.Log is not available
+	public static boolean useAndroidLog = true;
+	
 	// Logger public logger
 	public static Logger logger = null;
 	
@@ -74,7 +78,9 @@ public class Logger {
 		
 		String formattedMsg = format ( new Exception().getStackTrace()[1], msg );
 
-		Log.w(logAppName, formattedMsg + "\n");
+		if( useAndroidLog ){
+			Log.w(logAppName, formattedMsg + "\n");
+		}
 		if( (mode & 0xF0) != 0){
 			outputView.setFileLog(formattedMsg+ "\r\n");		
 		}		
@@ -0,0 +1,305 @@
+package com.icognos.deviceManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.icognos.deviceManager.StarStimProtocol.EEGCompressionType;
+import com.icognos.util.ILoggerOutput;
+import com.icognos.util.Logger;
+
+/*!
+ * Desktop check of the StarStimProtocol parser, run on a JVM against the
+ * classes of src. It is not part of the application.
+ *
+ * It parses frames captured from a StarStimSimulator: beacons without EEG,
+ * EEG streaming and bytes with no frame at all, as while resynchronising,
+ * and fails if the parser allocates memory once warmed up.
+ *
+ * Then, for each firmware and mode, it checks that parse with the codec
+ * selected for them gives the same frames as parseByte, in reads of the
+ * size DeviceManager does and in odd ones that split the blocks, and prints
+ * the time per byte of both.
+ *
+ * Usage: StarStimProtocolCheck [channels [megabytes]]
+ */
+public class StarStimProtocolCheck {
+
+	//  -- Attributtes --
+
+	/*!
+	 * Firmware and mode of the device, as negotiated after the firmware
+	 * request.
+	 */
+	private static class Mode {
+		final String name;
+		final int firmwareVersion;
+		final boolean isLength2Bytes;
+		final int samplesPerBeacon;
+		final EEGCompressionType compression;
+		final boolean isStimulating;
+
+		Mode(String name, int firmwareVersion, boolean isLength2Bytes, int samplesPerBeacon,
+				EEGCompressionType compression, boolean isStimulating){
+			this.name = name;
+			this.firmwareVersion = firmwareVersion;
+			this.isLength2Bytes = isLength2Bytes;
+			this.samplesPerBeacon = samplesPerBeacon;
+			this.compression = compression;
+			this.isStimulating = isStimulating;
+		}
+
+		/*!
+		 * Sets the mode in the parser, as DeviceManager does. The width of the
+		 * length field is detected by the parser unless it is 2 bytes. The
+		 * modes of 16 samples per beacon set it, as their beacons are longer
+		 * than 255 bytes and the captures skip the first, shorter, beacons.
+		 */
+		void apply(StarStimProtocol protocol){
+			protocol.reset();
+			if (isLength2Bytes) protocol.setLength2Bytes(true);
+			protocol.setFirmwareVersion(firmwareVersion);
+			protocol.multipleSample((samplesPerBeacon > 0) ? 1 : 0);
+			protocol.eegCompressionType(compression);
+			protocol.setIsStimulating(isStimulating);
+		}
+	}
+
+	private static final Mode[] MODES = {
+		new Mode("fw 1225, 1 sample", 1225, false, 0, EEGCompressionType.EEG_NO_COMPRESSION, false),
+		new Mode("fw 1225, length 2 bytes", 1225, true, 0, EEGCompressionType.EEG_NO_COMPRESSION, false),
+		new Mode("fw 1225, 16 samples", 1225, true, 16, EEGCompressionType.EEG_NO_COMPRESSION, false),
+		new Mode("fw 1225, 16 samples, 16 bit", 1225, true, 16, EEGCompressionType.EEG_16BIT_COMPRESSION, false),
+		new Mode("fw 1225, 16 samples, 12 bit", 1225, true, 16, EEGCompressionType.EEG_12BIT_COMPRESSION, false),
+		new Mode("fw 700, 1 byte stamp", 700, false, 0, EEGCompressionType.EEG_NO_COMPRESSION, false),
+		new Mode("fw 500, artifact checker", 500, false, 0, EEGCompressionType.EEG_NO_COMPRESSION, false),
+		new Mode("fw 500, 16 samples, 16 bit", 500, true, 16, EEGCompressionType.EEG_16BIT_COMPRESSION, false),
+		new Mode("fw 500, stimulating", 500, false, 0, EEGCompressionType.EEG_NO_COMPRESSION, true),
+	};
+
+	/*!
+	 * \property StarStimProtocolCheck::_hash
+	 *
+	 * Hash of the frames given to _sink: stamps, channels and samples.
+	 */
+	private static long _hash;
+
+	// Created once, so that the check does not count it
+	private static final IFrameSink _sink = new IFrameSink() {
+		public void newFrame(StarStimData data) {
+			_hash = _hashFrame(_hash, data);
+		}
+	};
+
+	//  -- METHODS --
+
+	public static void main(String[] args) throws Exception {
+		Logger.useAndroidLog = false;
+		Logger.getInstance(new ILoggerOutput() {
+			public void setVisualLog(String msg) {
+			}
+			public void setFileLog(String msg) {
+			}
+		});
+		int channels = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		int nBytes = ((args.length > 1) ? Integer.parseInt(args[1]) : 4) << 20;
+
+		Mode mode = MODES[0];
+		byte[] beacons = _captureFrames(channels, mode, false, nBytes);
+		byte[] eeg = _captureFrames(channels, mode, true, nBytes);
+		// Noise with no Start Of Frame in it
+		byte[] garbage = new byte[nBytes];
+		new Random(1).nextBytes(garbage);
+		for (int i = 0; i < nBytes; i++)
+		{
+			if (garbage[i] == 'S') garbage[i] = 0;
+		}
+
+		boolean isOk = _checkAllocations("beacons", beacons, mode);
+		isOk &= _checkAllocations("eeg", eeg, mode);
+		isOk &= _checkAllocations("garbage", garbage, mode);
+		if (!isOk)
+			throw new AssertionError("The parser allocates memory per frame");
+
+		for (int m = 0; m < MODES.length; m++)
+		{
+			mode = MODES[m];
+			eeg = (m == 0) ? eeg : _captureFrames(channels, mode, true, nBytes);
+			if (!_checkSameFrames(eeg, mode))
+				throw new AssertionError("parse and parseByte differ for " + mode.name);
+			double generic = _timePerByte(eeg, mode, true);
+			double specialized = _timePerByte(eeg, mode, false);
+			System.out.println(mode.name + ": parseByte " + String.format("%.2f", generic) + " ns per byte, parse "
+					+ String.format("%.2f", specialized) + " ns per byte, " + String.format("%.1f", generic / specialized) + "x");
+		}
+	}
+
+	/*!
+	 * Captures what an unthrottled StarStimSimulator sends after the start
+	 * beacon, the firmware request and, if requested, the start of the EEG
+	 * streaming.
+	 */
+	private static byte[] _captureFrames(int channels, Mode mode, boolean withEEG, int nBytes) throws IOException {
+		PipedOutputStream toDevice = new PipedOutputStream();
+		PipedInputStream deviceIn = new PipedInputStream(toDevice, 1 << 16);
+		PipedInputStream fromDevice = new PipedInputStream(1 << 16);
+		PipedOutputStream deviceOut = new PipedOutputStream(fromDevice);
+
+		StarStimSimulator simulator = new StarStimSimulator();
+		simulator.setNumChannels(channels);
+		simulator.setFirmwareVersion(mode.firmwareVersion, false);
+		simulator.setLength2Bytes(mode.isLength2Bytes);
+		if (mode.samplesPerBeacon > 0)
+		{
+			simulator.multipleSample(1);
+			simulator.samplesPerBeacon(mode.samplesPerBeacon);
+		}
+		simulator.eegCompressionType(mode.compression);
+		simulator.setSpeedFactor(0);
+		simulator.start(deviceIn, deviceOut);
+		_writeFrame(toDevice, StarStimProtocol.buildStartBeaconRequest());
+		_writeFrame(toDevice, StarStimProtocol.buildFirmwareVersionBatteryFrame());
+		if (withEEG) _writeFrame(toDevice, StarStimProtocol.buildStartEEGFrame());
+
+		// Drop what was sent before the requests were attended
+		byte[] buffer = new byte[nBytes];
+		int skip = 1 << 16;
+		int n = 0;
+		while (n < nBytes)
+		{
+			int r = fromDevice.read(buffer, n, nBytes - n);
+			if (r < 0) break;
+			if (skip > 0) { skip -= r; continue; }
+			n += r;
+		}
+		simulator.stop();
+		return buffer;
+	}
+
+	private static void _writeFrame(OutputStream out, ArrayList<Byte> frame) throws IOException {
+		for (int i = 0; i < frame.size(); i++) out.write(frame.get(i));
+		out.flush();
+	}
+
+	/*!
+	 * Parses the bytes as DeviceManager does, once warmed up, and prints the
+	 * bytes allocated per frame. The fewest bytes of several runs are taken,
+	 * as the compiler may allocate in the thread while a run is measured.
+	 *
+	 * \return True if nothing was allocated
+	 */
+	private static boolean _checkAllocations(String name, byte[] buffer, Mode mode){
+		StarStimProtocol protocol = new StarStimProtocol(EEGCompressionType.EEG_NO_COMPRESSION);
+		_parse(protocol, mode, buffer, DeviceManager.MAX_LENGTH_RX_BUFFER);
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long start = bean.getThreadAllocatedBytes(threadId);
+		long overhead = bean.getThreadAllocatedBytes(threadId) - start;
+
+		long allocated = Long.MAX_VALUE;
+		int frames = 0;
+		for (int run = 0; run < 5 && allocated > 0; run++)
+		{
+			start = bean.getThreadAllocatedBytes(threadId);
+			frames = _parse(protocol, mode, buffer, DeviceManager.MAX_LENGTH_RX_BUFFER);
+			allocated = Math.min(allocated, bean.getThreadAllocatedBytes(threadId) - start - overhead);
+		}
+
+		System.out.println(name + ": " + buffer.length + " bytes, " + frames + " frames, " +
+				allocated + " bytes allocated" + ((frames > 0) ? ", " + (allocated / frames) + " per frame" : ""));
+		return allocated <= 0;
+	}
+
+	/*!
+	 * \return True if parse gives the same frames as parseByte, in reads of
+	 * the size DeviceManager does and in reads of 37 bytes.
+	 */
+	private static boolean _checkSameFrames(byte[] buffer, Mode mode){
+		StarStimProtocol protocol = new StarStimProtocol(EEGCompressionType.EEG_NO_COMPRESSION);
+		int frames = _parseByteByByte(protocol, mode, buffer);
+		long hash = _hash;
+		String errors = protocol.getErrorStatistics();
+		if (frames == 0)
+			return false;
+
+		int[] readLengths = { DeviceManager.MAX_LENGTH_RX_BUFFER, 37 };
+		for (int k = 0; k < readLengths.length; k++)
+		{
+			protocol = new StarStimProtocol(EEGCompressionType.EEG_NO_COMPRESSION);
+			int parsed = _parse(protocol, mode, buffer, readLengths[k]);
+			if (parsed != frames || _hash != hash || !errors.equals(protocol.getErrorStatistics()))
+			{
+				System.out.println(mode.name + ": parseByte " + frames + " frames " + hash + " " + errors + ", parse in reads of "
+						+ readLengths[k] + " " + parsed + " frames " + _hash + " " + protocol.getErrorStatistics());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*!
+	 * \return Best time per byte of several runs, once warmed up.
+	 */
+	private static double _timePerByte(byte[] buffer, Mode mode, boolean isByteByByte){
+		StarStimProtocol protocol = new StarStimProtocol(EEGCompressionType.EEG_NO_COMPRESSION);
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 30; run++)
+		{
+			long begin = System.nanoTime();
+			if (isByteByByte)
+				_parseByteByByte(protocol, mode, buffer);
+			else
+				_parse(protocol, mode, buffer, DeviceManager.MAX_LENGTH_RX_BUFFER);
+			best = Math.min(best, System.nanoTime() - begin);
+		}
+		return (double) best / buffer.length;
+	}
+
+	private static int _parse(StarStimProtocol protocol, Mode mode, byte[] buffer, int readLength){
+		// The buffer ends in the middle of a frame
+		mode.apply(protocol);
+		_hash = 0;
+		int frames = 0;
+		for (int offset = 0; offset < buffer.length; offset += readLength)
+			frames += protocol.parse(buffer, offset, Math.min(readLength, buffer.length - offset), _sink);
+		return frames;
+	}
+
+	private static int _parseByteByByte(StarStimProtocol protocol, Mode mode, byte[] buffer){
+		mode.apply(protocol);
+		_hash = 0;
+		int frames = 0;
+		for (int i = 0; i < buffer.length; i++)
+		{
+			if (protocol.parseByte(buffer[i]))
+			{
+				frames++;
+				_sink.newFrame(protocol.getStarStimData());
+			}
+		}
+		return frames;
+	}
+
+	private static long _hashFrame(long hash, StarStimData data){
+		hash = hash * 31 + data.eegStamp();
+		if (!data.isEEGDataPresent())
+			return hash;
+		int channels = data.eegChInfo();
+		hash = hash * 31 + channels;
+		for (int s = 0; s < data.nSamples(); s++)
+		{
+			int[] values = data.eegSampleData(s);
+			for (int c = 0; c < 32; c++)
+			{
+				if ((channels & (1 << c)) != 0) hash = hash * 31 + values[c];
+			}
+		}
+		return hash;
+	}
+
+}